@@ -1,11 +1,16 @@
 package com.fly.mq;
 
+import com.fly.mq.common.ThreadMode;
+import com.fly.mq.mqserver.BrokerConfig;
 import com.fly.mq.mqserver.BrokerServer;
+import com.fly.mq.mqserver.TransportType;
+import com.fly.mq.mqserver.dao.FsyncPolicy;
 import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.ConfigurableBootstrapContext;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
 
 import java.io.IOException;
 
@@ -16,7 +21,32 @@ public class MqApplication {
     public static void main(String[] args) throws IOException {
         context = SpringApplication.run(MqApplication.class, args);
 
-        BrokerServer brokerServer = new BrokerServer(9090);
+        // 传输方式通过配置 mq.transport 选择（bio/nio） 默认 bio
+        // 线程类型通过配置 mq.thread-mode 选择（platform/virtual） 默认 platform
+        Environment env = context.getEnvironment();
+        BrokerConfig config = new BrokerConfig();
+        config.setPort(env.getProperty("mq.port", Integer.class, config.getPort()));
+        config.setUnixSocketPath(env.getProperty("mq.unix-socket-path"));
+        config.setTransportType(TransportType.of(env.getProperty("mq.transport")));
+        config.setIoThreads(env.getProperty("mq.io-threads", Integer.class, config.getIoThreads()));
+        config.setThreadMode(ThreadMode.of(env.getProperty("mq.thread-mode")));
+        config.setConsumerThreads(env.getProperty("mq.consumer-threads", Integer.class, config.getConsumerThreads()));
+        config.setCompression(env.getProperty("mq.compression", Boolean.class, config.isCompression()));
+        config.setZeroCopy(env.getProperty("mq.zero-copy", Boolean.class, config.isZeroCopy()));
+        config.setSegmentSize(env.getProperty("mq.segment-size", Long.class, config.getSegmentSize()));
+        config.setCompactionIntervalMs(env.getProperty("mq.compaction-interval-ms", Long.class, config.getCompactionIntervalMs()));
+        config.setCompactionThreshold(env.getProperty("mq.compaction-threshold", Double.class, config.getCompactionThreshold()));
+        config.setFsyncPolicy(FsyncPolicy.of(env.getProperty("mq.fsync-policy")));
+        config.setFsyncIntervalMs(env.getProperty("mq.fsync-interval-ms", Long.class, config.getFsyncIntervalMs()));
+        config.setFsyncBatchMessages(env.getProperty("mq.fsync-batch-messages", Integer.class, config.getFsyncBatchMessages()));
+        config.setChunkSize(env.getProperty("mq.chunk-size", Integer.class, config.getChunkSize()));
+        config.setMaxMessageSize(env.getProperty("mq.max-message-size", Integer.class, config.getMaxMessageSize()));
+        config.setMaxChunkStreams(env.getProperty("mq.max-chunk-streams", Integer.class, config.getMaxChunkStreams()));
+        config.setChunkStreamTimeoutMs(env.getProperty("mq.chunk-stream-timeout-ms", Long.class, config.getChunkStreamTimeoutMs()));
+        config.setMemoryHighWatermark(env.getProperty("mq.memory-high-watermark", Long.class, config.getMemoryHighWatermark()));
+        config.setFlowResumeRatio(env.getProperty("mq.flow-resume-ratio", Double.class, config.getFlowResumeRatio()));
+
+        BrokerServer brokerServer = new BrokerServer(config);
         brokerServer.start();
     }
 
@@ -10,4 +10,8 @@ import java.io.Serializable;
 public class BasicAckArguments extends BaseArguments implements Serializable {
     private String queueName;
     private String messageId;
+    // messageId 为 null 时按投递序号确认
+    private long deliveryTag;
+    // 为 true 时确认 deliveryTag 及之前所有未确认的消息
+    private boolean multiple;
 }
@@ -0,0 +1,17 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * 主动从队列拉取消息 一次最多取 maxMessages 条
+ */
+@Getter
+@Setter
+public class BasicGetArguments extends BaseArguments implements Serializable {
+    private String queueName;
+    private int maxMessages;
+    private boolean autoAck;
+}
@@ -0,0 +1,16 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * basicGet 的响应 队列中没有消息时 messages 为空
+ */
+@Getter
+@Setter
+public class BasicGetReturns extends BaseReturns implements Serializable {
+    private List<GetMessage> messages;
+}
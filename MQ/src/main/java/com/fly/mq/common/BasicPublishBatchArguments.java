@@ -0,0 +1,17 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 批量发送消息 一个请求中携带多条消息 发往同一个交换机
+ */
+@Getter
+@Setter
+public class BasicPublishBatchArguments extends BaseArguments implements Serializable {
+    private String exchangeName;
+    private List<PublishMessage> messages;
+}
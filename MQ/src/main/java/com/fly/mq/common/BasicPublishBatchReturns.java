@@ -0,0 +1,16 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * 批量发送的响应 results[i] 表示第 i 条消息是否投递成功
+ * ok 只有在所有消息都成功时才为 true
+ */
+@Getter
+@Setter
+public class BasicPublishBatchReturns extends BaseReturns implements Serializable {
+    private boolean[] results;
+}
@@ -0,0 +1,13 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+@Getter
+@Setter
+public class BasicQosArguments extends BaseArguments implements Serializable {
+    // 这个 channel 之后创建的消费者最多同时有多少条未确认的消息 0 表示不限制
+    private int prefetchCount;
+}
@@ -0,0 +1,822 @@
+package com.fly.mq.common;
+
+import com.fly.mq.mqserver.core.BasicProperties;
+import com.fly.mq.mqserver.core.ExchangeType;
+import com.fly.mq.mqserver.core.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 手写的二进制编解码 用来代替 Java 原生序列化
+ * 原生序列化会把类描述信息写进每一个请求/每一条消息 一个 10 字节的 body 也要好几百字节
+ *
+ * 格式: [魔数 'M'(1)] [版本号(1)] [类型标记(1)] [按类型固定顺序排列的字段...]
+ * - 字符串/字节数组: 变长整数 n 表示长度 n - 1（0 表示 null） 后面跟 UTF-8 字节/原始字节
+ * - 整数: 变长整数（LEB128） boolean/byte: 1 个字节
+ * Java 原生序列化的数据总是以 0xACED 开头 据此区分新旧两种格式
+ */
+public class BinaryCodec {
+    public static final byte MAGIC = 'M';
+    public static final byte VERSION = 1;
+
+    // 类型标记
+    public static final byte TAG_BASE_ARGUMENTS = 0x01;
+    public static final byte TAG_EXCHANGE_DECLARE = 0x02;
+    public static final byte TAG_EXCHANGE_DELETE = 0x03;
+    public static final byte TAG_QUEUE_DECLARE = 0x04;
+    public static final byte TAG_QUEUE_DELETE = 0x05;
+    public static final byte TAG_QUEUE_BIND = 0x06;
+    public static final byte TAG_QUEUE_UNBIND = 0x07;
+    public static final byte TAG_BASIC_PUBLISH = 0x08;
+    public static final byte TAG_BASIC_CONSUME = 0x09;
+    public static final byte TAG_BASIC_ACK = 0x0a;
+    public static final byte TAG_BASIC_PUBLISH_BATCH = 0x0b;
+    public static final byte TAG_HANDSHAKE = 0x0c;
+    public static final byte TAG_BASIC_QOS = 0x0d;
+    public static final byte TAG_BASIC_GET = 0x0e;
+    public static final byte TAG_BASE_RETURNS = 0x20;
+    public static final byte TAG_SUBSCRIBE_RETURNS = 0x21;
+    public static final byte TAG_BASIC_PUBLISH_BATCH_RETURNS = 0x22;
+    public static final byte TAG_CONFIRM_RETURNS = 0x23;
+    public static final byte TAG_BASIC_GET_RETURNS = 0x24;
+    public static final byte TAG_FLOW_RETURNS = 0x25;
+    public static final byte TAG_MESSAGE = 0x40;
+
+    // Message 编码后 isValid 所在的位置（紧跟在头部之后）
+    public static final int MESSAGE_VALID_OFFSET = 3;
+    // Message 编码后固定长度的头部 [魔数][版本号][类型标记][isValid] 删除消息时只需要读写这一部分
+    public static final int MESSAGE_HEADER_LENGTH = MESSAGE_VALID_OFFSET + 1;
+
+    // 判断是否是 Java 原生序列化的数据（STREAM_MAGIC 0xACED）
+    public static boolean isLegacy(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    // 是否是本格式编码的 Message 至少要有完整的固定头部
+    public static boolean isMessageHeader(byte[] data) {
+        return data.length >= MESSAGE_HEADER_LENGTH && data[0] == MAGIC && data[1] == VERSION && data[2] == TAG_MESSAGE;
+    }
+
+    // 只解析消息的 isValid 和属性 不复制消息体 返回的 Message 的 body 为 null
+    // 服务启动时恢复消息使用 消息体等到投递时再从文件中读取
+    public static Message decodeMessageHeader(byte[] data) {
+        if (!isMessageHeader(data)) {
+            throw new MQException("[BinaryCodec] Not a message record");
+        }
+        BinaryReader reader = new BinaryReader(data, MESSAGE_VALID_OFFSET);
+        Message message = new Message();
+        message.setIsValid(reader.readByte());
+        BasicProperties properties = readProperties(reader);
+        if (properties != null) {
+            message.setBasicProperties(properties);
+        }
+        return message;
+    }
+
+    // 只解析消息记录开头的 messageId 不解析消息体
+    // 用于校验数据文件中某个位置上是否是期望的消息 不是本格式或者数据不完整返回 null
+    public static String readMessageId(byte[] data) {
+        if (!isMessageHeader(data)) {
+            return null;
+        }
+        try {
+            BinaryReader reader = new BinaryReader(data, MESSAGE_VALID_OFFSET + 1);
+            if (!reader.readBoolean()) {
+                return null;
+            }
+            return reader.readString();
+        } catch (MQException e) {
+            return null;
+        }
+    }
+
+    // 消息编码后消息体之前的部分（固定头部 属性 消息体长度）的长度
+    public static int messageHeaderLength(byte[] data) {
+        BinaryReader reader = skipToMessageBody(data);
+        reader.readVarInt();
+        return reader.position();
+    }
+
+    // 消息体是否为 null 只需要消息体之前的部分
+    public static boolean isMessageBodyNull(byte[] data) {
+        return skipToMessageBody(data).readVarInt() == 0;
+    }
+
+    // 跳过固定头部和属性 返回的 reader 下一个读到的是消息体的长度
+    private static BinaryReader skipToMessageBody(byte[] data) {
+        if (!isMessageHeader(data)) {
+            throw new MQException("[BinaryCodec] Not a message record");
+        }
+        BinaryReader reader = new BinaryReader(data, MESSAGE_VALID_OFFSET + 1);
+        readProperties(reader);
+        return reader;
+    }
+
+    // 编码消息中消息体之前的部分（包括消息体的长度） 后面接上原始的消息体就和 encode(message) 的结果相同
+    // 持久化消息时消息体不复制进编码结果 写文件时和这部分一起 gathering write
+    public static byte[] encodeMessageHeader(Message message) {
+        BinaryWriter writer = new BinaryWriter(64);
+        writer.writeByte(MAGIC);
+        writer.writeByte(VERSION);
+        writer.writeByte(TAG_MESSAGE);
+        writeMessageHeader(writer, message);
+        return writer.toByteArray();
+    }
+
+    // 每个线程复用一个编码缓冲区 编码时不再反复扩容 最后只复制一次得到结果
+    private static final ThreadLocal<BinaryWriter> ENCODE_WRITER = ThreadLocal.withInitial(() -> new BinaryWriter(4096));
+    // 编码过大帧之后缓冲区不再保留 避免每个线程长期占用大块内存
+    private static final int MAX_RETAINED_WRITER_SIZE = 256 * 1024;
+
+    public static byte[] encode(Object object) {
+        BinaryWriter writer = ENCODE_WRITER.get();
+        writer.reset();
+        try {
+            writeObject(writer, object);
+            return writer.toByteArray();
+        } finally {
+            if (writer.capacity() > MAX_RETAINED_WRITER_SIZE) {
+                ENCODE_WRITER.remove();
+            }
+        }
+    }
+
+    private static void writeObject(BinaryWriter writer, Object object) {
+        writer.writeByte(MAGIC);
+        writer.writeByte(VERSION);
+        if (object instanceof Message) {
+            writer.writeByte(TAG_MESSAGE);
+            writeMessage(writer, (Message) object);
+        } else if (object instanceof BaseArguments) {
+            writeArguments(writer, (BaseArguments) object);
+        } else if (object instanceof BaseReturns) {
+            writeReturns(writer, (BaseReturns) object);
+        } else {
+            throw new MQException("[BinaryCodec] Unsupported type: " + (object == null ? null : object.getClass().getName()));
+        }
+    }
+
+    public static Object decode(byte[] data) {
+        return decode(data, data.length);
+    }
+
+    // 只解析 data 的前 length 个字节 data 可以是从 BufferPool 中取出的更长的数组
+    public static Object decode(byte[] data, int length) {
+        BinaryReader reader = new BinaryReader(data, 0, length);
+        if (reader.readByte() != MAGIC) {
+            throw new MQException("[BinaryCodec] Bad magic");
+        }
+        byte version = reader.readByte();
+        if (version != VERSION) {
+            throw new MQException("[BinaryCodec] Unsupported version: " + version);
+        }
+        byte tag = reader.readByte();
+        switch (tag) {
+            case TAG_MESSAGE:
+                return readMessage(reader);
+            case TAG_BASE_RETURNS:
+            case TAG_SUBSCRIBE_RETURNS:
+            case TAG_BASIC_PUBLISH_BATCH_RETURNS:
+            case TAG_CONFIRM_RETURNS:
+            case TAG_BASIC_GET_RETURNS:
+            case TAG_FLOW_RETURNS:
+                return readReturns(reader, tag);
+            default:
+                return readArguments(reader, tag);
+        }
+    }
+
+    // 针对各个请求参数
+    private static void writeArguments(BinaryWriter writer, BaseArguments arguments) {
+        if (arguments instanceof ExchangeDeclareArguments) {
+            ExchangeDeclareArguments args = (ExchangeDeclareArguments) arguments;
+            writeBase(writer, TAG_EXCHANGE_DECLARE, args);
+            writer.writeString(args.getExchangeName());
+            writer.writeByte(args.getExchangeType() == null ? -1 : args.getExchangeType().getType());
+            writer.writeBoolean(args.isDurable());
+            writer.writeBoolean(args.isAutoDelete());
+            writer.writeMap(args.getArguments());
+        } else if (arguments instanceof ExchangeDeleteArguments) {
+            ExchangeDeleteArguments args = (ExchangeDeleteArguments) arguments;
+            writeBase(writer, TAG_EXCHANGE_DELETE, args);
+            writer.writeString(args.getExchangeName());
+        } else if (arguments instanceof QueueDeclareArguments) {
+            QueueDeclareArguments args = (QueueDeclareArguments) arguments;
+            writeBase(writer, TAG_QUEUE_DECLARE, args);
+            writer.writeString(args.getQueueName());
+            writer.writeBoolean(args.isDurable());
+            writer.writeBoolean(args.isExclusive());
+            writer.writeBoolean(args.isAutoDelete());
+            writer.writeMap(args.getArguments());
+        } else if (arguments instanceof QueueDeleteArguments) {
+            QueueDeleteArguments args = (QueueDeleteArguments) arguments;
+            writeBase(writer, TAG_QUEUE_DELETE, args);
+            writer.writeString(args.getQueueName());
+        } else if (arguments instanceof QueueBindArguments) {
+            QueueBindArguments args = (QueueBindArguments) arguments;
+            writeBase(writer, TAG_QUEUE_BIND, args);
+            writer.writeString(args.getQueueName());
+            writer.writeString(args.getExchangeName());
+            writer.writeString(args.getBindingKey());
+        } else if (arguments instanceof QueueUnBindArguments) {
+            QueueUnBindArguments args = (QueueUnBindArguments) arguments;
+            writeBase(writer, TAG_QUEUE_UNBIND, args);
+            writer.writeString(args.getQueueName());
+            writer.writeString(args.getExchangeName());
+        } else if (arguments instanceof BasicPublishArguments) {
+            BasicPublishArguments args = (BasicPublishArguments) arguments;
+            writeBase(writer, TAG_BASIC_PUBLISH, args);
+            writer.writeString(args.getExchangeName());
+            writer.writeString(args.getRoutingKey());
+            writeProperties(writer, args.getBasicProperties());
+            writer.writeBytes(args.getBody());
+        } else if (arguments instanceof BasicConsumeArguments) {
+            BasicConsumeArguments args = (BasicConsumeArguments) arguments;
+            writeBase(writer, TAG_BASIC_CONSUME, args);
+            writer.writeString(args.getConsumerTag());
+            writer.writeString(args.getQueueName());
+            writer.writeBoolean(args.isAutoAck());
+        } else if (arguments instanceof BasicAckArguments) {
+            BasicAckArguments args = (BasicAckArguments) arguments;
+            writeBase(writer, TAG_BASIC_ACK, args);
+            writer.writeString(args.getQueueName());
+            writer.writeString(args.getMessageId());
+            writer.writeLong(args.getDeliveryTag());
+            writer.writeBoolean(args.isMultiple());
+        } else if (arguments instanceof BasicPublishBatchArguments) {
+            BasicPublishBatchArguments args = (BasicPublishBatchArguments) arguments;
+            writeBase(writer, TAG_BASIC_PUBLISH_BATCH, args);
+            writer.writeString(args.getExchangeName());
+            List<PublishMessage> messages = args.getMessages();
+            writer.writeVarInt(messages == null ? 0 : messages.size());
+            if (messages != null) {
+                for (PublishMessage message : messages) {
+                    writer.writeString(message.getRoutingKey());
+                    writeProperties(writer, message.getBasicProperties());
+                    writer.writeBytes(message.getBody());
+                }
+            }
+        } else if (arguments instanceof HandshakeArguments) {
+            HandshakeArguments args = (HandshakeArguments) arguments;
+            writeBase(writer, TAG_HANDSHAKE, args);
+            writer.writeVarInt(args.getCompressionThreshold());
+        } else if (arguments instanceof BasicQosArguments) {
+            BasicQosArguments args = (BasicQosArguments) arguments;
+            writeBase(writer, TAG_BASIC_QOS, args);
+            writer.writeVarInt(args.getPrefetchCount());
+        } else if (arguments instanceof BasicGetArguments) {
+            BasicGetArguments args = (BasicGetArguments) arguments;
+            writeBase(writer, TAG_BASIC_GET, args);
+            writer.writeString(args.getQueueName());
+            writer.writeVarInt(args.getMaxMessages());
+            writer.writeBoolean(args.isAutoAck());
+        } else if (arguments.getClass() == BaseArguments.class) {
+            writeBase(writer, TAG_BASE_ARGUMENTS, arguments);
+        } else {
+            throw new MQException("[BinaryCodec] Unsupported arguments: " + arguments.getClass().getName());
+        }
+    }
+
+    private static void writeBase(BinaryWriter writer, byte tag, BaseArguments arguments) {
+        writer.writeByte(tag);
+        writer.writeString(arguments.getRid());
+        writer.writeString(arguments.getChannelId());
+    }
+
+    private static BaseArguments readArguments(BinaryReader reader, byte tag) {
+        String rid = reader.readString();
+        String channelId = reader.readString();
+        BaseArguments arguments;
+        switch (tag) {
+            case TAG_BASE_ARGUMENTS:
+                arguments = new BaseArguments();
+                break;
+            case TAG_EXCHANGE_DECLARE: {
+                ExchangeDeclareArguments args = new ExchangeDeclareArguments();
+                args.setExchangeName(reader.readString());
+                args.setExchangeType(toExchangeType(reader.readByte()));
+                args.setDurable(reader.readBoolean());
+                args.setAutoDelete(reader.readBoolean());
+                args.setArguments(reader.readMap());
+                arguments = args;
+                break;
+            }
+            case TAG_EXCHANGE_DELETE: {
+                ExchangeDeleteArguments args = new ExchangeDeleteArguments();
+                args.setExchangeName(reader.readString());
+                arguments = args;
+                break;
+            }
+            case TAG_QUEUE_DECLARE: {
+                QueueDeclareArguments args = new QueueDeclareArguments();
+                args.setQueueName(reader.readString());
+                args.setDurable(reader.readBoolean());
+                args.setExclusive(reader.readBoolean());
+                args.setAutoDelete(reader.readBoolean());
+                args.setArguments(reader.readMap());
+                arguments = args;
+                break;
+            }
+            case TAG_QUEUE_DELETE: {
+                QueueDeleteArguments args = new QueueDeleteArguments();
+                args.setQueueName(reader.readString());
+                arguments = args;
+                break;
+            }
+            case TAG_QUEUE_BIND: {
+                QueueBindArguments args = new QueueBindArguments();
+                args.setQueueName(reader.readString());
+                args.setExchangeName(reader.readString());
+                args.setBindingKey(reader.readString());
+                arguments = args;
+                break;
+            }
+            case TAG_QUEUE_UNBIND: {
+                QueueUnBindArguments args = new QueueUnBindArguments();
+                args.setQueueName(reader.readString());
+                args.setExchangeName(reader.readString());
+                arguments = args;
+                break;
+            }
+            case TAG_BASIC_PUBLISH: {
+                BasicPublishArguments args = new BasicPublishArguments();
+                args.setExchangeName(reader.readString());
+                args.setRoutingKey(reader.readString());
+                args.setBasicProperties(readProperties(reader));
+                args.setBody(reader.readBytes());
+                arguments = args;
+                break;
+            }
+            case TAG_BASIC_CONSUME: {
+                BasicConsumeArguments args = new BasicConsumeArguments();
+                args.setConsumerTag(reader.readString());
+                args.setQueueName(reader.readString());
+                args.setAutoAck(reader.readBoolean());
+                arguments = args;
+                break;
+            }
+            case TAG_BASIC_ACK: {
+                BasicAckArguments args = new BasicAckArguments();
+                args.setQueueName(reader.readString());
+                args.setMessageId(reader.readString());
+                args.setDeliveryTag(reader.readLong());
+                args.setMultiple(reader.readBoolean());
+                arguments = args;
+                break;
+            }
+            case TAG_BASIC_PUBLISH_BATCH: {
+                BasicPublishBatchArguments args = new BasicPublishBatchArguments();
+                args.setExchangeName(reader.readString());
+                int n = reader.readCount();
+                List<PublishMessage> messages = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    String routingKey = reader.readString();
+                    BasicProperties properties = readProperties(reader);
+                    messages.add(new PublishMessage(routingKey, properties, reader.readBytes()));
+                }
+                args.setMessages(messages);
+                arguments = args;
+                break;
+            }
+            case TAG_BASIC_QOS: {
+                BasicQosArguments args = new BasicQosArguments();
+                args.setPrefetchCount(reader.readVarInt());
+                arguments = args;
+                break;
+            }
+            case TAG_BASIC_GET: {
+                BasicGetArguments args = new BasicGetArguments();
+                args.setQueueName(reader.readString());
+                args.setMaxMessages(reader.readVarInt());
+                args.setAutoAck(reader.readBoolean());
+                arguments = args;
+                break;
+            }
+            case TAG_HANDSHAKE: {
+                HandshakeArguments args = new HandshakeArguments();
+                args.setCompressionThreshold(reader.readVarInt());
+                arguments = args;
+                break;
+            }
+            default:
+                throw new MQException("[BinaryCodec] Unknown tag: " + tag);
+        }
+        arguments.setRid(rid);
+        arguments.setChannelId(channelId);
+        return arguments;
+    }
+
+    // 针对返回值
+    private static void writeReturns(BinaryWriter writer, BaseReturns returns) {
+        byte tag = TAG_BASE_RETURNS;
+        if (returns instanceof SubScribeReturns) {
+            tag = TAG_SUBSCRIBE_RETURNS;
+        } else if (returns instanceof BasicPublishBatchReturns) {
+            tag = TAG_BASIC_PUBLISH_BATCH_RETURNS;
+        } else if (returns instanceof ConfirmReturns) {
+            tag = TAG_CONFIRM_RETURNS;
+        } else if (returns instanceof BasicGetReturns) {
+            tag = TAG_BASIC_GET_RETURNS;
+        } else if (returns instanceof FlowReturns) {
+            tag = TAG_FLOW_RETURNS;
+        }
+        writer.writeByte(tag);
+        writer.writeString(returns.getRid());
+        writer.writeString(returns.getChannelId());
+        writer.writeBoolean(returns.isOk());
+        if (tag == TAG_SUBSCRIBE_RETURNS) {
+            SubScribeReturns subScribeReturns = (SubScribeReturns) returns;
+            writer.writeString(subScribeReturns.getConsumerTag());
+            writeProperties(writer, subScribeReturns.getProperties());
+            writer.writeBytes(subScribeReturns.getBody());
+            writer.writeLong(subScribeReturns.getDeliveryTag());
+        } else if (tag == TAG_BASIC_PUBLISH_BATCH_RETURNS) {
+            boolean[] results = ((BasicPublishBatchReturns) returns).getResults();
+            writer.writeVarInt(results == null ? 0 : results.length);
+            if (results != null) {
+                for (boolean result : results) {
+                    writer.writeBoolean(result);
+                }
+            }
+        } else if (tag == TAG_CONFIRM_RETURNS) {
+            ConfirmReturns confirmReturns = (ConfirmReturns) returns;
+            writer.writeLong(confirmReturns.getDeliveryTag());
+            writer.writeBoolean(confirmReturns.isMultiple());
+        } else if (tag == TAG_BASIC_GET_RETURNS) {
+            List<GetMessage> messages = ((BasicGetReturns) returns).getMessages();
+            writer.writeVarInt(messages == null ? 0 : messages.size());
+            if (messages != null) {
+                for (GetMessage message : messages) {
+                    writeProperties(writer, message.getBasicProperties());
+                    writer.writeBytes(message.getBody());
+                }
+            }
+        } else if (tag == TAG_FLOW_RETURNS) {
+            writer.writeBoolean(((FlowReturns) returns).isBlocked());
+        }
+    }
+
+    private static BaseReturns readReturns(BinaryReader reader, byte tag) {
+        BaseReturns returns;
+        if (tag == TAG_SUBSCRIBE_RETURNS) {
+            returns = new SubScribeReturns();
+        } else if (tag == TAG_BASIC_PUBLISH_BATCH_RETURNS) {
+            returns = new BasicPublishBatchReturns();
+        } else if (tag == TAG_CONFIRM_RETURNS) {
+            returns = new ConfirmReturns();
+        } else if (tag == TAG_BASIC_GET_RETURNS) {
+            returns = new BasicGetReturns();
+        } else if (tag == TAG_FLOW_RETURNS) {
+            returns = new FlowReturns();
+        } else {
+            returns = new BaseReturns();
+        }
+        returns.setRid(reader.readString());
+        returns.setChannelId(reader.readString());
+        returns.setOk(reader.readBoolean());
+        if (tag == TAG_SUBSCRIBE_RETURNS) {
+            SubScribeReturns subScribeReturns = (SubScribeReturns) returns;
+            subScribeReturns.setConsumerTag(reader.readString());
+            subScribeReturns.setProperties(readProperties(reader));
+            subScribeReturns.setBody(reader.readBytes());
+            subScribeReturns.setDeliveryTag(reader.readLong());
+        } else if (tag == TAG_BASIC_PUBLISH_BATCH_RETURNS) {
+            boolean[] results = new boolean[reader.readCount()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = reader.readBoolean();
+            }
+            ((BasicPublishBatchReturns) returns).setResults(results);
+        } else if (tag == TAG_CONFIRM_RETURNS) {
+            ConfirmReturns confirmReturns = (ConfirmReturns) returns;
+            confirmReturns.setDeliveryTag(reader.readLong());
+            confirmReturns.setMultiple(reader.readBoolean());
+        } else if (tag == TAG_BASIC_GET_RETURNS) {
+            int n = reader.readCount();
+            List<GetMessage> messages = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                BasicProperties properties = readProperties(reader);
+                messages.add(new GetMessage(properties, reader.readBytes()));
+            }
+            ((BasicGetReturns) returns).setMessages(messages);
+        } else if (tag == TAG_FLOW_RETURNS) {
+            ((FlowReturns) returns).setBlocked(reader.readBoolean());
+        }
+        return returns;
+    }
+
+    // 针对消息 isValid 放在最前面 位置固定
+    private static void writeMessage(BinaryWriter writer, Message message) {
+        writeMessageHeader(writer, message);
+        if (message.getBody() != null) {
+            writer.writeRaw(message.getBody(), 0, message.getBody().length);
+        }
+    }
+
+    // 消息体之前的部分 最后是消息体的长度
+    private static void writeMessageHeader(BinaryWriter writer, Message message) {
+        writer.writeByte(message.getIsValid());
+        writeProperties(writer, message.getBasicProperties());
+        writer.writeVarInt(message.getBody() == null ? 0 : message.getBody().length + 1);
+    }
+
+    private static Message readMessage(BinaryReader reader) {
+        Message message = new Message();
+        message.setIsValid(reader.readByte());
+        BasicProperties properties = readProperties(reader);
+        if (properties != null) {
+            message.setBasicProperties(properties);
+        }
+        message.setBody(reader.readBytes());
+        return message;
+    }
+
+    private static void writeProperties(BinaryWriter writer, BasicProperties properties) {
+        if (properties == null) {
+            writer.writeBoolean(false);
+            return;
+        }
+        writer.writeBoolean(true);
+        writer.writeString(properties.getMessageId());
+        writer.writeString(properties.getRoutingKey());
+        writer.writeVarInt(properties.getDeliverMode());
+    }
+
+    private static BasicProperties readProperties(BinaryReader reader) {
+        if (!reader.readBoolean()) {
+            return null;
+        }
+        BasicProperties properties = new BasicProperties();
+        properties.setMessageId(reader.readString());
+        properties.setRoutingKey(reader.readString());
+        properties.setDeliverMode(reader.readVarInt());
+        return properties;
+    }
+
+    private static ExchangeType toExchangeType(byte type) {
+        for (ExchangeType exchangeType : ExchangeType.values()) {
+            if (exchangeType.getType() == type) {
+                return exchangeType;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 可自动扩容的字节数组
+     */
+    public static class BinaryWriter {
+        // Map 中 value 的类型标记
+        private static final byte VALUE_NULL = 0;
+        private static final byte VALUE_STRING = 1;
+        private static final byte VALUE_INT = 2;
+        private static final byte VALUE_LONG = 3;
+        private static final byte VALUE_BOOLEAN = 4;
+        private static final byte VALUE_DOUBLE = 5;
+
+        private byte[] buffer;
+        private int position = 0;
+
+        public BinaryWriter(int initialCapacity) {
+            buffer = new byte[Math.max(16, initialCapacity)];
+        }
+
+        private void ensureCapacity(int more) {
+            if (position + more > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + more));
+            }
+        }
+
+        public void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        // 无符号变长整数 每个字节低 7 位存数据 最高位表示后面是否还有字节
+        public void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeLong(long value) {
+            ensureCapacity(8);
+            for (int i = 7; i >= 0; i--) {
+                buffer[position++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        public void writeRaw(byte[] data, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(data, offset, buffer, position, length);
+            position += length;
+        }
+
+        public void writeBytes(byte[] data) {
+            if (data == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(data.length + 1);
+            writeRaw(data, 0, data.length);
+        }
+
+        public void writeString(String value) {
+            writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public void writeMap(Map<String, Object> map) {
+            if (map == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(map.size() + 1);
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                writeString(entry.getKey());
+                Object value = entry.getValue();
+                if (value == null) {
+                    writeByte(VALUE_NULL);
+                } else if (value instanceof String) {
+                    writeByte(VALUE_STRING);
+                    writeString((String) value);
+                } else if (value instanceof Integer) {
+                    writeByte(VALUE_INT);
+                    writeLong((Integer) value);
+                } else if (value instanceof Long) {
+                    writeByte(VALUE_LONG);
+                    writeLong((Long) value);
+                } else if (value instanceof Boolean) {
+                    writeByte(VALUE_BOOLEAN);
+                    writeBoolean((Boolean) value);
+                } else if (value instanceof Double) {
+                    writeByte(VALUE_DOUBLE);
+                    writeLong(Double.doubleToLongBits((Double) value));
+                } else {
+                    throw new MQException("[BinaryCodec] Unsupported argument value type: " + value.getClass().getName());
+                }
+            }
+        }
+
+        public int size() {
+            return position;
+        }
+
+        int capacity() {
+            return buffer.length;
+        }
+
+        // 清空已写入的数据 保留缓冲区继续使用
+        public void reset() {
+            position = 0;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    /**
+     * 按顺序从字节数组中读取
+     */
+    public static class BinaryReader {
+        private final byte[] data;
+        private int position;
+        // 可读数据的结束位置
+        private final int limit;
+
+        public BinaryReader(byte[] data) {
+            this(data, 0);
+        }
+
+        public BinaryReader(byte[] data, int position) {
+            this(data, position, data.length);
+        }
+
+        public BinaryReader(byte[] data, int position, int limit) {
+            if (limit < 0 || limit > data.length) {
+                throw new MQException("[BinaryCodec] Bad limit: " + limit);
+            }
+            this.data = data;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        private void require(int n) {
+            if (n < 0 || position + n > limit) {
+                throw new MQException("[BinaryCodec] Unexpected end of data");
+            }
+        }
+
+        public byte readByte() {
+            require(1);
+            return data[position++];
+        }
+
+        public boolean readBoolean() {
+            return readByte() != 0;
+        }
+
+        public int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new MQException("[BinaryCodec] Malformed varint");
+        }
+
+        // 读出后面跟着的元素个数 按个数分配内存之前调用
+        // 每个元素至少占一个字节 个数超过剩下的数据长度说明数据是错的 不能按它分配内存
+        public int readCount() {
+            int n = readVarInt();
+            if (n < 0 || n > limit - position) {
+                throw new MQException("[BinaryCodec] Bad element count: " + n);
+            }
+            return n;
+        }
+
+        public long readLong() {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (data[position++] & 0xff);
+            }
+            return value;
+        }
+
+        public byte[] readBytes() {
+            int n = readVarInt();
+            if (n == 0) {
+                return null;
+            }
+            require(n - 1);
+            byte[] result = Arrays.copyOfRange(data, position, position + n - 1);
+            position += n - 1;
+            return result;
+        }
+
+        public String readString() {
+            int n = readVarInt();
+            if (n == 0) {
+                return null;
+            }
+            require(n - 1);
+            String result = new String(data, position, n - 1, StandardCharsets.UTF_8);
+            position += n - 1;
+            return result;
+        }
+
+        public Map<String, Object> readMap() {
+            int n = readVarInt();
+            if (n == 0) {
+                return null;
+            }
+            Map<String, Object> map = new HashMap<>();
+            for (int i = 0; i < n - 1; i++) {
+                String key = readString();
+                byte type = readByte();
+                switch (type) {
+                    case BinaryWriter.VALUE_NULL:
+                        map.put(key, null);
+                        break;
+                    case BinaryWriter.VALUE_STRING:
+                        map.put(key, readString());
+                        break;
+                    case BinaryWriter.VALUE_INT:
+                        map.put(key, (int) readLong());
+                        break;
+                    case BinaryWriter.VALUE_LONG:
+                        map.put(key, readLong());
+                        break;
+                    case BinaryWriter.VALUE_BOOLEAN:
+                        map.put(key, readBoolean());
+                        break;
+                    case BinaryWriter.VALUE_DOUBLE:
+                        map.put(key, Double.longBitsToDouble(readLong()));
+                        break;
+                    default:
+                        throw new MQException("[BinaryCodec] Unknown argument value type: " + type);
+                }
+            }
+            return map;
+        }
+
+        public int position() {
+            return position;
+        }
+    }
+}
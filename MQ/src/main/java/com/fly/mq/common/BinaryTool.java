@@ -5,7 +5,33 @@ import java.io.*;
 public class BinaryTool {
 
     // 将一个对象序列化成一个字节数组
+    // 请求参数/返回值/消息 都使用 BinaryCodec 的紧凑格式 不再使用 Java 原生序列化
     public static byte[] toBytes(Object object) throws IOException {
+        return BinaryCodec.encode(object);
+    }
+
+    // 将一个字节数组反序列化成一个对象
+    // 网络上收到的数据只按 BinaryCodec 的格式解码 不会走到 Java 原生序列化
+    public static Object fromBytes(byte[] data) throws IOException, ClassNotFoundException {
+        return fromBytes(data, data.length);
+    }
+
+    // 只反序列化 data 的前 length 个字节 用于从 BufferPool 中取出的数组
+    public static Object fromBytes(byte[] data, int length) throws IOException, ClassNotFoundException {
+        return BinaryCodec.decode(data, length);
+    }
+
+    // 反序列化从数据文件中读出的记录 只给 MessageFileManager 使用
+    // 兼容旧的数据文件: 以 0xACED 开头的是 Java 原生序列化的数据
+    public static Object fromFileBytes(byte[] data) throws IOException, ClassNotFoundException {
+        if (BinaryCodec.isLegacy(data)) {
+            return fromSerializedBytes(data);
+        }
+        return BinaryCodec.decode(data, data.length);
+    }
+
+    // 使用 Java 原生序列化 只用于改写旧数据文件中的消息（保持记录长度不变）
+    public static byte[] toSerializedBytes(Object object) throws IOException {
         // 相当于一个变长的字节数组
         // 就可以把一个 Object 序列化的数据逐渐的写入 ByteArrayOutputStream 流对象 在统一转成 byte[]
         try(ByteArrayOutputStream baos = new ByteArrayOutputStream()){
@@ -20,8 +46,8 @@ public class BinaryTool {
         }
     }
 
-    // 将一个字节数组反序列化成一个对象
-    public static Object fromBytes(byte[] data) throws IOException, ClassNotFoundException {
+    // 使用 Java 原生序列化反序列化
+    public static Object fromSerializedBytes(byte[] data) throws IOException, ClassNotFoundException {
         Object object = null;
         try(ByteArrayInputStream bais = new ByteArrayInputStream(data)){
             try(ObjectInputStream ois = new ObjectInputStream(bais)){
@@ -0,0 +1,63 @@
+package com.fly.mq.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 按大小分级的字节数组池 读帧和组帧时使用 避免每个帧都分配一个新的 byte[]
+ * 每一级的数组长度都是 2 的幂 从 MIN_SIZE 到 MAX_SIZE 超过 MAX_SIZE 的直接分配 不放回池中
+ * 取出的数组长度可能大于请求的大小 使用方需要自己记录实际长度
+ * 放回池中的数组不能再被任何地方引用
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 20;
+    public static final int MIN_SIZE = 1 << MIN_SHIFT;
+    public static final int MAX_SIZE = 1 << MAX_SHIFT;
+    // 每一级最多缓存的数组个数 小数组多缓存一些
+    private static final int SMALL_CLASS_LIMIT = 256;
+    private static final int LARGE_CLASS_LIMIT = 16;
+    // 不小于这个大小的算大数组
+    private static final int LARGE_SIZE = 64 * 1024;
+
+    // 下标 i 对应长度为 1 << (MIN_SHIFT + i) 的数组 ArrayBlockingQueue 放入和取出都不会分配节点对象
+    private static final List<ArrayBlockingQueue<byte[]>> POOLS = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+
+    static {
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            int size = 1 << shift;
+            POOLS.add(new ArrayBlockingQueue<>(size >= LARGE_SIZE ? LARGE_CLASS_LIMIT : SMALL_CLASS_LIMIT));
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // 取出一个长度不小于 size 的数组 内容是上一次使用留下的数据
+    public static byte[] acquire(int size) {
+        if (size > MAX_SIZE) {
+            return new byte[size];
+        }
+        int index = indexOf(size);
+        byte[] buffer = POOLS.get(index).poll();
+        return buffer != null ? buffer : new byte[1 << (MIN_SHIFT + index)];
+    }
+
+    // 放回池中 长度不是某一级大小的数组（不是从池中取出的）直接丢弃
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length < MIN_SIZE || buffer.length > MAX_SIZE
+                || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+        POOLS.get(Integer.numberOfTrailingZeros(buffer.length) - MIN_SHIFT).offer(buffer);
+    }
+
+    private static int indexOf(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        // 向上取整到 2 的幂
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,140 @@
+package com.fly.mq.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 分块传输的大消息体
+ * 消息体超过分块大小时不放在一个帧中 而是拆成一个开始帧和若干数据帧 接收方把数据帧依次拷贝到一个按总长度分配的数组中
+ * 开始帧 payload: streamId(4) + bodyLength(4) + 编码后的头部对象（不带消息体的 BasicPublishArguments / SubScribeReturns）
+ * 数据帧 payload: streamId(4) + 消息体中的一段 不带数据的数据帧表示发送方放弃这次传输 接收方丢弃已经收到的部分
+ * 同一个连接上可以同时有多个分块传输 不同传输的数据帧通过 streamId 区分 同一个传输的数据帧按顺序发送
+ */
+public class ChunkedBody {
+    // 客户端发送分块 publish 的开始帧 完成后的响应也是这个类型
+    public static final int PUBLISH_BEGIN = 0x15;
+    // 数据帧 两个方向共用
+    public static final int CHUNK = 0x16;
+    // 服务器推送分块消息的开始帧
+    public static final int DELIVERY_BEGIN = 0x17;
+
+    private final int streamId;
+    private final Object header;
+    private final byte[] body;
+    private int position = 0;
+    // 最后一次收到数据的时间 接收方据此丢弃长时间没有进展的传输
+    private long lastActiveTime = System.currentTimeMillis();
+
+    private ChunkedBody(int streamId, Object header, byte[] body) {
+        this.streamId = streamId;
+        this.header = header;
+        this.body = body;
+    }
+
+    public static byte[] beginPayload(int streamId, int bodyLength, Object header) throws IOException {
+        byte[] headerBytes = BinaryTool.toBytes(header);
+        byte[] payload = new byte[8 + headerBytes.length];
+        writeInt(payload, 0, streamId);
+        writeInt(payload, 4, bodyLength);
+        System.arraycopy(headerBytes, 0, payload, 8, headerBytes.length);
+        return payload;
+    }
+
+    public static byte[] chunkPayload(int streamId, byte[] data, int offset, int length) {
+        byte[] payload = new byte[4 + length];
+        writeInt(payload, 0, streamId);
+        System.arraycopy(data, offset, payload, 4, length);
+        return payload;
+    }
+
+    // 解析开始帧 按消息体的总长度分配好数组
+    // 长度是对方发来的 接收方应该先用 readBodyLength 检查 再调用 begin 分配
+    public static ChunkedBody begin(byte[] payload, int length) throws IOException, ClassNotFoundException {
+        int bodyLength = readBodyLength(payload, length);
+        return new ChunkedBody(readInt(payload, 0), readHeader(payload, length), new byte[bodyLength]);
+    }
+
+    // 只读出开始帧中消息体的总长度 不分配内存
+    public static int readBodyLength(byte[] payload, int length) throws IOException {
+        if (length < 8) {
+            throw new IOException("[ChunkedBody] 开始帧格式出错");
+        }
+        int bodyLength = readInt(payload, 4);
+        if (bodyLength < 0) {
+            throw new IOException("[ChunkedBody] 消息体长度出错 " + bodyLength);
+        }
+        return bodyLength;
+    }
+
+    // 解析开始帧中的头部对象
+    public static Object readHeader(byte[] payload, int length) throws IOException, ClassNotFoundException {
+        if (length < 8) {
+            throw new IOException("[ChunkedBody] 开始帧格式出错");
+        }
+        return BinaryTool.fromBytes(Arrays.copyOfRange(payload, 8, length));
+    }
+
+    // 放弃一次传输的数据帧
+    public static byte[] abortPayload(int streamId) {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, streamId);
+        return payload;
+    }
+
+    // 数据帧是否表示放弃这次传输
+    public static boolean isAbort(int length) {
+        return length == 4;
+    }
+
+    public static int readStreamId(byte[] payload, int length) throws IOException {
+        if (length < 4) {
+            throw new IOException("[ChunkedBody] 数据帧格式出错");
+        }
+        return readInt(payload, 0);
+    }
+
+    // 追加一个数据帧 返回消息体是否已经接收完整
+    public boolean append(byte[] payload, int length) throws IOException {
+        int count = length - 4;
+        if (count > body.length - position) {
+            throw new IOException("[ChunkedBody] 数据超过消息体长度 streamId=" + streamId);
+        }
+        System.arraycopy(payload, 4, body, position, count);
+        position += count;
+        lastActiveTime = System.currentTimeMillis();
+        return isComplete();
+    }
+
+    // 超过 timeoutMs 没有收到数据
+    public boolean isStalled(long now, long timeoutMs) {
+        return timeoutMs > 0 && now - lastActiveTime > timeoutMs;
+    }
+
+    public boolean isComplete() {
+        return position == body.length;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public Object getHeader() {
+        return header;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,83 @@
+package com.fly.mq.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 帧压缩的统计数据 用来判断压缩是否划算
+ * 客户端每个 Connection 一份 服务器所有连接共用一份
+ */
+public class CompressionStats {
+    // 压缩发送的帧数
+    private final AtomicLong compressedFrames = new AtomicLong();
+    // 超过阈值但压缩后没有变小 按原样发送的帧数
+    private final AtomicLong skippedFrames = new AtomicLong();
+    // 被压缩的帧压缩前后的字节数
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    // 收到并解压的帧数
+    private final AtomicLong decompressedFrames = new AtomicLong();
+    // 压缩和解压花费的时间（纳秒）
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    void recordCompress(int rawLength, int compressedLength, long nanos) {
+        compressedFrames.incrementAndGet();
+        rawBytes.addAndGet(rawLength);
+        compressedBytes.addAndGet(compressedLength);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordSkip(long nanos) {
+        skippedFrames.incrementAndGet();
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordDecompress(long nanos) {
+        decompressedFrames.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    public long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    // 压缩节省的字节数
+    public long getSavedBytes() {
+        return rawBytes.get() - compressedBytes.get();
+    }
+
+    public long getDecompressedFrames() {
+        return decompressedFrames.get();
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionStats{compressedFrames=" + getCompressedFrames()
+                + ", skippedFrames=" + getSkippedFrames()
+                + ", rawBytes=" + getRawBytes()
+                + ", compressedBytes=" + getCompressedBytes()
+                + ", decompressedFrames=" + getDecompressedFrames()
+                + ", compressMs=" + getCompressNanos() / 1_000_000
+                + ", decompressMs=" + getDecompressNanos() / 1_000_000 + "}";
+    }
+}
@@ -0,0 +1,19 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * 发布确认 服务器在 confirm 模式下异步推送给生产者
+ * ok 为 true 表示 ack false 表示 nack
+ * multiple 为 true 表示 deliveryTag 及之前所有还未确认的消息都被确认
+ */
+@Getter
+@Setter
+public class ConfirmReturns extends BaseReturns implements Serializable {
+    // 消息在 channel 中的序号 从 1 开始递增
+    private long deliveryTag;
+    private boolean multiple;
+}
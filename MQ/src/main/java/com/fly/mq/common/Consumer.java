@@ -1,6 +1,7 @@
 package com.fly.mq.common;
 
 import com.fly.mq.mqserver.core.BasicProperties;
+import com.fly.mq.mqserver.core.MSGQueue;
 import com.fly.mq.mqserver.core.Message;
 
 import java.io.IOException;
@@ -13,4 +14,21 @@ import java.io.IOException;
 public interface Consumer {
     // Delivery 投递
     void handleDelivery(String consumerTag, BasicProperties basicProperties,byte[] body) throws IOException;
+
+    // 带上投递序号 需要按 deliveryTag 确认消息（basicAck multiple）的消费者重写这个方法
+    default void handleDelivery(String consumerTag, long deliveryTag, BasicProperties basicProperties, byte[] body) throws IOException {
+        handleDelivery(consumerTag, basicProperties, body);
+    }
+
+    // readsBodyFromFile 返回 true 时 服务器投递消息调用这个方法 带上消息所在的队列和完整的 Message
+    // 恢复出来的持久化消息 body 为 null 由消费者自己从文件中读取
+    // BrokerServer 借助它拿到持久化消息在队列文件中的位置 直接把文件中的数据发送给消费者
+    default void handleDelivery(String consumerTag, long deliveryTag, MSGQueue queue, Message message) throws IOException {
+        handleDelivery(consumerTag, deliveryTag, message.getBasicProperties(), message.getBody());
+    }
+
+    // 是否自己读取持久化消息的消息体 返回 false 时服务器先读出消息体再调用带 body 的 handleDelivery
+    default boolean readsBodyFromFile() {
+        return false;
+    }
 }
@@ -1,14 +1,21 @@
 package com.fly.mq.common;
 
-import lombok.AllArgsConstructor;
+import com.fly.mq.mqserver.core.Message;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * 表示一个消费者（完整的执行环境）
  */
 @Data
-@AllArgsConstructor
 @NoArgsConstructor
 public class ConsumerEnv {
     private String consumerTag;
@@ -16,5 +23,78 @@ public class ConsumerEnv {
     private boolean autoAck;
     // 通过这个函数式接口处理收到的消息
     private Consumer consumer;
+    // 预取数量 最多同时有多少条推送了但还没有确认的消息 0 表示不限制 autoAck 时不生效
+    private int prefetchCount;
+    // 推送了但还没有确认的消息数
+    private AtomicInteger unackedCount = new AtomicInteger(0);
+    // 投递序号 每推送一条消息加一 客户端可以用它确认消息
+    // 客户端一个 channel 只有一个消费者（consumerTag 就是 channelId） 所以也就是 channel 级别的序号
+    private AtomicLong deliveryTagSeq = new AtomicLong(0);
+    // 推送了但还没有确认的消息 key: deliveryTag
+    private ConcurrentSkipListMap<Long, Message> unackedMessages = new ConcurrentSkipListMap<>();
+    // key: messageId value: deliveryTag 按 messageId 确认时使用
+    private ConcurrentHashMap<String, Long> unackedTags = new ConcurrentHashMap<>();
+
+    public ConsumerEnv(String consumerTag, String queueName, boolean autoAck, Consumer consumer) {
+        this(consumerTag, queueName, autoAck, consumer, 0);
+    }
+
+    public ConsumerEnv(String consumerTag, String queueName, boolean autoAck, Consumer consumer, int prefetchCount) {
+        this.consumerTag = consumerTag;
+        this.queueName = queueName;
+        this.autoAck = autoAck;
+        this.consumer = consumer;
+        this.prefetchCount = prefetchCount;
+    }
+
+    public long nextDeliveryTag() {
+        return deliveryTagSeq.incrementAndGet();
+    }
+
+    // 记录一条推送给这个消费者 等待确认的消息
+    public void addUnacked(long deliveryTag, Message message) {
+        unackedTags.put(message.getMessageId(), deliveryTag);
+        unackedMessages.put(deliveryTag, message);
+        unackedCount.incrementAndGet();
+    }
+
+    // 按 messageId 确认
+    public Message removeUnacked(String messageId) {
+        Long deliveryTag = unackedTags.remove(messageId);
+        if (deliveryTag == null) {
+            return null;
+        }
+        Message message = unackedMessages.remove(deliveryTag);
+        if (message != null) {
+            unackedCount.decrementAndGet();
+        }
+        return message;
+    }
+
+    // 按 deliveryTag 确认 multiple 为 true 时 deliveryTag 及之前所有未确认的消息一起确认
+    public List<Message> removeUnacked(long deliveryTag, boolean multiple) {
+        List<Message> messages = new ArrayList<>();
+        if (!multiple) {
+            Message message = unackedMessages.remove(deliveryTag);
+            if (message != null) {
+                messages.add(message);
+            }
+        } else {
+            for (Map.Entry<Long, Message> entry : unackedMessages.headMap(deliveryTag, true).entrySet()) {
+                if (unackedMessages.remove(entry.getKey()) != null) {
+                    messages.add(entry.getValue());
+                }
+            }
+        }
+        for (Message message : messages) {
+            unackedTags.remove(message.getMessageId());
+            unackedCount.decrementAndGet();
+        }
+        return messages;
+    }
 
+    // 是否还可以继续给这个消费者推送消息
+    public boolean hasCapacity() {
+        return autoAck || prefetchCount <= 0 || unackedCount.get() < prefetchCount;
+    }
 }
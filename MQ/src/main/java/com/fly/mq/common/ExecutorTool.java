@@ -0,0 +1,58 @@
+package com.fly.mq.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 根据 ThreadMode 创建线程池
+ * 项目按 JDK 17 编译 虚拟线程相关的 API 通过 MethodHandle 查找
+ * 运行在 JDK 21+ 上时使用虚拟线程 否则退回到平台线程
+ */
+public class ExecutorTool {
+    // Executors.newVirtualThreadPerTaskExecutor() 不存在时为 null
+    private static final MethodHandle NEW_VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    private static MethodHandle findVirtualExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // 当前 JVM 是否支持虚拟线程
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    // 创建固定大小的线程池 VIRTUAL 模式下每个任务一个虚拟线程 nThreads 不生效
+    public static ExecutorService newFixedThreadPool(ThreadMode mode, int nThreads) {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor(mode);
+        return executor != null ? executor : Executors.newFixedThreadPool(nThreads);
+    }
+
+    // 创建可缓存的线程池 VIRTUAL 模式下每个任务一个虚拟线程
+    public static ExecutorService newCachedThreadPool(ThreadMode mode) {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor(mode);
+        return executor != null ? executor : Executors.newCachedThreadPool();
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor(ThreadMode mode) {
+        if (mode != ThreadMode.VIRTUAL) {
+            return null;
+        }
+        if (NEW_VIRTUAL_EXECUTOR == null) {
+            System.out.println("[ExecutorTool] 当前 JVM 不支持虚拟线程 使用平台线程 java.version=" + System.getProperty("java.version"));
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke();
+        } catch (Throwable e) {
+            throw new MQException("[ExecutorTool] create virtual thread executor failed: " + e.getMessage());
+        }
+    }
+}
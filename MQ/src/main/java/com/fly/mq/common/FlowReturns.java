@@ -0,0 +1,16 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * 发布流控通知 服务器的流控状态改变时推送给所有连接
+ * blocked 为 true 表示服务器已经暂停读取发布请求 这时继续发布会阻塞在 socket 上
+ */
+@Getter
+@Setter
+public class FlowReturns extends BaseReturns implements Serializable {
+    private boolean blocked;
+}
@@ -0,0 +1,135 @@
+package com.fly.mq.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 帧级别的 payload 压缩
+ * 连接建立时客户端和服务器协商压缩阈值 之后 payload 长度不小于阈值的帧才会压缩
+ * 压缩过的帧在 type 上带有 FLAG_COMPRESSED 标志位 payload 格式: originalLength(4) + deflate 数据
+ */
+public class FrameCompressor {
+    // type 的标志位 表示 payload 是压缩过的 真正的 type 在低位
+    public static final int FLAG_COMPRESSED = 0x10000;
+    // 解压后 payload 的最大长度 防止错误的数据导致分配过大的内存
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    private final int threshold;
+    private final CompressionStats stats;
+
+    public FrameCompressor(int threshold, CompressionStats stats) {
+        this.threshold = threshold;
+        this.stats = stats;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public static boolean isCompressed(int type) {
+        return (type & FLAG_COMPRESSED) != 0;
+    }
+
+    // 去掉标志位得到真正的 type
+    public static int rawType(int type) {
+        return type & ~FLAG_COMPRESSED;
+    }
+
+    // 需要压缩的请求 压缩 payload 并设置标志位
+    public Request compress(Request request) {
+        byte[] compressed = compressPayload(request.getPayload(), request.getLength());
+        if (compressed == null) {
+            return request;
+        }
+        Request result = new Request();
+        result.setType(request.getType() | FLAG_COMPRESSED);
+        result.setLength(compressed.length);
+        result.setPayload(compressed);
+        return result;
+    }
+
+    public Response compress(Response response) {
+        byte[] compressed = compressPayload(response.getPayload(), response.getLength());
+        if (compressed == null) {
+            return response;
+        }
+        Response result = new Response();
+        result.setType(response.getType() | FLAG_COMPRESSED);
+        result.setLength(compressed.length);
+        result.setPayload(compressed);
+        return result;
+    }
+
+    // 不需要压缩或者压缩后没有变小 返回 null
+    private byte[] compressPayload(byte[] payload, int length) {
+        if (length < threshold) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 4);
+            out.write(length >>> 24);
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+                if (out.size() >= length) {
+                    // 压缩后没有变小 直接发送原始数据
+                    stats.recordSkip(System.nanoTime() - start);
+                    return null;
+                }
+            }
+            byte[] compressed = out.toByteArray();
+            stats.recordCompress(length, compressed.length, System.nanoTime() - start);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // 解压收到的 payload 不论是否协商过压缩 带有标志位的帧都可以解压
+    public static byte[] decompress(byte[] payload, CompressionStats stats) throws IOException {
+        return decompress(payload, payload.length, stats);
+    }
+
+    // 只解压 payload 的前 payloadLength 个字节
+    public static byte[] decompress(byte[] payload, int payloadLength, CompressionStats stats) throws IOException {
+        long start = System.nanoTime();
+        if (payloadLength < 4) {
+            throw new IOException("[FrameCompressor] 压缩数据格式出错");
+        }
+        int length = ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16)
+                | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("[FrameCompressor] 压缩数据格式出错 length=" + length);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload, 4, payloadLength - 4);
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(result, offset, length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("[FrameCompressor] 压缩数据不完整");
+                }
+                offset += n;
+            }
+            stats.recordDecompress(System.nanoTime() - start);
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("[FrameCompressor] 压缩数据格式出错", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
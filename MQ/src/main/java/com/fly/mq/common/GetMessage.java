@@ -0,0 +1,20 @@
+package com.fly.mq.common;
+
+import com.fly.mq.mqserver.core.BasicProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * basicGet 拉取到的一条消息
+ * 手动确认时使用 basicProperties 中的 messageId 调用 basicAck
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class GetMessage implements Serializable {
+    private BasicProperties basicProperties;
+    private byte[] body;
+}
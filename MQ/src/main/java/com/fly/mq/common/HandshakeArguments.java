@@ -0,0 +1,16 @@
+package com.fly.mq.common;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Serializable;
+
+/**
+ * 连接建立时客户端发送的握手请求 用于协商连接级别的选项
+ */
+@Getter
+@Setter
+public class HandshakeArguments extends BaseArguments implements Serializable {
+    // 客户端希望使用的压缩阈值 payload 不小于这个长度的帧才压缩 0 表示不压缩
+    private int compressionThreshold;
+}
@@ -0,0 +1,20 @@
+package com.fly.mq.common;
+
+import com.fly.mq.mqserver.core.BasicProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * 批量发送中的一条消息
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class PublishMessage implements Serializable {
+    private String routingKey;
+    private BasicProperties basicProperties;
+    private byte[] body;
+}
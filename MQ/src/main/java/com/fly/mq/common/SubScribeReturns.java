@@ -12,4 +12,6 @@ public class SubScribeReturns extends BaseReturns implements Serializable {
     private String consumerTag;
     private BasicProperties properties;
     private byte[] body;
+    // 投递序号 按 deliveryTag 确认消息时使用
+    private long deliveryTag;
 }
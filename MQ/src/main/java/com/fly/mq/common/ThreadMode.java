@@ -0,0 +1,24 @@
+package com.fly.mq.common;
+
+/**
+ * 表示任务运行在哪种线程上
+ * PLATFORM: 普通的平台线程（固定大小/可缓存的线程池）
+ * VIRTUAL: 虚拟线程（JDK 21+） 每个任务一个虚拟线程 阻塞的回调不会占住有限的线程
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    // 从配置中解析 未配置或无法识别时默认使用 PLATFORM
+    public static ThreadMode of(String name) {
+        if (name == null || name.isEmpty()) {
+            return PLATFORM;
+        }
+        for (ThreadMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name.trim())) {
+                return mode;
+            }
+        }
+        return PLATFORM;
+    }
+}
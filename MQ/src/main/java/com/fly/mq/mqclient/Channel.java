@@ -3,13 +3,24 @@ package com.fly.mq.mqclient;
 import com.fly.mq.common.*;
 import com.fly.mq.mqserver.core.BasicProperties;
 import com.fly.mq.mqserver.core.ExchangeType;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Getter
 @Setter
@@ -17,64 +28,155 @@ public class Channel {
     private String channelId;
     // 记录当前 channel 属于哪个连接
     private Connection connection;
-    // 用来存储后续从服务器获取到的响应
-    private ConcurrentHashMap<String, BaseReturns> basicReturnsMap = new ConcurrentHashMap<>();
+    // 还没有收到响应的请求 key: rid value: 收到响应时完成的 future
+    // 每个请求有自己的 future 收到响应只唤醒等待这个请求的线程
+    private ConcurrentHashMap<String, CompletableFuture<BaseReturns>> pendingReturnsMap = new ConcurrentHashMap<>();
+    // 是否开启了发布确认
+    private volatile boolean confirmMode = false;
+    // confirm 模式下还没有收到响应的分块 publish 它们不参与序号 waitForConfirms 时一起等待
+    private final Set<CompletableFuture<BaseReturns>> chunkedPublishes = ConcurrentHashMap.newKeySet();
+    // 下一条 publish 的序号 和服务器分配的序号一一对应
+    private long nextPublishSeqNo = 1;
+    // 分配序号和发送要在同一把锁内 保证序号的顺序就是服务器收到的顺序
+    private final ReentrantLock publishLock = new ReentrantLock();
+    // 还没有收到确认的消息 key: 序号 value: 收到确认时完成的 future
+    private ConcurrentSkipListMap<Long, CompletableFuture<BaseReturns>> unconfirmedMap = new ConcurrentSkipListMap<>();
     // 消费者的回调. 对于消息响应, 调用这个回调处理消息
     private Consumer consumer;
+    // 推送给这个 channel 的消息按顺序在这个通道中执行回调
+    @Getter(AccessLevel.PACKAGE)
+    private final DispatchLane dispatchLane;
     //private final ConcurrentHashMap<String, Consumer> consumerMap = new ConcurrentHashMap<>();
 
     public Channel(String channelId, Connection connection) {
         this.channelId = channelId;
         this.connection = connection;
+        this.dispatchLane = connection.newDispatchLane();
     }
 
     // 和服务器交互 创建一个 channel
     public boolean createChannel() throws IOException {
         // 对于创建 channel 来说 payload 即是一个 basicArguments
         BaseArguments baseArguments = new BaseArguments();
-        baseArguments.setChannelId(channelId);
-        baseArguments.setRid(generateRid());
-        byte[] payload = BinaryTool.toBytes(baseArguments);
+        return waitResult(sendRequest(0x1, baseArguments)).isOk();
+    }
+
+    // 发送请求 返回一个在收到响应时完成的 future
+    // 先登记 future 再发送 避免响应比登记先到
+    private CompletableFuture<BaseReturns> sendRequest(int type, BaseArguments arguments) throws IOException {
+        prepareArguments(arguments);
+        CompletableFuture<BaseReturns> future = new CompletableFuture<>();
+        pendingReturnsMap.put(arguments.getRid(), future);
+        try {
+            // 发送请求
+            connection.send(this, type, arguments);
+        } catch (IOException e) {
+            pendingReturnsMap.remove(arguments.getRid());
+            throw e;
+        }
+        return future;
+    }
 
-        // 构造请求
-        Request request = new Request();
-        request.setType(0x1);
-        request.setLength(payload.length);
-        request.setPayload(payload);
+    // confirm 模式下发送 publish 服务器不会逐条响应
+    // 返回的 future 在收到覆盖这个序号的确认时完成
+    private CompletableFuture<BaseReturns> sendConfirmRequest(int type, BaseArguments arguments) throws IOException {
+        prepareArguments(arguments);
+        CompletableFuture<BaseReturns> future = new CompletableFuture<>();
+        publishLock.lock();
+        try {
+            long seq = nextPublishSeqNo;
+            unconfirmedMap.put(seq, future);
+            try {
+                connection.send(this, type, arguments);
+            } catch (IOException e) {
+                unconfirmedMap.remove(seq);
+                throw e;
+            }
+            nextPublishSeqNo++;
+        } finally {
+            publishLock.unlock();
+        }
+        return future;
+    }
 
-        // 发送请求
-        connection.writeRequest(request);
+    // 分块 publish 由服务器收完整个消息体之后单独响应 不管是否开启了 confirm 模式
+    private CompletableFuture<BaseReturns> sendChunkedRequest(BasicPublishArguments arguments, InputStream body, int length) throws IOException {
+        prepareArguments(arguments);
+        CompletableFuture<BaseReturns> future = new CompletableFuture<>();
+        pendingReturnsMap.put(arguments.getRid(), future);
+        if (confirmMode) {
+            chunkedPublishes.add(future);
+            future.whenComplete((returns, cause) -> chunkedPublishes.remove(future));
+        }
+        try {
+            connection.sendChunked(this, arguments, body, length);
+        } catch (IOException e) {
+            pendingReturnsMap.remove(arguments.getRid());
+            future.completeExceptionally(e);
+            throw e;
+        }
+        return future;
+    }
 
-        // 等待服务器响应
-        BaseReturns basicReturns = waitResult(baseArguments.getRid());
-        return basicReturns.isOk();
+    private void prepareArguments(BaseArguments arguments) {
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
     }
 
     // 阻塞等待服务器响应
-    private BaseReturns waitResult(String rid) {
-        BaseReturns basicReturns = null;
-        // 循环的去读看看有没有收到服务器的响应
-        while((basicReturns = basicReturnsMap.get(rid)) == null) {
-            // 如果为空说明还没有收到服务器的响应
-            // 需要阻塞等待
-            synchronized (this) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+    private BaseReturns waitResult(CompletableFuture<BaseReturns> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[Channel] 等待响应被中断 channelId=" + channelId, e);
+        } catch (ExecutionException e) {
+            throw new IOException("[Channel] 请求失败 channelId=" + channelId, e.getCause());
         }
-        basicReturnsMap.remove(rid);
-        return basicReturns;
     }
 
-    // 将服务器响应的数据放入 map 中唤醒所有线程 再让 waitResult 查询是否收到了自己的响应
+    // 收到服务器的响应 完成 rid 对应的 future
     public void putReturns(BaseReturns basicReturns) {
-        basicReturnsMap.put(basicReturns.getRid(), basicReturns);
-        // 当前也不清楚有多少等待的线程 直接唤醒所有的
-        synchronized (this) {
-            notifyAll();
+        CompletableFuture<BaseReturns> future = pendingReturnsMap.remove(basicReturns.getRid());
+        if (future == null) {
+            System.out.println("[Channel] 收到未知的响应 rid=" + basicReturns.getRid());
+            return;
+        }
+        future.complete(basicReturns);
+    }
+
+    // 收到服务器的发布确认
+    // multiple 为 true 时 deliveryTag 及之前所有还没确认的消息一起完成
+    public void handleConfirm(ConfirmReturns confirmReturns) {
+        if (!confirmReturns.isMultiple()) {
+            CompletableFuture<BaseReturns> future = unconfirmedMap.remove(confirmReturns.getDeliveryTag());
+            if (future != null) {
+                future.complete(confirmReturns);
+            }
+            return;
+        }
+        ConcurrentNavigableMap<Long, CompletableFuture<BaseReturns>> confirmed = unconfirmedMap.headMap(confirmReturns.getDeliveryTag(), true);
+        for (Long seq : confirmed.keySet()) {
+            CompletableFuture<BaseReturns> future = unconfirmedMap.remove(seq);
+            if (future != null) {
+                future.complete(confirmReturns);
+            }
+        }
+    }
+
+    // 连接断开时 所有还在等待的请求都以异常结束
+    public void failPendingReturns(Throwable cause) {
+        for (String rid : pendingReturnsMap.keySet()) {
+            CompletableFuture<BaseReturns> future = pendingReturnsMap.remove(rid);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+        for (Long seq : unconfirmedMap.keySet()) {
+            CompletableFuture<BaseReturns> future = unconfirmedMap.remove(seq);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
         }
     }
 
@@ -84,174 +186,195 @@ public class Channel {
 
     public boolean close() throws IOException {
         BaseArguments basicArguments = new BaseArguments();
-        basicArguments.setChannelId(channelId);
-        basicArguments.setRid(generateRid());
-        byte[] payload = BinaryTool.toBytes(basicArguments);
-
-        // 构造请求
-        Request request = new Request();
-        request.setType(0x2);
-        request.setLength(payload.length);
-        request.setPayload(payload);
+        return waitResult(sendRequest(0x2, basicArguments)).isOk();
+    }
 
-        // 发送请求
-        connection.writeRequest(request);
-        // 等待服务器响应
-        BaseReturns basicReturns = waitResult(basicArguments.getRid());
+    // 开启发布确认
+    // 之后的 publish 不再逐条等待响应 服务器按序号异步推送 "确认到 N" 的帧
+    public boolean confirmSelect() throws IOException {
+        BaseArguments baseArguments = new BaseArguments();
+        boolean ok = waitResult(sendRequest(0xe, baseArguments)).isOk();
+        if (ok) {
+            confirmMode = true;
+        }
+        return ok;
+    }
 
-        return basicReturns.isOk();
+    // 等待目前为止发送的所有消息都被确认 全部是 ack 返回 true
+    public boolean waitForConfirms() throws IOException {
+        boolean ok = true;
+        for (CompletableFuture<BaseReturns> future : new ArrayList<>(unconfirmedMap.values())) {
+            ok &= waitResult(future).isOk();
+        }
+        for (CompletableFuture<BaseReturns> future : new ArrayList<>(chunkedPublishes)) {
+            ok &= waitResult(future).isOk();
+        }
+        return ok;
     }
 
     // 创建交换机
     public boolean exchangeDeclare(String exchangeName, ExchangeType exchangeType, boolean durable, boolean autoDelete, Map<String,Object> arguments) throws IOException {
-        ExchangeDeclareArguments exchangeDeclareArguments = new ExchangeDeclareArguments();
+        return waitResult(exchangeDeclareAsync(exchangeName, exchangeType, durable, autoDelete, arguments)).isOk();
+    }
 
-        exchangeDeclareArguments.setRid(generateRid());
-        exchangeDeclareArguments.setChannelId(channelId);
+    public CompletableFuture<BaseReturns> exchangeDeclareAsync(String exchangeName, ExchangeType exchangeType, boolean durable, boolean autoDelete, Map<String,Object> arguments) throws IOException {
+        ExchangeDeclareArguments exchangeDeclareArguments = new ExchangeDeclareArguments();
         exchangeDeclareArguments.setExchangeName(exchangeName);
         exchangeDeclareArguments.setExchangeType(exchangeType);
         exchangeDeclareArguments.setDurable(durable);
         exchangeDeclareArguments.setAutoDelete(autoDelete);
         exchangeDeclareArguments.setArguments(arguments);
-
-        byte[] payload = BinaryTool.toBytes(exchangeDeclareArguments);
-        Request request = new Request();
-        request.setType(0x3);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(exchangeDeclareArguments.getRid());
-
-        return basicReturns.isOk();
+        return sendRequest(0x3, exchangeDeclareArguments);
     }
 
     // 删除交换机
     public boolean exchangeDelete(String exchangeName) throws IOException {
+        return waitResult(exchangeDeleteAsync(exchangeName)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> exchangeDeleteAsync(String exchangeName) throws IOException {
         ExchangeDeleteArguments exchangeDeleteArguments = new ExchangeDeleteArguments();
-        exchangeDeleteArguments.setRid(generateRid());
-        exchangeDeleteArguments.setChannelId(channelId);
         exchangeDeleteArguments.setExchangeName(exchangeName);
-        byte[] payload = BinaryTool.toBytes(exchangeDeleteArguments);
-
-        Request request = new Request();
-        request.setType(0x4);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(exchangeDeleteArguments.getRid());
-
-        return basicReturns.isOk();
+        return sendRequest(0x4, exchangeDeleteArguments);
     }
 
     // 创建队列
     public boolean queueDeclare(String queueName, boolean durable, boolean exclusive, boolean autoDelete, Map<String,Object> arguments) throws IOException {
+        return waitResult(queueDeclareAsync(queueName, durable, exclusive, autoDelete, arguments)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> queueDeclareAsync(String queueName, boolean durable, boolean exclusive, boolean autoDelete, Map<String,Object> arguments) throws IOException {
         QueueDeclareArguments queueDeclareArguments = new QueueDeclareArguments();
-        queueDeclareArguments.setRid(generateRid());
-        queueDeclareArguments.setChannelId(channelId);
         queueDeclareArguments.setQueueName(queueName);
         queueDeclareArguments.setDurable(durable);
         queueDeclareArguments.setExclusive(exclusive);
         queueDeclareArguments.setAutoDelete(autoDelete);
         queueDeclareArguments.setArguments(arguments);
-        byte[] payload = BinaryTool.toBytes(queueDeclareArguments);
-
-        Request request = new Request();
-        request.setType(0x5);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(queueDeclareArguments.getRid());
-
-        return basicReturns.isOk();
+        return sendRequest(0x5, queueDeclareArguments);
     }
 
     // 删除队列
     public boolean queueDelete(String queueName) throws IOException {
+        return waitResult(queueDeleteAsync(queueName)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> queueDeleteAsync(String queueName) throws IOException {
         QueueDeleteArguments queueDeleteArguments = new QueueDeleteArguments();
-        queueDeleteArguments.setRid(generateRid());
-        queueDeleteArguments.setChannelId(channelId);
         queueDeleteArguments.setQueueName(queueName);
-        byte[] payload = BinaryTool.toBytes(queueDeleteArguments);
-
-        Request request = new Request();
-        request.setType(0x6);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(queueDeleteArguments.getRid());
-
-        return basicReturns.isOk();
+        return sendRequest(0x6, queueDeleteArguments);
     }
 
     // 绑定
     public boolean queueBind(String exchangeName, String queueName, String bindingKey) throws IOException {
+        return waitResult(queueBindAsync(exchangeName, queueName, bindingKey)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> queueBindAsync(String exchangeName, String queueName, String bindingKey) throws IOException {
         QueueBindArguments queueBindArguments = new QueueBindArguments();
-        queueBindArguments.setRid(generateRid());
-        queueBindArguments.setChannelId(channelId);
         queueBindArguments.setExchangeName(exchangeName);
         queueBindArguments.setQueueName(queueName);
         queueBindArguments.setBindingKey(bindingKey);
-        byte[] payload = BinaryTool.toBytes(queueBindArguments);
-
-        Request request = new Request();
-        request.setType(0x7);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(queueBindArguments.getRid());
-
-        return basicReturns.isOk();
+        return sendRequest(0x7, queueBindArguments);
     }
 
     // 解除绑定
     public boolean queueUnbind(String exchangeName, String queueName) throws IOException {
+        return waitResult(queueUnbindAsync(exchangeName, queueName)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> queueUnbindAsync(String exchangeName, String queueName) throws IOException {
         QueueUnBindArguments queueUnBindArguments = new QueueUnBindArguments();
-        queueUnBindArguments.setRid(generateRid());
-        queueUnBindArguments.setChannelId(channelId);
         queueUnBindArguments.setExchangeName(exchangeName);
         queueUnBindArguments.setQueueName(queueName);
-        byte[] payload = BinaryTool.toBytes(queueUnBindArguments);
-
-        Request request = new Request();
-        request.setType(0x8);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(queueUnBindArguments.getRid());
-
-        return basicReturns.isOk();
+        return sendRequest(0x8, queueUnBindArguments);
     }
 
     // 发送消息
     public boolean basicPublish(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException {
+        return waitResult(basicPublishAsync(exchangeName, routingKey, basicProperties, body)).isOk();
+    }
+
+    // 异步发送消息 不等待响应直接返回 同一个连接上可以同时有大量消息在途
+    // confirm 模式下返回的 future 在收到服务器的发布确认时完成
+    public CompletableFuture<BaseReturns> basicPublishAsync(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] body) throws IOException {
         BasicPublishArguments basicPublishArguments = new BasicPublishArguments();
-        basicPublishArguments.setRid(generateRid());
-        basicPublishArguments.setChannelId(channelId);
         basicPublishArguments.setExchangeName(exchangeName);
         basicPublishArguments.setRoutingKey(routingKey);
         basicPublishArguments.setBasicProperties(basicProperties);
+        if (body != null && connection.getChunkSize() > 0 && body.length > connection.getChunkSize()) {
+            return sendChunkedRequest(basicPublishArguments, new ByteArrayInputStream(body), body.length);
+        }
         basicPublishArguments.setBody(body);
-        byte[] payload = BinaryTool.toBytes(basicPublishArguments);
+        if (confirmMode) {
+            return sendConfirmRequest(0x9, basicPublishArguments);
+        }
+        return sendRequest(0x9, basicPublishArguments);
+    }
 
-        Request request = new Request();
-        request.setType(0x9);
-        request.setLength(payload.length);
-        request.setPayload(payload);
+    // 从输入流中分块读取 length 个字节作为消息体发送 客户端不需要把整个消息体放在内存中
+    // 适合发送文件等很大的消息 消费者收到的仍然是完整的 byte[]
+    public boolean basicPublish(String exchangeName, String routingKey, BasicProperties basicProperties, InputStream body, int length) throws IOException {
+        return waitResult(basicPublishAsync(exchangeName, routingKey, basicProperties, body, length)).isOk();
+    }
 
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(basicPublishArguments.getRid());
+    public CompletableFuture<BaseReturns> basicPublishAsync(String exchangeName, String routingKey, BasicProperties basicProperties, InputStream body, int length) throws IOException {
+        BasicPublishArguments basicPublishArguments = new BasicPublishArguments();
+        basicPublishArguments.setExchangeName(exchangeName);
+        basicPublishArguments.setRoutingKey(routingKey);
+        basicPublishArguments.setBasicProperties(basicProperties);
+        return sendChunkedRequest(basicPublishArguments, body, length);
+    }
 
-        return basicReturns.isOk();
+    // 批量发送消息 多条消息放在一个请求中 服务器一次处理完整批再响应
+    // 返回值 results[i] 表示第 i 条消息是否投递成功
+    public boolean[] basicPublishBatch(String exchangeName, List<PublishMessage> messages) throws IOException {
+        BasicPublishBatchReturns returns = (BasicPublishBatchReturns) waitResult(basicPublishBatchAsync(exchangeName, messages));
+        return returns.getResults();
+    }
+
+    public CompletableFuture<BaseReturns> basicPublishBatchAsync(String exchangeName, List<PublishMessage> messages) throws IOException {
+        BasicPublishBatchArguments basicPublishBatchArguments = new BasicPublishBatchArguments();
+        basicPublishBatchArguments.setExchangeName(exchangeName);
+        basicPublishBatchArguments.setMessages(messages);
+        return sendRequest(0xd, basicPublishBatchArguments);
+    }
+
+    // 设置预取数量 对之后调用 basicConsume 创建的消费者生效
+    // 服务器给一个手动确认的消费者最多推送 prefetchCount 条未确认的消息 确认之后再继续推送 0 表示不限制
+    public boolean basicQos(int prefetchCount) throws IOException {
+        return waitResult(basicQosAsync(prefetchCount)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> basicQosAsync(int prefetchCount) throws IOException {
+        BasicQosArguments basicQosArguments = new BasicQosArguments();
+        basicQosArguments.setPrefetchCount(prefetchCount);
+        return sendRequest(0x12, basicQosArguments);
+    }
+
+    // 主动从队列拉取消息 一次最多取 maxMessages 条 队列为空时返回空列表
+    // autoAck 为 false 时需要用消息的 messageId 调用 basicAck
+    public List<GetMessage> basicGet(String queueName, int maxMessages, boolean autoAck) throws IOException {
+        BaseReturns returns = waitResult(basicGetAsync(queueName, maxMessages, autoAck));
+        if (!returns.isOk()) {
+            throw new MQException("[Channel] basicGet failed queueName = " + queueName);
+        }
+        return ((BasicGetReturns) returns).getMessages();
+    }
+
+    public CompletableFuture<BaseReturns> basicGetAsync(String queueName, int maxMessages, boolean autoAck) throws IOException {
+        BasicGetArguments basicGetArguments = new BasicGetArguments();
+        basicGetArguments.setQueueName(queueName);
+        basicGetArguments.setMaxMessages(maxMessages);
+        basicGetArguments.setAutoAck(autoAck);
+        return sendRequest(0x13, basicGetArguments);
     }
 
     // 订阅消息
     public boolean basicConsume(String queueName,boolean autoAck, Consumer consumer) throws MQException, IOException {
+        return waitResult(basicConsumeAsync(queueName, autoAck, consumer)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> basicConsumeAsync(String queueName,boolean autoAck, Consumer consumer) throws MQException, IOException {
         // 先设置回调
         if(this.consumer != null) {
             throw new MQException("[basicConsume] consumer is already set");
@@ -264,42 +387,36 @@ public class Channel {
 //        }
 
         BasicConsumeArguments basicConsumeArguments = new BasicConsumeArguments();
-        basicConsumeArguments.setRid(generateRid());
-        basicConsumeArguments.setChannelId(channelId);
         basicConsumeArguments.setConsumerTag(channelId); // consumerTag 也设为 channelId
         basicConsumeArguments.setQueueName(queueName);
         basicConsumeArguments.setAutoAck(autoAck);
-        byte[] payload = BinaryTool.toBytes(basicConsumeArguments);
-
-        Request request = new Request();
-        request.setType(0xa);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(basicConsumeArguments.getRid());
-
-        return basicReturns.isOk();
+        return sendRequest(0xa, basicConsumeArguments);
     }
 
     // 手动 ack
     public boolean basicAck(String queueName, String messageId) throws IOException {
+        return waitResult(basicAckAsync(queueName, messageId)).isOk();
+    }
+
+    public CompletableFuture<BaseReturns> basicAckAsync(String queueName, String messageId) throws IOException {
         BasicAckArguments basicAckArguments = new BasicAckArguments();
-        basicAckArguments.setRid(generateRid());
-        basicAckArguments.setChannelId(channelId);
         basicAckArguments.setQueueName(queueName);
         basicAckArguments.setMessageId(messageId);
-        byte[] payload = BinaryTool.toBytes(basicAckArguments);
-
-        Request request = new Request();
-        request.setType(0xb);
-        request.setLength(payload.length);
-        request.setPayload(payload);
+        return sendRequest(0xb, basicAckArguments);
+    }
 
-        connection.writeRequest(request);
-        BaseReturns basicReturns = waitResult(basicAckArguments.getRid());
+    // 按投递序号确认 deliveryTag 从 Consumer.handleDelivery(consumerTag, deliveryTag, ...) 中获取
+    // multiple 为 true 时确认 deliveryTag 及之前所有还没确认的消息 一次请求可以确认一大批消息
+    public boolean basicAck(String queueName, long deliveryTag, boolean multiple) throws IOException {
+        return waitResult(basicAckAsync(queueName, deliveryTag, multiple)).isOk();
+    }
 
-        return basicReturns.isOk();
+    public CompletableFuture<BaseReturns> basicAckAsync(String queueName, long deliveryTag, boolean multiple) throws IOException {
+        BasicAckArguments basicAckArguments = new BasicAckArguments();
+        basicAckArguments.setQueueName(queueName);
+        basicAckArguments.setDeliveryTag(deliveryTag);
+        basicAckArguments.setMultiple(multiple);
+        return sendRequest(0xb, basicAckArguments);
     }
 
 }
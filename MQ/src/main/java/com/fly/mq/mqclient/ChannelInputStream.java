@@ -0,0 +1,39 @@
+package com.fly.mq.mqclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 阻塞模式 SocketChannel 的输入流
+ * 不使用 Channels.newInputStream: 它在读的时候持有 channel 的 blockingLock
+ * 读线程阻塞等待响应时 其他线程通过 Channels.newOutputStream 发送请求也要获取这把锁 会一直等下去
+ */
+class ChannelInputStream extends InputStream {
+    private final SocketChannel socketChannel;
+
+    ChannelInputStream(SocketChannel socketChannel) {
+        this.socketChannel = socketChannel;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        return socketChannel.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void close() throws IOException {
+        socketChannel.close();
+    }
+}
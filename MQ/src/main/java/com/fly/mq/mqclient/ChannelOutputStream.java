@@ -0,0 +1,36 @@
+package com.fly.mq.mqclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 阻塞模式 SocketChannel 的输出流 和 ChannelInputStream 配合使用 读和写可以在不同线程中同时进行
+ */
+class ChannelOutputStream extends OutputStream {
+    private final SocketChannel socketChannel;
+
+    ChannelOutputStream(SocketChannel socketChannel) {
+        this.socketChannel = socketChannel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        // 阻塞模式下 write 也可能只写出一部分
+        while (buffer.hasRemaining()) {
+            socketChannel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socketChannel.close();
+    }
+}
@@ -1,17 +1,33 @@
 package com.fly.mq.mqclient;
 
 import com.fly.mq.common.*;
+import com.fly.mq.mqserver.core.Message;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Connection {
-    private Socket socket;
+    // 分块传输时每个数据帧携带的消息体长度
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    // 输出缓冲区大小 和 SocketSession 一样 小的帧在缓冲区中合并 超过缓冲区的 payload 直接写出
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    // TCP 连接时是 Socket Unix domain socket 连接时是 SocketChannel
+    private Closeable transport;
+    private volatile boolean closed = false;
     // 使用这个 map 来管理多个 Channel 对象
     private ConcurrentHashMap<String, Channel> channelMap = new ConcurrentHashMap<>();
 
@@ -20,99 +36,352 @@ public class Connection {
     private DataInputStream dataInputStream;
     private DataOutputStream dataOutputStream;
 
-    // 用于执行消费者自己的回调函数
+    // 用于执行消费者自己的回调函数 所有 channel 的回调通道共用
     private ExecutorService callbackExecutor;
+    // 每个 channel 的回调通道最多积压的回调个数 0 表示不限制
+    private final int laneCapacity;
+    // 多个 channel 可能在不同线程中同时发送请求 加锁保证请求不会交错写入
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // 和服务器协商好压缩之后才不为 null
+    private FrameCompressor compressor;
+    private final CompressionStats compressionStats = new CompressionStats();
+    // 服务器是否正在对发布进行流控 流控期间发布请求会阻塞在 socket 上
+    private volatile boolean blocked = false;
+    // 消息体超过这个长度的 publish 拆成多个帧发送 0 表示不拆分
+    private int chunkSize = 0;
+    // 分块 publish 的编号 同一个连接上的多个分块传输通过它区分
+    private final AtomicInteger streamSeq = new AtomicInteger(0);
+    // 正在接收的分块推送 只在读线程中访问 key: streamId
+    private final Map<Integer, ChunkedBody> chunkedDeliveries = new HashMap<>();
+
+    // 给 LocalConnection 使用 只创建执行回调的线程池 不建立网络连接
+    Connection(ThreadMode callbackThreadMode, int callbackThreads, int laneCapacity) {
+        this.laneCapacity = laneCapacity;
+        callbackExecutor = ExecutorTool.newFixedThreadPool(callbackThreadMode, callbackThreads);
+    }
 
     public Connection(String host, int port) throws IOException {
-        socket = new Socket(host,port);
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
+        this(host, port, ThreadMode.PLATFORM, 4);
+    }
+
+    public Connection(String host, int port, ThreadMode callbackThreadMode, int callbackThreads) throws IOException {
+        this(host, port, callbackThreadMode, callbackThreads, 0);
+    }
+
+    // callbackThreadMode: 执行消费者回调的线程类型 VIRTUAL 模式下每次回调一个虚拟线程 callbackThreads 不生效
+    // compressionThreshold: payload 不小于这个长度的帧才压缩 0 表示不压缩 也不发送握手请求
+    public Connection(String host, int port, ThreadMode callbackThreadMode, int callbackThreads, int compressionThreshold) throws IOException {
+        this(host, port, callbackThreadMode, callbackThreads, compressionThreshold, 0);
+    }
+
+    // laneCapacity: 每个 channel 最多积压多少条还没执行回调的消息 积压满了之后读线程阻塞 不再读取 socket
+    // 0 表示不限制 限制时不要在回调中同步等待服务器的响应 否则读线程阻塞后响应无法被读取
+    public Connection(String host, int port, ThreadMode callbackThreadMode, int callbackThreads, int compressionThreshold,
+                      int laneCapacity) throws IOException {
+        this(host, port, callbackThreadMode, callbackThreads, compressionThreshold, laneCapacity, DEFAULT_CHUNK_SIZE);
+    }
+
+    // chunkSize: 消息体超过这个长度的 publish 拆成一个开始帧和若干数据帧发送 0 表示不拆分
+    public Connection(String host, int port, ThreadMode callbackThreadMode, int callbackThreads, int compressionThreshold,
+                      int laneCapacity, int chunkSize) throws IOException {
+        this.laneCapacity = laneCapacity;
+        this.chunkSize = chunkSize;
+        Socket socket = new Socket(host,port);
+        init(socket, socket.getInputStream(), socket.getOutputStream(), callbackThreadMode, callbackThreads, compressionThreshold);
+    }
+
+    // 通过 Unix domain socket 连接和服务器在同一台机器上的 broker 帧格式和 TCP 完全一致
+    // socketPath 对应服务器配置的 mq.unix-socket-path
+    public Connection(Path socketPath, ThreadMode callbackThreadMode, int callbackThreads, int compressionThreshold,
+                      int laneCapacity, int chunkSize) throws IOException {
+        this.laneCapacity = laneCapacity;
+        this.chunkSize = chunkSize;
+        SocketChannel socketChannel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        init(socketChannel, new ChannelInputStream(socketChannel), new ChannelOutputStream(socketChannel),
+                callbackThreadMode, callbackThreads, compressionThreshold);
+    }
+
+    private void init(Closeable transport, InputStream inputStream, OutputStream outputStream, ThreadMode callbackThreadMode,
+                      int callbackThreads, int compressionThreshold) throws IOException {
+        this.transport = transport;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
         dataInputStream = new DataInputStream(inputStream);
-        dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, WRITE_BUFFER_SIZE));
+
+        if (compressionThreshold > 0) {
+            handshake(compressionThreshold);
+        }
 
-        callbackExecutor = Executors.newFixedThreadPool(4);
+        callbackExecutor = ExecutorTool.newFixedThreadPool(callbackThreadMode, callbackThreads);
 
         // 创建一个扫描线程不停的从 socket 中读取响应数据交给对应的 channel 处理
         Thread t = new Thread(() -> {
             try {
-                while (!socket.isClosed()) {
+                while (!closed) {
                     Response response = readResponse();
 
-                    dispatchResponse(response);
+                    try {
+                        dispatchResponse(response);
+                    } finally {
+                        // 解析出来的对象不会引用 payload 处理完就放回池中
+                        BufferPool.release(response.getPayload());
+                    }
                 }
-            }catch (SocketException e ){
-                // 忽略此异常
+            }catch (SocketException | ClosedChannelException e){
+                // 忽略此异常 关闭 SocketChannel 时阻塞中的读操作抛出 AsynchronousCloseException
                 System.out.println("[Connection] 连接正常断开");
             }catch (IOException | ClassNotFoundException e){
                 System.out.println("[Connection] 连接异常断开");
                 e.printStackTrace();
             }
+            // 连接断开之后不会再有响应 让还在等待的请求都结束
+            failPendingReturns(new IOException("[Connection] 连接已断开"));
         });
         t.start();
     }
 
+    // 在扫描线程启动之前和服务器握手 同步等待握手的响应
+    // 服务器同意压缩后 双方超过阈值的帧都会压缩
+    private void handshake(int compressionThreshold) throws IOException {
+        HandshakeArguments handshakeArguments = new HandshakeArguments();
+        handshakeArguments.setRid("R-" + UUID.randomUUID());
+        handshakeArguments.setChannelId("");
+        handshakeArguments.setCompressionThreshold(compressionThreshold);
+        byte[] payload = BinaryTool.toBytes(handshakeArguments);
+
+        Request request = new Request();
+        request.setType(0x10);
+        request.setLength(payload.length);
+        request.setPayload(payload);
+        writeRequest(request);
+
+        Response response = readResponse();
+        try {
+            BaseReturns baseReturns = (BaseReturns) BinaryTool.fromBytes(response.getPayload(), response.getLength());
+            BufferPool.release(response.getPayload());
+            if (baseReturns.isOk()) {
+                compressor = new FrameCompressor(compressionThreshold, compressionStats);
+            }
+            System.out.println("[Connection] 握手完成 compression: " + baseReturns.isOk());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("[Connection] 握手响应格式出错", e);
+        }
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    DispatchLane newDispatchLane() {
+        return new DispatchLane(callbackExecutor, laneCapacity);
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
     // 关闭 Connection 释放资源
     public void close(){
         try{
+            closed = true;
             callbackExecutor.shutdownNow();
+            failPendingReturns(new IOException("[Connection] 连接已关闭"));
             channelMap.clear();
-            inputStream.close();
-            outputStream.close();
-            socket.close();
+            closeTransport();
         }catch (IOException e){
             e.printStackTrace();
         }
     }
 
+    void closeTransport() throws IOException {
+        inputStream.close();
+        outputStream.close();
+        transport.close();
+    }
+
+    private void failPendingReturns(Throwable cause) {
+        for (Channel channel : channelMap.values()) {
+            channel.failPendingReturns(cause);
+        }
+    }
+
     // 使用这个方法分别处理 当前响应是一个针对控制请求的响应 还是服务器推送消息的响应
     private void dispatchResponse(Response response) throws IOException, ClassNotFoundException {
-        if(response.getType() == 0xc){
+        if(response.getType() == 0xc || response.getType() == 0x11){
             // 服务器推送的数据消息
-            SubScribeReturns scribeReturns = (SubScribeReturns) BinaryTool.fromBytes(response.getPayload());
-            Channel channel = channelMap.get(scribeReturns.getChannelId());
+            SubScribeReturns scribeReturns = response.getType() == 0xc
+                    ? (SubScribeReturns) BinaryTool.fromBytes(response.getPayload(), response.getLength())
+                    : readFileDelivery(response.getPayload(), response.getLength());
+            dispatchDelivery(scribeReturns);
+        }else if(response.getType() == ChunkedBody.DELIVERY_BEGIN){
+            // 分块推送的开始帧 按总长度分配好消息体 之后的数据帧依次拷贝进去
+            ChunkedBody chunked = ChunkedBody.begin(response.getPayload(), response.getLength());
+            if (chunked.isComplete()) {
+                dispatchChunkedDelivery(chunked);
+            } else {
+                chunkedDeliveries.put(chunked.getStreamId(), chunked);
+            }
+        }else if(response.getType() == ChunkedBody.CHUNK){
+            int streamId = ChunkedBody.readStreamId(response.getPayload(), response.getLength());
+            ChunkedBody chunked = chunkedDeliveries.get(streamId);
+            if(chunked == null){
+                throw new MQException("[Connection] 未知的分块推送 streamId=" + streamId);
+            }
+            if (chunked.append(response.getPayload(), response.getLength())) {
+                chunkedDeliveries.remove(streamId);
+                dispatchChunkedDelivery(chunked);
+            }
+        }else{
+            // 控制请求的响应数据
+            BaseReturns baseReturns = (BaseReturns) BinaryTool.fromBytes(response.getPayload(), response.getLength());
+            if(response.getType() == 0x14){
+                // 服务器的发布流控通知 不属于任何 channel
+                blocked = ((FlowReturns) baseReturns).isBlocked();
+                System.out.println("[Connection] flow " + (blocked ? "blocked" : "resumed") + " by server");
+                return;
+            }
+            Channel channel = channelMap.get(baseReturns.getChannelId());
             if(channel == null){
                 throw new MQException("[Connection] 对应的 Channel 在客户端中不存在");
             }
-            // 将回调方法交给线程池
-            callbackExecutor.submit(() -> {
+            if(response.getType() == 0xf){
+                // 服务器推送的发布确认
+                channel.handleConfirm((ConfirmReturns) baseReturns);
+            }else{
+                channel.putReturns(baseReturns);
+            }
+        }
+    }
+
+    private void dispatchChunkedDelivery(ChunkedBody chunked) throws IOException {
+        SubScribeReturns scribeReturns = (SubScribeReturns) chunked.getHeader();
+        scribeReturns.setBody(chunked.getBody());
+        dispatchDelivery(scribeReturns);
+    }
+
+    private void dispatchDelivery(SubScribeReturns scribeReturns) throws IOException {
+        Channel channel = channelMap.get(scribeReturns.getChannelId());
+        if(channel == null){
+            throw new MQException("[Connection] 对应的 Channel 在客户端中不存在");
+        }
+        // 将回调方法交给这个 channel 的回调通道 同一个 channel 的消息按推送顺序执行
+        try {
+            channel.getDispatchLane().submit(() -> {
                 try {
-                    channel.getConsumer().handleDelivery(scribeReturns.getConsumerTag(),scribeReturns.getProperties(),scribeReturns.getBody());
+                    channel.getConsumer().handleDelivery(scribeReturns.getConsumerTag(),scribeReturns.getDeliveryTag(),scribeReturns.getProperties(),scribeReturns.getBody());
                     //channel.getConsumerMap().get(scribeReturns.getConsumerTag()).handleDelivery(scribeReturns.getConsumerTag(),scribeReturns.getProperties(),scribeReturns.getBody());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             });
-        }else{
-            // 控制请求的响应数据
-            BaseReturns baseReturns = (BaseReturns) BinaryTool.fromBytes(response.getPayload());
-            Channel channel = channelMap.get(baseReturns.getChannelId());
-            if(channel == null){
-                throw new MQException("[Connection] 对应的 Channel 在客户端中不存在");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[Connection] 等待回调通道被中断", e);
+        }
+    }
+
+    // 解析 0x11 推送: headerLength(4) + 不带属性和消息体的 SubScribeReturns + 服务器队列文件中的消息记录
+    private SubScribeReturns readFileDelivery(byte[] payload, int length) throws IOException, ClassNotFoundException {
+        int headerLength = ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16)
+                | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+        if (length < 4 || headerLength < 0 || 4 + headerLength > length) {
+            throw new IOException("[Connection] 推送消息格式出错");
+        }
+        SubScribeReturns scribeReturns = (SubScribeReturns) BinaryTool.fromBytes(Arrays.copyOfRange(payload, 4, 4 + headerLength));
+        Message message = (Message) BinaryTool.fromBytes(Arrays.copyOfRange(payload, 4 + headerLength, length));
+        scribeReturns.setProperties(message.getBasicProperties());
+        scribeReturns.setBody(message.getBody());
+        return scribeReturns;
+    }
+
+    // channel 发送一个请求 参数编码之后作为帧的 payload 写入 socket
+    void send(Channel channel, int type, BaseArguments arguments) throws IOException {
+        writeFrame(type, BinaryTool.toBytes(arguments));
+    }
+
+    // 分块发送一条 publish 先发开始帧 再从输入流中每次读取 chunkSize 个字节作为一个数据帧发送
+    // 每个帧单独加锁写入 其他 channel 的请求可以穿插在数据帧之间 整个消息体不需要放在内存中
+    // 输入流提前结束或者读取出错时发送一个不带数据的数据帧 让服务器丢弃已经收到的部分
+    void sendChunked(Channel channel, BasicPublishArguments arguments, InputStream body, int length) throws IOException {
+        int streamId = streamSeq.incrementAndGet();
+        writeFrame(ChunkedBody.PUBLISH_BEGIN, ChunkedBody.beginPayload(streamId, length, arguments));
+        byte[] buffer = new byte[Math.min(chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE, length)];
+        int remaining = length;
+        while (remaining > 0) {
+            int n;
+            try {
+                n = body.readNBytes(buffer, 0, Math.min(buffer.length, remaining));
+                if (n == 0) {
+                    throw new IOException("[Connection] 消息体数据不足 还差 " + remaining + " 字节");
+                }
+            } catch (IOException e) {
+                writeFrame(ChunkedBody.CHUNK, ChunkedBody.abortPayload(streamId));
+                throw e;
             }
-            channel.putReturns(baseReturns);
+            writeFrame(ChunkedBody.CHUNK, ChunkedBody.chunkPayload(streamId, buffer, 0, n));
+            remaining -= n;
         }
     }
 
+    private void writeFrame(int type, byte[] payload) throws IOException {
+        Request request = new Request();
+        request.setType(type);
+        request.setLength(payload.length);
+        request.setPayload(payload);
+        writeRequest(request);
+    }
+
     // 发送请求
     public void writeRequest(Request request) throws IOException {
-        dataOutputStream.writeInt(request.getType());
-        dataOutputStream.writeInt(request.getLength());
-        dataOutputStream.write(request.getPayload());
-        dataOutputStream.flush();
+        // 压缩在加锁之前进行 不占用写锁
+        if (compressor != null) {
+            request = compressor.compress(request);
+        }
+        // 帧头和 payload 直接写入带缓冲的输出流 不再拷贝到一个新的数组中 flush 时一起发送
+        writeLock.lock();
+        try {
+            dataOutputStream.writeInt(request.getType());
+            dataOutputStream.writeInt(request.getLength());
+            dataOutputStream.write(request.getPayload(), 0, request.getLength());
+            dataOutputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
 
         System.out.println("[Connection] 发送请求! type=" + request.getType() + ", length=" + request.getLength());
     }
 
     // 读取响应
+    // payload 数组从 BufferPool 中取出 长度可能大于 length 使用完之后调用方放回池中
     public Response readResponse() throws IOException {
         try {
             Response response = new Response();
             response.setType(dataInputStream.readInt());
             response.setLength(dataInputStream.readInt());
-            byte[] payload = new byte[response.getLength()];
+            if (response.getLength() < 0) {
+                throw new IOException("读取响应格式出错!");
+            }
+            byte[] payload = BufferPool.acquire(response.getLength());
 
-            dataInputStream.readFully(payload);
+            dataInputStream.readFully(payload, 0, response.getLength());
             response.setPayload(payload);
+            if (FrameCompressor.isCompressed(response.getType())) {
+                payload = FrameCompressor.decompress(payload, response.getLength(), compressionStats);
+                BufferPool.release(response.getPayload());
+                response.setType(FrameCompressor.rawType(response.getType()));
+                response.setLength(payload.length);
+                response.setPayload(payload);
+            }
             System.out.println("[Connection] 收到响应! type=" + response.getType() + ", length=" + response.getLength());
             return response;
         }catch (EOFException e){
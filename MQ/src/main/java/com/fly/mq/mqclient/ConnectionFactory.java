@@ -1,9 +1,12 @@
 package com.fly.mq.mqclient;
 
+import com.fly.mq.common.ThreadMode;
+import com.fly.mq.mqserver.VirtualHost;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 @Getter
 @Setter
@@ -12,10 +15,33 @@ public class ConnectionFactory {
     private String host;
     private int port;
 
+    // 执行消费者回调的线程类型 VIRTUAL 需要运行在 JDK 21+ 上
+    private ThreadMode callbackThreadMode = ThreadMode.PLATFORM;
+    // PLATFORM 模式下执行消费者回调的线程个数
+    private int callbackThreads = 4;
+    // payload 不小于这个长度的帧才压缩 0 表示不压缩
+    // 连接建立时和服务器协商 服务器不同意则不压缩
+    private int compressionThreshold = 0;
+    // 每个 channel 按顺序执行回调 最多积压多少条还没执行回调的消息 0 表示不限制
+    // 积压满了之后连接的读线程会阻塞 回调中不要同步等待服务器的响应
+    private int laneCapacity = 0;
+    // 设置之后通过这个路径上的 Unix domain socket 连接本机的 broker 不再使用 host 和 port
+    private String unixSocketPath;
+    // 消息体超过这个长度的 publish 拆成多个帧发送 0 表示不拆分
+    private int chunkSize = Connection.DEFAULT_CHUNK_SIZE;
+    // 设置之后和这个 VirtualHost 在同一个 JVM 中直接调用 不经过网络和序列化 优先于上面的地址
+    private VirtualHost virtualHost;
+
     // 扩展部分 TODO
 
     public Connection newConnection() throws IOException {
-        Connection connection = new Connection(host,port);
+        if (virtualHost != null) {
+            return new LocalConnection(virtualHost,callbackThreadMode,callbackThreads,laneCapacity);
+        }
+        if (unixSocketPath != null) {
+            return new Connection(Path.of(unixSocketPath),callbackThreadMode,callbackThreads,compressionThreshold,laneCapacity,chunkSize);
+        }
+        Connection connection = new Connection(host,port,callbackThreadMode,callbackThreads,compressionThreshold,laneCapacity,chunkSize);
         return connection;
     }
 }
@@ -0,0 +1,68 @@
+package com.fly.mq.mqclient;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个 channel 的消费者回调通道
+ * 同一个通道中的回调按推送的顺序一个接一个执行 不同通道共用连接的回调线程池 彼此可以并行
+ * 通道不占用固定的线程 有回调要执行时才向线程池提交一次 一次最多连续执行 BATCH 个 避免一个通道长期占住线程
+ */
+class DispatchLane implements Runnable {
+    // 一次提交连续执行的回调个数 执行完还有剩余就重新提交 让其他通道也有机会执行
+    private static final int BATCH = 64;
+
+    private final ExecutorService executor;
+    private final LinkedBlockingQueue<Runnable> tasks;
+    // 是否已经提交给线程池 保证同一时刻最多一个线程在执行这个通道的回调
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // capacity: 最多积压多少个未执行的回调 0 表示不限制
+    // 积压满了之后读线程会阻塞 不再读取 socket
+    DispatchLane(ExecutorService executor, int capacity) {
+        this.executor = executor;
+        this.tasks = capacity > 0 ? new LinkedBlockingQueue<>(capacity) : new LinkedBlockingQueue<>();
+    }
+
+    void submit(Runnable task) throws InterruptedException {
+        tasks.put(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // 连接已经关闭 线程池不再接受任务
+                scheduled.set(false);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("[DispatchLane] consumer callback threw exception");
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        // 放行之后再检查一次 期间新加入的回调不会因为看到 scheduled 为 true 而没人执行
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.fly.mq.mqclient;
+
+import com.fly.mq.common.*;
+import com.fly.mq.mqserver.RequestHandler;
+import com.fly.mq.mqserver.VirtualHost;
+import com.fly.mq.mqserver.core.BasicProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 和 broker 在同一个 JVM 中的连接
+ * 请求参数不编码成帧 直接交给和 BrokerServer 共用的 RequestHandler 处理 响应和推送给消费者的消息也不经过序列化
+ * 对外的 API 和网络连接完全一样 通过 ConnectionFactory.setVirtualHost 切换
+ * 消息体在生产者 broker 和消费者之间是同一个数组 发布之后和回调中都不要修改 body
+ */
+class LocalConnection extends Connection {
+    // 和 BrokerServer 共用的请求处理逻辑 每个连接一个 channel 的状态随连接一起释放
+    private final RequestHandler<Channel> requestHandler;
+
+    LocalConnection(VirtualHost virtualHost, ThreadMode callbackThreadMode, int callbackThreads, int laneCapacity) {
+        super(callbackThreadMode, callbackThreads, laneCapacity);
+        this.requestHandler = new RequestHandler<>(virtualHost, new RequestHandler.Transport<>() {
+            @Override
+            public Consumer newConsumer(Channel channel, String consumerTag) {
+                return new Consumer() {
+                    @Override
+                    public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) throws IOException {
+                        handleDelivery(consumerTag, 0, basicProperties, body);
+                    }
+
+                    @Override
+                    public void handleDelivery(String consumerTag, long deliveryTag, BasicProperties basicProperties, byte[] body) throws IOException {
+                        deliver(channel, consumerTag, deliveryTag, basicProperties, body);
+                    }
+                };
+            }
+
+            @Override
+            public void writeConfirm(Channel channel, ConfirmReturns confirmReturns) {
+                channel.handleConfirm(confirmReturns);
+            }
+        });
+    }
+
+    // 在调用方线程中直接处理请求 返回之前响应已经交给 channel
+    @Override
+    void send(Channel channel, int type, BaseArguments baseArguments) throws IOException {
+        if (isClosed()) {
+            throw new IOException("[LocalConnection] 连接已关闭");
+        }
+        BaseReturns baseReturns = requestHandler.handle(type, baseArguments, channel);
+        if (baseReturns != null) {
+            channel.putReturns(baseReturns);
+        }
+        // 没有网络往返 不需要攒着 confirm 模式下的 publish 处理完就确认
+        requestHandler.flushConfirms(channel);
+    }
+
+    // 同一个 JVM 中不需要分块 读出完整的消息体直接发布
+    @Override
+    void sendChunked(Channel channel, BasicPublishArguments arguments, InputStream body, int length) throws IOException {
+        if (isClosed()) {
+            throw new IOException("[LocalConnection] 连接已关闭");
+        }
+        byte[] data = body.readNBytes(length);
+        if (data.length < length) {
+            throw new IOException("[LocalConnection] 消息体数据不足 还差 " + (length - data.length) + " 字节");
+        }
+        channel.putReturns(requestHandler.handleChunkedPublish(arguments, data, channel, ChunkedBody.PUBLISH_BEGIN));
+    }
+
+    // 在 broker 的推送线程中调用 把回调交给 channel 的回调通道 和网络连接一样按推送顺序执行
+    // 连接关闭后抛出异常 broker 不会把自动确认的消息删除
+    private void deliver(Channel channel, String consumerTag, long deliveryTag, BasicProperties basicProperties, byte[] body) throws IOException {
+        if (isClosed()) {
+            throw new IOException("[LocalConnection] connection closed consumerTag: " + consumerTag);
+        }
+        try {
+            channel.getDispatchLane().submit(() -> {
+                try {
+                    channel.getConsumer().handleDelivery(consumerTag, deliveryTag, basicProperties, body);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[LocalConnection] 等待回调通道被中断", e);
+        }
+    }
+
+    // 没有网络连接需要关闭 VirtualHost 由创建它的一方关闭
+    @Override
+    void closeTransport() {
+    }
+}
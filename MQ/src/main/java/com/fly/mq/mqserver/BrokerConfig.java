@@ -0,0 +1,53 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.common.ThreadMode;
+import com.fly.mq.mqserver.dao.FsyncPolicy;
+import lombok.Data;
+
+/**
+ * BrokerServer 的启动配置
+ * 对应 application.yml 中 mq.* 的配置项 未设置的使用默认值
+ */
+@Data
+public class BrokerConfig {
+    // 监听的端口号
+    private int port = 9090;
+    // 额外监听的 Unix domain socket 文件路径 同一台机器上的生产者可以不走 TCP 协议栈 null 表示不监听
+    private String unixSocketPath;
+    // 网络传输方式
+    private TransportType transportType = TransportType.BIO;
+    // NIO 方式下 reactor 线程的个数
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    // 处理连接（BIO）和执行消费者回调使用的线程类型
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    // PLATFORM 模式下执行消费者回调的线程个数
+    private int consumerThreads = 4;
+    // 是否接受客户端的压缩请求
+    private boolean compression = true;
+    // 持久化的消息是否直接从队列文件发送给消费者
+    private boolean zeroCopy = true;
+    // 每个队列的消息段文件大小 写满之后新建一个段 全部确认的段直接删除
+    private long segmentSize = 16 * 1024 * 1024;
+    // 后台压缩段文件的间隔 0 表示不压缩
+    private long compactionIntervalMs = 1000;
+    // 已经写满的段中有效消息的比例不超过这个值时 把有效消息搬走 删除这个段
+    private double compactionThreshold = 0.5;
+    // 持久化消息的刷盘策略 响应和发布确认在刷盘之后才返回
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.ALWAYS;
+    // INTERVAL 模式的刷盘间隔 BATCH 模式下消息不够时最多等待的时间
+    private long fsyncIntervalMs = 10;
+    // BATCH 模式下攒够多少条消息刷一次盘
+    private int fsyncBatchMessages = 100;
+    // 推送时消息体超过这个长度的消息拆成多个帧 0 表示不拆分
+    private int chunkSize = 512 * 1024;
+    // 分块发布的消息体最大长度 开始帧中的长度超过它直接拒绝 不按客户端给的长度分配内存
+    private int maxMessageSize = 64 * 1024 * 1024;
+    // 每个连接上同时在接收的分块发布最多有多少个
+    private int maxChunkStreams = 16;
+    // 分块发布超过这么久没有收到数据帧就丢弃 空出位置并释放已经分配的消息体 0 表示不丢弃
+    private long chunkStreamTimeoutMs = 60 * 1000;
+    // 内存中的消息估算超过这个字节数时暂停读取发布请求 默认最大堆内存的 40% 0 表示不限制
+    private long memoryHighWatermark = (long) (Runtime.getRuntime().maxMemory() * 0.4);
+    // 内存和队列积压降到上限的这个比例以下时恢复发布
+    private double flowResumeRatio = 0.8;
+}
@@ -2,45 +2,163 @@ package com.fly.mq.mqserver;
 
 import com.fly.mq.common.*;
 import com.fly.mq.mqserver.core.BasicProperties;
+import com.fly.mq.mqserver.core.MSGQueue;
+import com.fly.mq.mqserver.core.Message;
+import com.fly.mq.mqserver.dao.MessageFileManager;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 消息队列本体服务器
  * 本质就是一个 TCP 服务器
+ * 支持两种传输方式: BIO（每个连接一个线程）和 NIO（Selector + 少量 reactor 线程）
  */
 public class BrokerServer {
     private ServerSocket serverSocket;
+    // NIO 方式下的服务器
+    private NioServer nioServer;
+    // BIO 方式下监听 Unix domain socket 的 NioServer NIO 方式下 nioServer 直接监听
+    private NioServer unixServer;
+    // 当前使用的传输方式
+    private final TransportType transportType;
 
     // 默认一个 BrokerServer 上一个虚拟主机
-    private VirtualHost virtualHost = new VirtualHost("default");
+    private VirtualHost virtualHost;
 
-    // 表示当前所有会话（有哪些客户端正在和服务器通信）
-    // key: channelId value: 对应的 Socket 对象
-    private ConcurrentHashMap<String, Socket> sessions = new ConcurrentHashMap<>();
+    // 和 LocalConnection 共用的请求处理逻辑 维护当前所有会话（channelId 对应的客户端连接）
+    private final RequestHandler<ClientSession> requestHandler;
+    // 正在接收的分块 publish key: 连接 value: 这个连接上 streamId 对应的消息体
+    private ConcurrentHashMap<ClientSession, Map<Integer, ChunkedBody>> chunkedPublishes = new ConcurrentHashMap<>();
+    // 分块推送的编号
+    private final AtomicInteger deliveryStreamSeq = new AtomicInteger(0);
+    // 所有连接共用的压缩统计
+    private final CompressionStats compressionStats = new CompressionStats();
+    // 发布流控 内存或队列积压过高时暂停读取发布请求
+    private final FlowController flowController;
 
     // 线程池 用于处理多个客户端请求
     private ExecutorService executorService = null;
 
+    private final BrokerConfig config;
+
     // 用来控制服务器是否继续运行
     private volatile boolean runnable = true;
 
     public BrokerServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, TransportType.BIO);
+    }
+
+    public BrokerServer(int port, TransportType transportType) throws IOException {
+        this(port, transportType, Runtime.getRuntime().availableProcessors());
+    }
+
+    // ioThreads: NIO 方式下 reactor 线程的个数 BIO 方式下无意义
+    public BrokerServer(int port, TransportType transportType, int ioThreads) throws IOException {
+        this(buildConfig(port, transportType, ioThreads));
+    }
+
+    public BrokerServer(BrokerConfig config) throws IOException {
+        this.config = config;
+        this.transportType = config.getTransportType();
+        virtualHost = new VirtualHost("default", config);
+        flowController = new FlowController(this, virtualHost.getMemoryDataManager(), config);
+        requestHandler = new RequestHandler<>(virtualHost, flowController, new RequestHandler.Transport<>() {
+            @Override
+            public Consumer newConsumer(ClientSession session, String consumerTag) {
+                return new DeliveryConsumer();
+            }
+
+            @Override
+            public void writeConfirm(ClientSession session, ConfirmReturns confirmReturns) throws IOException {
+                // 0xf 表示服务器给生产者推送发布确认
+                session.writeResponse(frame(0xf, BinaryTool.toBytes(confirmReturns)));
+            }
+
+            @Override
+            public boolean respondsAsync(ClientSession session) {
+                return session.respondsAsync();
+            }
+
+            @Override
+            public void writeReturns(ClientSession session, int type, BaseReturns baseReturns) throws IOException {
+                session.writeResponse(buildResponse(type, baseReturns));
+            }
+
+            @Override
+            public void confirmsReady(ClientSession session) {
+                session.confirmsReady();
+            }
+        });
+        List<SocketAddress> unixAddresses = new ArrayList<>();
+        if (config.getUnixSocketPath() != null && !config.getUnixSocketPath().isEmpty()) {
+            unixAddresses.add(UnixDomainSocketAddress.of(config.getUnixSocketPath()));
+        }
+        try {
+            if (transportType == TransportType.NIO) {
+                List<SocketAddress> addresses = new ArrayList<>(unixAddresses);
+                addresses.add(0, new InetSocketAddress(config.getPort()));
+                nioServer = new NioServer(this, addresses, config.getIoThreads());
+            } else {
+                serverSocket = new ServerSocket(config.getPort());
+                if (!unixAddresses.isEmpty()) {
+                    // 本机连接数量不多 一个 reactor 线程就够了
+                    unixServer = new NioServer(this, unixAddresses, 1);
+                }
+            }
+        } catch (IOException e) {
+            // 监听失败（端口或者 socket 文件被占用）时释放已经打开的端口和消息文件
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            flowController.close();
+            virtualHost.close();
+            throw e;
+        }
+    }
+
+    private static BrokerConfig buildConfig(int port, TransportType transportType, int ioThreads) {
+        BrokerConfig config = new BrokerConfig();
+        config.setPort(port);
+        config.setTransportType(transportType);
+        config.setIoThreads(ioThreads);
+        return config;
     }
 
     public void start() throws IOException {
-        System.out.println("[Starting BrokerServer]");
-        executorService = Executors.newCachedThreadPool();
+        System.out.println("[Starting BrokerServer] transport: " + transportType + " threadMode: " + config.getThreadMode());
+        if (transportType == TransportType.NIO) {
+            nioServer.start();
+            return;
+        }
+        // VIRTUAL 模式下每个连接一个虚拟线程 阻塞读 socket 不会占用平台线程
+        executorService = ExecutorTool.newCachedThreadPool(config.getThreadMode());
+        if (unixServer != null) {
+            Thread unixAcceptor = new Thread(() -> {
+                try {
+                    unixServer.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "unix-acceptor");
+            unixAcceptor.setDaemon(true);
+            unixAcceptor.start();
+        }
         try {
             while (runnable) {
                 Socket clientAccept = serverSocket.accept();
@@ -58,6 +176,15 @@ public class BrokerServer {
     // 用于单元测试
     public void stop() throws IOException {
         runnable = false;
+        virtualHost.close();
+        flowController.close();
+        if (transportType == TransportType.NIO) {
+            nioServer.stop();
+            return;
+        }
+        if (unixServer != null) {
+            unixServer.stop();
+        }
         // 停止线程池
         executorService.shutdownNow();
         // 关闭连接
@@ -67,17 +194,41 @@ public class BrokerServer {
     // 处理一个客户端连接
     // 一个连接涉及多个请求和响应
     private void processConnection(Socket clientAccept) {
-        try (InputStream inputStream = clientAccept.getInputStream();
-             OutputStream outputStream = clientAccept.getOutputStream()) {
-            try (DataInputStream dataInputStream = new DataInputStream(inputStream);
-                 DataOutputStream dataOutputStream = new DataOutputStream(outputStream)) {
+        SocketSession session = null;
+        try (InputStream inputStream = clientAccept.getInputStream()) {
+            session = new SocketSession(clientAccept, executorService);
+            try (DataInputStream dataInputStream = new DataInputStream(inputStream)) {
+                // 同一个连接上的请求依次处理 复用同一个 Request 对象
+                Request request = new Request();
                 while (true) {
-                    // 1.读取请求并解析
-                    Request request = readRequest(dataInputStream);
-                    // 2.根据请求计算响应
-                    Response response = process(request, clientAccept);
-                    // 3.把响应写回给客户端
-                    writeResponse(dataOutputStream, response);
+                    // 1.读取请求并解析 payload 使用 BufferPool 中的数组 处理完放回
+                    readRequest(dataInputStream, request);
+                    // 流控中不处理发布请求 读线程在这里等待 不再读 socket 客户端的发送会被 TCP 阻塞
+                    if (isPublish(request.getType()) && flowController.isBlocked()) {
+                        flushConfirms(session);
+                        try {
+                            flowController.awaitUnblocked();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    // 2.根据请求计算响应 解析出来的参数不会引用 payload 处理完就可以放回池中
+                    Response response;
+                    try {
+                        response = process(request, session);
+                    } finally {
+                        BufferPool.release(request.getPayload());
+                        request.setPayload(null);
+                    }
+                    // 3.把响应写回给客户端 confirm 模式下的 publish 没有单独的响应
+                    if (response != null) {
+                        session.writeResponse(response);
+                    }
+                    // 4.已经没有读到但未处理的请求了 把攒着的发布确认发出去
+                    if (dataInputStream.available() == 0) {
+                        flushConfirms(session);
+                    }
                 }
             } catch (EOFException | SocketException e) {
                 //DataInputStream 读到 EOF(文件结尾) 会抛出 EOFException 异常
@@ -90,9 +241,14 @@ public class BrokerServer {
             e.printStackTrace();
         } finally {
             try {
+                if (session != null) {
+                    session.close();
+                }
                 clientAccept.close();
                 // 一个 TCP 连接中可能有多个 Channel 把 socket 中的所有 Channel 都顺便清理掉
-                clearClosedSession(clientAccept);
+                if (session != null) {
+                    clearClosedSession(session);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -100,140 +256,313 @@ public class BrokerServer {
     }
 
 
-    private Request readRequest(DataInputStream dataInputStream) throws IOException {
-        Request request = new Request();
+    // payload 数组从 BufferPool 中取出 长度可能大于 length
+    private void readRequest(DataInputStream dataInputStream, Request request) throws IOException {
         request.setType(dataInputStream.readInt());
         request.setLength(dataInputStream.readInt());
-        byte[] payload = new byte[request.getLength()];
-        int n = dataInputStream.read(payload);
-        if (n != request.getLength()) {
+        if (request.getLength() < 0) {
             throw new IOException("读取请求格式出错!");
         }
+        byte[] payload = BufferPool.acquire(request.getLength());
+        // read 不保证一次读满 使用 readFully 读取完整的 payload
+        dataInputStream.readFully(payload, 0, request.getLength());
+        request.setPayload(payload);
+        decompress(request);
+    }
+
+    // 带有压缩标志的请求先解压 再交给 process 处理
+    // 解压后原来的 payload 放回池中 request 中换成解压后的数据
+    Request decompress(Request request) throws IOException {
+        if (!FrameCompressor.isCompressed(request.getType())) {
+            return request;
+        }
+        byte[] payload = FrameCompressor.decompress(request.getPayload(), request.getLength(), compressionStats);
+        BufferPool.release(request.getPayload());
+        request.setType(FrameCompressor.rawType(request.getType()));
+        request.setLength(payload.length);
         request.setPayload(payload);
         return request;
     }
 
-    private void writeResponse(DataOutputStream dataOutputStream, Response response) throws IOException {
-        dataOutputStream.writeInt(response.getType());
-        dataOutputStream.writeInt(response.getLength());
-        dataOutputStream.write(response.getPayload());
-        dataOutputStream.flush();
+    // 同一个 JVM 中的客户端可以通过 ConnectionFactory.setVirtualHost 直接使用它 不经过网络
+    public VirtualHost getVirtualHost() {
+        return virtualHost;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    // 发布请求 流控时需要暂停的请求
+    static boolean isPublish(int type) {
+        return type == 0x9 || type == 0xd || type == ChunkedBody.PUBLISH_BEGIN;
+    }
+
+    FlowController getFlowController() {
+        return flowController;
+    }
+
+    // 流控状态改变时推送给所有连接 0x14 不对应任何请求
+    void notifyFlow(boolean blocked) {
+        FlowReturns flowReturns = new FlowReturns();
+        flowReturns.setRid("");
+        flowReturns.setChannelId("");
+        flowReturns.setOk(true);
+        flowReturns.setBlocked(blocked);
+        byte[] payload;
+        try {
+            payload = BinaryTool.toBytes(flowReturns);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Response response = new Response();
+        response.setType(0x14);
+        response.setLength(payload.length);
+        response.setPayload(payload);
+        // 一个连接上可能有多个 channel 每个连接只发一次
+        Set<ClientSession> notified = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ClientSession session : requestHandler.getSessions()) {
+            if (!notified.add(session) || !session.isOpen()) {
+                continue;
+            }
+            try {
+                session.writeResponse(response);
+            } catch (IOException e) {
+                System.out.println("[BrokerServer] notify flow failed " + session.getRemoteAddress());
+            }
+        }
     }
 
-    private Response process(Request request, Socket clientAccept) throws IOException, ClassNotFoundException {
+    // BIO 和 NIO 共用的请求处理逻辑 握手之外的请求都交给 RequestHandler
+    // confirm 模式下的 publish 返回 null 结果通过之后的发布确认帧告诉客户端
+    // NIO 连接上等待刷盘的 publish 也返回 null 刷盘之后由 RequestHandler 写回响应
+    Response process(Request request, ClientSession clientSession) throws IOException, ClassNotFoundException {
+        if (request.getType() == ChunkedBody.PUBLISH_BEGIN || request.getType() == ChunkedBody.CHUNK) {
+            return processChunk(request, clientSession);
+        }
         // 1.把 Request 中的数据做初步解析
-        BaseArguments baseArguments = (BaseArguments) BinaryTool.fromBytes(request.getPayload());
+        BaseArguments baseArguments = (BaseArguments) BinaryTool.fromBytes(request.getPayload(), request.getLength());
         System.out.println("[Request] rid: " + baseArguments.getRid() + " channelId: " + baseArguments.getChannelId() + " type: "
                 + request.getType() + " length: " + request.getLength());
 
         // 2.根据 type 进行具体要做什么
-        boolean ok = true;
-        if (request.getType() == 0x1) {
-            sessions.put(baseArguments.getChannelId(), clientAccept);
-            System.out.println("[BrokerServer] create channel success channelId: " + baseArguments.getChannelId());
-        } else if (request.getType() == 0x2) {
-            sessions.remove(baseArguments.getChannelId());
-            System.out.println("[BrokerServer] remove channel success channelId: " + baseArguments.getChannelId());
-        } else if (request.getType() == 0x3) {
-            // 0x3 创建交换机 说明 payload 是一个 ExchangeDeclareArguments 对象
-            ExchangeDeclareArguments arguments = (ExchangeDeclareArguments) baseArguments;
-            ok = virtualHost.exchangeDeclare(arguments.getExchangeName(), arguments.getExchangeType(),
-                    arguments.isDurable(), arguments.isAutoDelete(), arguments.getArguments());
-        } else if (request.getType() == 0x4) {
-            ExchangeDeleteArguments arguments = (ExchangeDeleteArguments) baseArguments;
-            ok = virtualHost.exchangeDelete(arguments.getExchangeName());
-        } else if (request.getType() == 0x5) {
-            QueueDeclareArguments arguments = (QueueDeclareArguments) baseArguments;
-            ok = virtualHost.queueDeclare(arguments.getQueueName(), arguments.isDurable(), arguments.isExclusive(),
-                    arguments.isAutoDelete(), arguments.getArguments());
-        } else if (request.getType() == 0x6) {
-            QueueDeleteArguments arguments = (QueueDeleteArguments) baseArguments;
-            ok = virtualHost.queueDelete(arguments.getQueueName());
-        } else if (request.getType() == 0x7) {
-            QueueBindArguments arguments = (QueueBindArguments) baseArguments;
-            ok = virtualHost.queueBind(arguments.getExchangeName(), arguments.getQueueName(), arguments.getBindingKey());
-        } else if (request.getType() == 0x8) {
-            QueueUnBindArguments arguments = (QueueUnBindArguments) baseArguments;
-            ok = virtualHost.queueUnbind(arguments.getExchangeName(), arguments.getQueueName());
-        } else if (request.getType() == 0x9) {
-            BasicPublishArguments arguments = (BasicPublishArguments) baseArguments;
-            ok = virtualHost.basicPublish(arguments.getExchangeName(), arguments.getRoutingKey(), arguments.getBasicProperties(), arguments.getBody());
-        } else if (request.getType() == 0xa) {
-            BasicConsumeArguments arguments = (BasicConsumeArguments) baseArguments;
-            virtualHost.basicConsume(arguments.getConsumerTag(), arguments.getQueueName(), arguments.isAutoAck(), new Consumer() {
-                @Override
-                public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) throws IOException {
-                    // 回调的工作就是把服务器收到的消息推送给对应的消费者客户端
-                    // 此处的 consumerTag 就是 channelId 使用这个 channelId 去 sessions 中查找对应的 socket 对象
-                    // 然后往里面发消息
-
-                    // 1.找到 socket 对象
-                    Socket clientSocket = sessions.get(consumerTag);
-                    if (clientSocket == null || clientSocket.isConnected()) {
-                        System.out.println("[BrokerServer] connection closed");
-                    }
+        if (request.getType() == 0x10) {
+            // 0x10 连接建立时的握手 协商这个连接是否压缩
+            HandshakeArguments arguments = (HandshakeArguments) baseArguments;
+            boolean ok = config.isCompression() && arguments.getCompressionThreshold() > 0;
+            if (ok) {
+                clientSession.setCompressor(new FrameCompressor(arguments.getCompressionThreshold(), compressionStats));
+            }
+            System.out.println("[BrokerServer] handshake " + clientSession.getRemoteAddress() + " compression: " + ok);
+            return buildResponse(request.getType(), RequestHandler.fill(new BaseReturns(), baseArguments, ok));
+        }
+        BaseReturns baseReturns = requestHandler.handle(request.getType(), baseArguments, clientSession);
+
+        // 3.构造响应
+        return baseReturns == null ? null : buildResponse(request.getType(), baseReturns);
+    }
+
+    // 推送给网络客户端的消费者 consumerTag 就是 channelId
+    private class DeliveryConsumer implements Consumer {
+        @Override
+        public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) throws IOException {
+            handleDelivery(consumerTag, 0, basicProperties, body);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, long deliveryTag, BasicProperties basicProperties, byte[] body) throws IOException {
+            // 回调的工作就是把服务器收到的消息推送给对应的消费者客户端
+            // 此处的 consumerTag 就是 channelId 使用这个 channelId 去 sessions 中查找对应的连接
+            // 然后往里面发消息
+
+            // 1.找到连接对象
+            ClientSession session = requestHandler.getSession(consumerTag);
+            if (session == null || !session.isOpen()) {
+                throw new IOException("[BrokerServer] connection closed consumerTag: " + consumerTag);
+            }
+            if (isChunked(body)) {
+                writeChunkedDelivery(session, consumerTag, deliveryTag, basicProperties, body);
+                return;
+            }
+
+            // 2.构造响应数据
+            SubScribeReturns subScribeReturns = new SubScribeReturns();
+            subScribeReturns.setChannelId(consumerTag);
+            // 此处的 rid 没有对应的请求不设置也可以 此处暂时设置成 ""
+            subScribeReturns.setRid("");
+            subScribeReturns.setOk(true);
+            subScribeReturns.setConsumerTag(consumerTag);
+            subScribeReturns.setProperties(basicProperties);
+            subScribeReturns.setBody(body);
+            subScribeReturns.setDeliveryTag(deliveryTag);
+            byte[] payload = BinaryTool.toBytes(subScribeReturns);
 
-                    // 2.构造响应数据
-                    SubScribeReturns subScribeReturns = new SubScribeReturns();
-                    subScribeReturns.setChannelId(consumerTag);
-                    // 此处的 rid 没有对应的请求不设置也可以 此处暂时设置成 ""
-                    subScribeReturns.setRid("");
-                    subScribeReturns.setOk(true);
-                    subScribeReturns.setConsumerTag(consumerTag);
-                    subScribeReturns.setProperties(basicProperties);
-                    subScribeReturns.setBody(body);
-                    byte[] payload = BinaryTool.toBytes(subScribeReturns);
-
-
-                    Response response = new Response();
-                    // 0xc 表示服务器给消费者客户端推送消息数据
-                    response.setType(0xc);
-                    response.setLength(payload.length);
-                    // response 的 payload 则是一个 SubScribeReturns
-                    response.setPayload(payload);
-
-                    // 把数据写回给客户端
-                    // 这里不能直接 close dataOutputStream 否则也会把 clientSocket 也关闭了 就无法继续往 socket 里写入数据了
-                    DataOutputStream dataOutputStream = new DataOutputStream(clientSocket.getOutputStream());
-                    writeResponse(dataOutputStream, response);
+            // 0xc 表示服务器给消费者客户端推送消息数据 payload 则是一个 SubScribeReturns
+            // 把数据写回给客户端
+            session.writeResponse(frame(0xc, payload));
+        }
+
+        @Override
+        public boolean readsBodyFromFile() {
+            return true;
+        }
+
+        // 持久化的消息已经在队列文件中了 直接从文件发送 不再读出和重新编码消息体
+        // 不能从文件发送时（大消息分块推送 没有 CRC 的旧记录 CRC 校验不通过的记录）才读出消息体按普通方式推送
+        @Override
+        public void handleDelivery(String consumerTag, long deliveryTag, MSGQueue queue, Message message) throws IOException {
+            MessageFileManager.RecordChannel record = null;
+            if (config.isZeroCopy() && message.getDeliverMode() == 2 && !isChunked(message)) {
+                record = virtualHost.getDiskDataManager().openMessageChannel(queue, message);
+            }
+            if (record == null) {
+                handleDelivery(consumerTag, deliveryTag, message.getBasicProperties(), virtualHost.loadBody(queue, message));
+                return;
+            }
+
+            ClientSession session = requestHandler.getSession(consumerTag);
+            if (session == null || !session.isOpen()) {
+                record.close();
+                throw new IOException("[BrokerServer] connection closed consumerTag: " + consumerTag);
+            }
+
+            // payload: headerLength(4) + 不带属性和消息体的 SubScribeReturns + 队列文件中的消息记录
+            SubScribeReturns subScribeReturns = new SubScribeReturns();
+            subScribeReturns.setChannelId(consumerTag);
+            subScribeReturns.setRid("");
+            subScribeReturns.setOk(true);
+            subScribeReturns.setConsumerTag(consumerTag);
+            subScribeReturns.setDeliveryTag(deliveryTag);
+            byte[] header = BinaryTool.toBytes(subScribeReturns);
+            byte[] head = ByteBuffer.allocate(4 + header.length).putInt(header.length).put(header).array();
+
+            // 0x11 表示服务器推送的消息数据 消息部分是队列文件中的原始记录
+            // 发送的位置和长度是打开 record 时在队列锁内取到的 压缩搬动消息不影响
+            session.writeFileResponse(0x11, head, record);
+        }
+    }
+
+    private Response buildResponse(int type, BaseReturns baseReturns) throws IOException {
+        return frame(type, BinaryTool.toBytes(baseReturns));
+    }
+
+    // 分块 publish 开始帧登记一个按总长度分配的消息体 数据帧依次拷贝进去 收完整之后和普通 publish 一样投递
+    // 消息体在服务器上只有这一份 不需要整条消息放在一个帧里 也不会在解码时再复制一次
+    // 收完整之前不响应 完成后用开始帧的 rid 响应 分块 publish 不参与 confirm 模式的序号
+    // 总长度超过 maxMessageSize 或者这个连接上正在接收的分块 publish 太多时 不分配内存 直接响应失败
+    // 客户端放弃的传输（不带数据的数据帧）和长时间没有数据的传输直接丢弃 不占用 maxChunkStreams 的位置
+    private Response processChunk(Request request, ClientSession clientSession) throws IOException, ClassNotFoundException {
+        Map<Integer, ChunkedBody> streams = chunkedPublishes.computeIfAbsent(clientSession, k -> new ConcurrentHashMap<>());
+        ChunkedBody chunked;
+        if (request.getType() == ChunkedBody.PUBLISH_BEGIN) {
+            dropStalledChunks();
+            int bodyLength = ChunkedBody.readBodyLength(request.getPayload(), request.getLength());
+            if (bodyLength > config.getMaxMessageSize() || streams.size() >= config.getMaxChunkStreams()) {
+                BasicPublishArguments arguments = (BasicPublishArguments) ChunkedBody.readHeader(request.getPayload(), request.getLength());
+                System.out.println("[BrokerServer] reject chunked publish rid: " + arguments.getRid() + " length: " + bodyLength
+                        + " streams: " + streams.size());
+                return buildResponse(ChunkedBody.PUBLISH_BEGIN, RequestHandler.fill(new BaseReturns(), arguments, false));
+            }
+            chunked = ChunkedBody.begin(request.getPayload(), request.getLength());
+            if (!chunked.isComplete()) {
+                streams.put(chunked.getStreamId(), chunked);
+                return null;
+            }
+        } else {
+            int streamId = ChunkedBody.readStreamId(request.getPayload(), request.getLength());
+            if (ChunkedBody.isAbort(request.getLength())) {
+                // 客户端没有发完 回复失败也不会有人等待 直接丢弃
+                if (streams.remove(streamId) != null) {
+                    System.out.println("[BrokerServer] chunked publish aborted " + clientSession.getRemoteAddress() + " streamId: " + streamId);
+                }
+                return null;
+            }
+            chunked = streams.get(streamId);
+            if (chunked == null) {
+                // 被拒绝的分块 publish 客户端仍然会发送数据帧 直接丢弃
+                return null;
+            }
+            if (!chunked.append(request.getPayload(), request.getLength())) {
+                return null;
+            }
+            streams.remove(streamId);
+        }
+
+        BasicPublishArguments arguments = (BasicPublishArguments) chunked.getHeader();
+        System.out.println("[Request] rid: " + arguments.getRid() + " channelId: " + arguments.getChannelId()
+                + " chunked publish length: " + chunked.getBody().length);
+        BaseReturns baseReturns = requestHandler.handleChunkedPublish(arguments, chunked.getBody(), clientSession, ChunkedBody.PUBLISH_BEGIN);
+        return baseReturns == null ? null : buildResponse(ChunkedBody.PUBLISH_BEGIN, baseReturns);
+    }
+
+    // 丢弃所有连接上超过 chunkStreamTimeoutMs 没有收到数据的分块 publish 在新的分块 publish 开始时检查
+    private void dropStalledChunks() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<ClientSession, Map<Integer, ChunkedBody>> entry : chunkedPublishes.entrySet()) {
+            entry.getValue().values().removeIf(chunked -> {
+                if (!chunked.isStalled(now, config.getChunkStreamTimeoutMs())) {
+                    return false;
                 }
+                System.out.println("[BrokerServer] drop stalled chunked publish " + entry.getKey().getRemoteAddress()
+                        + " streamId: " + chunked.getStreamId());
+                return true;
             });
-        } else if (request.getType() == 0xb) {
-            BasicAckArguments arguments = (BasicAckArguments) baseArguments;
-            ok = virtualHost.basicAck(arguments.getQueueName(), arguments.getMessageId());
-        } else {
-            throw new MQException("[BrokerServer] Unknown request type: " + request.getType());
         }
+    }
+
+    // 消息体超过分块大小的消息推送时拆成多个帧
+    private boolean isChunked(byte[] body) {
+        return body != null && config.getChunkSize() > 0 && body.length > config.getChunkSize();
+    }
+
+    // 恢复出来的消息还没有读出消息体 按文件中记录的长度估算
+    private boolean isChunked(Message message) {
+        if (message.getBody() != null) {
+            return isChunked(message.getBody());
+        }
+        return config.getChunkSize() > 0 && message.getOffsetEnd() - message.getOffsetBeg() > config.getChunkSize();
+    }
 
-        // 3.构造响应
-        BaseReturns baseReturns = new BaseReturns();
-        baseReturns.setChannelId(baseArguments.getChannelId());
-        baseReturns.setRid(baseArguments.getRid());
-        baseReturns.setOk(ok);
+    // 先推送不带消息体的 SubScribeReturns 再按分块大小推送消息体 同一个连接上的其他推送可以穿插在数据帧之间
+    private void writeChunkedDelivery(ClientSession session, String consumerTag, long deliveryTag,
+                                      BasicProperties basicProperties, byte[] body) throws IOException {
+        SubScribeReturns subScribeReturns = new SubScribeReturns();
+        subScribeReturns.setChannelId(consumerTag);
+        subScribeReturns.setRid("");
+        subScribeReturns.setOk(true);
+        subScribeReturns.setConsumerTag(consumerTag);
+        subScribeReturns.setProperties(basicProperties);
+        subScribeReturns.setDeliveryTag(deliveryTag);
+
+        int streamId = deliveryStreamSeq.incrementAndGet();
+        session.writeResponse(frame(ChunkedBody.DELIVERY_BEGIN, ChunkedBody.beginPayload(streamId, body.length, subScribeReturns)));
+        for (int offset = 0; offset < body.length; offset += config.getChunkSize()) {
+            int count = Math.min(config.getChunkSize(), body.length - offset);
+            session.writeResponse(frame(ChunkedBody.CHUNK, ChunkedBody.chunkPayload(streamId, body, offset, count)));
+        }
+    }
 
-        byte[] payload = BinaryTool.toBytes(baseReturns);
+    private static Response frame(int type, byte[] payload) {
         Response response = new Response();
-        response.setType(request.getType());
+        response.setType(type);
         response.setLength(payload.length);
         response.setPayload(payload);
         return response;
     }
 
 
-    private void clearClosedSession(Socket clientAccept) {
+    // 把这个连接上所有 channel 攒着的发布确认发出去
+    // 在连接上暂时没有更多请求可读时调用 一段连续的 publish 只需要一个确认帧
+    void flushConfirms(ClientSession clientSession) throws IOException {
+        requestHandler.flushConfirms(clientSession);
+    }
+
+    void clearClosedSession(ClientSession clientSession) {
         // 如果 socket 异常关闭了 sessions 里存的逻辑上的 channel 也就没意义了 这里就清理掉
-        // 这里用来暂时存储需要删除的 channelId
-        List<String> toDelete = new ArrayList<>();
-        for (Map.Entry<String, Socket> entry : sessions.entrySet()) {
-            // 不能在遍历的同时直接调用 remove 删除会导致迭代器失效
-            // sessions.remove(entry.getValue())
-            if (entry.getValue() == clientAccept) {
-                toDelete.add(entry.getKey());
-            }
-        }
-        for (String channelId : toDelete) {
-            sessions.remove(channelId);
-        }
+        List<String> toDelete = requestHandler.clearSession(clientSession);
+        // 没有收完的分块 publish 直接丢弃
+        chunkedPublishes.remove(clientSession);
         System.out.println("[BrokerServer] clear channel completed " + toDelete);
     }
 
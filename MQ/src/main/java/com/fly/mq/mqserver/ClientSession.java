@@ -0,0 +1,35 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.common.FrameCompressor;
+import com.fly.mq.common.Response;
+import com.fly.mq.mqserver.dao.MessageFileManager;
+
+import java.io.IOException;
+
+/**
+ * 表示服务器和一个客户端之间的连接
+ * 屏蔽 BIO(Socket) 和 NIO(SocketChannel) 的差异 BrokerServer 通过它把响应写回给客户端
+ */
+public interface ClientSession {
+    // 把响应写回给客户端 可能被多个线程同时调用（控制请求的响应/推送给消费者的消息）
+    void writeResponse(Response response) throws IOException;
+
+    // 发送一个 payload 由 head 和文件中的一条消息记录两部分组成的帧
+    // 文件部分直接从 record 发送 不经过堆内存 record 交给 session 发送完成后关闭
+    void writeFileResponse(int type, byte[] head, MessageFileManager.RecordChannel record) throws IOException;
+
+    // 发布请求的响应和发布确认是否在持久化的消息刷盘之后异步写回 而不是在处理请求的线程中等待刷盘
+    boolean respondsAsync();
+
+    // 刷盘之后有新的发布确认可以发送 由连接决定什么时候调用 BrokerServer.flushConfirms 发出去
+    void confirmsReady();
+
+    // 连接是否还可用
+    boolean isOpen();
+
+    // 客户端地址 用于打印日志
+    String getRemoteAddress();
+
+    // 握手协商好压缩之后设置 之后超过阈值的响应都会压缩
+    void setCompressor(FrameCompressor compressor);
+}
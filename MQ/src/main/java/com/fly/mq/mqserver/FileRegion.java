@@ -0,0 +1,58 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.mqserver.dao.MessageFileManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 一个帧头在内存中 其余部分直接从文件发送的帧
+ * 帧格式和普通的帧一样: type(4) + length(4) + payload 其中 payload 的后 count 个字节来自文件
+ * 文件部分通过 FileChannel.transferTo 发送 不需要把文件内容读到堆内存中
+ * 文件部分就是 record 在段文件中的位置和长度 发送完成或者连接关闭时由持有者调用 close 关闭 record
+ */
+class FileRegion {
+    private final ByteBuffer head;
+    private final MessageFileManager.RecordChannel record;
+    private long position;
+    private long remaining;
+
+    FileRegion(int type, byte[] head, MessageFileManager.RecordChannel record) {
+        this.head = ByteBuffer.allocate(8 + head.length);
+        this.head.putInt(type);
+        this.head.putInt((int) (head.length + record.getLength()));
+        this.head.put(head);
+        this.head.flip();
+        this.record = record;
+        this.position = record.getPosition();
+        this.remaining = record.getLength();
+    }
+
+    // 尽可能多的写到 target 中 全部写完返回 true
+    // 非阻塞的 target 写不进去时返回 false 等下次可写时再继续
+    boolean transferTo(WritableByteChannel target) throws IOException {
+        while (head.hasRemaining()) {
+            if (target.write(head) == 0) {
+                return false;
+            }
+        }
+        while (remaining > 0) {
+            long n = record.getFileChannel().transferTo(position, remaining, target);
+            if (n <= 0) {
+                return false;
+            }
+            position += n;
+            remaining -= n;
+        }
+        return true;
+    }
+
+    void close() {
+        try {
+            record.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.mqserver.core.MSGQueue;
+import com.fly.mq.mqserver.dao.MemoryDataManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 发布流控
+ * 内存中消息占用的空间超过高水位 或者某个设置了 x-max-length 的队列积压超过上限时 暂停读取发布请求
+ * 等消费者把消息消费到低水位（上限 * flowResumeRatio）以下再恢复
+ * BIO 下读线程直接阻塞等待 NIO 下取消连接的 OP_READ 恢复时再重新关注
+ */
+class FlowController {
+    // 队列参数中表示最大积压消息数的 key
+    static final String MAX_LENGTH = "x-max-length";
+    // 恢复状态的检查间隔 消费和确认不经过 BrokerServer 定时检查是否已经降到低水位以下
+    private static final long CHECK_INTERVAL_MS = 100;
+
+    private final BrokerServer brokerServer;
+    private final MemoryDataManager memoryDataManager;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final double resumeRatio;
+
+    private volatile boolean blocked = false;
+    // 使用 ReentrantLock 而不是 synchronized 避免虚拟线程等待时被钉住
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition unblocked = lock.newCondition();
+    // 被暂停的 NIO 连接 恢复时执行
+    private final List<Runnable> pausedReaders = new ArrayList<>();
+    private final ScheduledExecutorService checker;
+
+    FlowController(BrokerServer brokerServer, MemoryDataManager memoryDataManager, BrokerConfig config) {
+        this.brokerServer = brokerServer;
+        this.memoryDataManager = memoryDataManager;
+        this.highWatermark = config.getMemoryHighWatermark();
+        this.resumeRatio = config.getFlowResumeRatio();
+        this.lowWatermark = (long) (highWatermark * resumeRatio);
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "flow-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isBlocked() {
+        return blocked;
+    }
+
+    // 发布请求处理完之后和定时任务中调用 根据当前的内存和队列积压切换状态
+    void check() {
+        boolean changed = false;
+        lock.lock();
+        try {
+            if (!blocked && overHighWatermark()) {
+                blocked = true;
+                changed = true;
+            } else if (blocked && belowLowWatermark()) {
+                blocked = false;
+                changed = true;
+                unblocked.signalAll();
+                for (Runnable reader : pausedReaders) {
+                    reader.run();
+                }
+                pausedReaders.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (changed) {
+            System.out.println("[FlowController] flow " + (blocked ? "blocked" : "resumed")
+                    + " messageBytes: " + memoryDataManager.getMessageBytes());
+            brokerServer.notifyFlow(blocked);
+        }
+    }
+
+    // BIO 读线程在读到发布请求时调用 阻塞到流控解除
+    void awaitUnblocked() throws InterruptedException {
+        lock.lock();
+        try {
+            while (blocked) {
+                unblocked.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // NIO 连接在读到发布请求时调用 返回 true 表示已经暂停 解除时执行 resume
+    // 返回 false 表示此时没有流控 直接处理即可
+    boolean pause(Runnable resume) {
+        lock.lock();
+        try {
+            if (!blocked) {
+                return false;
+            }
+            pausedReaders.add(resume);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean overHighWatermark() {
+        if (highWatermark > 0 && memoryDataManager.getMessageBytes() >= highWatermark) {
+            return true;
+        }
+        for (MSGQueue queue : memoryDataManager.getQueues()) {
+            int maxLength = maxLength(queue);
+            if (maxLength > 0 && memoryDataManager.getMessageCount(queue.getName()) >= maxLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean belowLowWatermark() {
+        if (highWatermark > 0 && memoryDataManager.getMessageBytes() > lowWatermark) {
+            return false;
+        }
+        for (MSGQueue queue : memoryDataManager.getQueues()) {
+            int maxLength = maxLength(queue);
+            if (maxLength > 0 && memoryDataManager.getMessageCount(queue.getName()) > (long) (maxLength * resumeRatio)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 队列参数来自客户端的 JSON 可能是数字也可能是字符串
+    private static int maxLength(MSGQueue queue) {
+        Object value = queue.getArguments(MAX_LENGTH);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    void close() {
+        checker.shutdownNow();
+        // 服务器停止时放行所有等待中的读线程
+        lock.lock();
+        try {
+            blocked = false;
+            unblocked.signalAll();
+            pausedReaders.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.fly.mq.mqserver;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 NIO 的传输层
+ * 一个 accept 线程（调用 start 的线程）负责接收连接 再把连接轮询分配给少量的 reactor 线程
+ * 每个 reactor 线程持有一个 Selector 负责若干连接的读写
+ * 协议格式和 BIO 完全一致（type + length + payload）
+ * 可以同时监听多个地址 TCP 端口和 Unix domain socket 的连接由同一组 reactor 处理
+ */
+public class NioServer {
+    // stat 中 st_mode 的文件类型部分 以及表示 socket 文件的值
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final BrokerServer brokerServer;
+    private final List<ServerSocketChannel> serverSocketChannels = new ArrayList<>();
+    // 监听的 Unix domain socket 文件 停止时删除
+    private final List<UnixDomainSocketAddress> unixAddresses = new ArrayList<>();
+    private final Selector acceptSelector;
+    private final Reactor[] reactors;
+    // 用于轮询选择 reactor
+    private final AtomicInteger reactorSeq = new AtomicInteger(0);
+
+    private volatile boolean runnable = true;
+
+    public NioServer(BrokerServer brokerServer, int port, int reactorCount) throws IOException {
+        this(brokerServer, Collections.singletonList(new InetSocketAddress(port)), reactorCount);
+    }
+
+    // addresses: InetSocketAddress 监听 TCP 端口 UnixDomainSocketAddress 监听本机的 socket 文件
+    public NioServer(BrokerServer brokerServer, List<SocketAddress> addresses, int reactorCount) throws IOException {
+        this.brokerServer = brokerServer;
+        acceptSelector = Selector.open();
+        try {
+            for (SocketAddress address : addresses) {
+                ServerSocketChannel serverSocketChannel;
+                if (address instanceof UnixDomainSocketAddress) {
+                    UnixDomainSocketAddress unixAddress = (UnixDomainSocketAddress) address;
+                    removeStaleSocket(unixAddress.getPath());
+                    serverSocketChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                } else {
+                    serverSocketChannel = ServerSocketChannel.open();
+                }
+                serverSocketChannels.add(serverSocketChannel);
+                serverSocketChannel.bind(address);
+                // bind 成功之后这个文件才是自己创建的 停止时才删除
+                if (address instanceof UnixDomainSocketAddress) {
+                    unixAddresses.add((UnixDomainSocketAddress) address);
+                }
+                serverSocketChannel.configureBlocking(false);
+                serverSocketChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            }
+        } catch (IOException e) {
+            // 已经监听的地址全部释放 不影响之后重新启动
+            closeListeners();
+            throw e;
+        }
+
+        reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor("nio-reactor-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+        try {
+            while (runnable) {
+                acceptSelector.select();
+                Iterator<SelectionKey> iterator = acceptSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid() || !key.isAcceptable()) {
+                        continue;
+                    }
+                    SocketChannel socketChannel = ((ServerSocketChannel) key.channel()).accept();
+                    if (socketChannel == null) {
+                        continue;
+                    }
+                    socketChannel.configureBlocking(false);
+                    // 把连接交给一个 reactor 线程处理
+                    Reactor reactor = reactors[Math.floorMod(reactorSeq.getAndIncrement(), reactors.length)];
+                    reactor.register(socketChannel);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // stop() 关闭了 selector
+        }
+        System.out.println("[NioServer] 服务器停止运行");
+    }
+
+    public void stop() throws IOException {
+        runnable = false;
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+        closeListeners();
+    }
+
+    private void closeListeners() throws IOException {
+        acceptSelector.close();
+        for (ServerSocketChannel serverSocketChannel : serverSocketChannels) {
+            serverSocketChannel.close();
+        }
+        for (UnixDomainSocketAddress unixAddress : unixAddresses) {
+            Files.deleteIfExists(unixAddress.getPath());
+        }
+    }
+
+    // 上次没有正常停止时留下的 socket 文件会导致 bind 失败
+    // 只有确认是 socket 文件 并且已经没有进程在监听（连接被拒绝）时才删除
+    // 另一个 broker 正在使用 或者这个路径上是其他文件（配置错误）时启动失败 不删除任何东西
+    private static void removeStaleSocket(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!isSocketFile(path)) {
+            throw new IOException("[NioServer] " + path + " exists and is not a socket file");
+        }
+        try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            probe.connect(UnixDomainSocketAddress.of(path));
+            throw new IOException("[NioServer] " + path + " is in use by another process");
+        } catch (ConnectException e) {
+            // 没有进程在监听 是残留的文件
+        }
+        Files.delete(path);
+        System.out.println("[NioServer] removed stale socket file " + path);
+    }
+
+    private static boolean isSocketFile(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // 不支持 unix 属性的文件系统 无法确认 按不是 socket 文件处理
+            return false;
+        }
+    }
+
+    /**
+     * reactor 线程
+     * 其他线程不能直接操作 Selector 上的 key 通过 taskQueue 投递任务再唤醒 selector 由 reactor 线程执行
+     */
+    class Reactor implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+        Reactor(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean inReactorThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        // 投递一个任务到 reactor 线程执行
+        void execute(Runnable task) {
+            taskQueue.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel socketChannel) {
+            execute(() -> {
+                try {
+                    NioSession session = new NioSession(brokerServer, this, socketChannel);
+                    session.setSelectionKey(socketChannel.register(selector, SelectionKey.OP_READ, session));
+                    System.out.println("[NioServer] accept connection " + session.getRemoteAddress());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    try {
+                        socketChannel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        void shutdown() throws IOException {
+            // 关闭所有连接
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof NioSession) {
+                    ((NioSession) key.attachment()).close();
+                }
+            }
+            selector.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (runnable) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = taskQueue.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            // 客户端断开 或者读写出错 或者服务器停止时连接已经被关闭 都直接关闭这个连接
+                            session.close();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // 服务器停止
+            } catch (IOException e) {
+                System.out.println("[NioServer] reactor exception " + thread.getName());
+                e.printStackTrace();
+            }
+        }
+    }
+}
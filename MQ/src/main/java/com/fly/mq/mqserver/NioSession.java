@@ -0,0 +1,311 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.common.BufferPool;
+import com.fly.mq.common.FrameCompressor;
+import com.fly.mq.common.MQException;
+import com.fly.mq.common.Request;
+import com.fly.mq.common.Response;
+import com.fly.mq.mqserver.dao.MessageFileManager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO 方式下的客户端连接
+ * 读: 只在所属的 reactor 线程中进行 按照 type(4) + length(4) + payload 拆包
+ * 写: 任意线程都可以调用 writeResponse 先放入待发送队列 真正的写操作统一由 reactor 线程完成
+ *     队列中已有的多个帧合并成一次 gathering write
+ */
+public class NioSession implements ClientSession {
+    // 单个请求的最大长度 防止错误的 length 导致分配过大的内存
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private final BrokerServer brokerServer;
+    private final NioServer.Reactor reactor;
+    private final SocketChannel socketChannel;
+    private final String remoteAddress;
+    private SelectionKey selectionKey;
+
+    // 读取请求头 type + length
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(8);
+    // 读取请求体 读完请求头之后从 BufferPool 中取出数组包装 处理完请求放回
+    private ByteBuffer payloadBuffer = null;
+    private int requestType;
+    // 流控时暂停读取 读到但还没处理的发布请求
+    private Request pendingRequest = null;
+
+    // 一次 gathering write 最多写出的帧数
+    private static final int MAX_GATHER_FRAMES = 64;
+    // gathering write 使用的数组 只在 reactor 线程中使用 复用同一个
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_FRAMES];
+
+    // 待发送的帧 ByteBuffer 或者 FileRegion
+    private final ConcurrentLinkedQueue<Object> writeQueue = new ConcurrentLinkedQueue<>();
+    // 是否已经有 flush 任务交给了 reactor 线程 已经有了就不用再唤醒 selector
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // 是否已经有发送发布确认的任务交给了 reactor 线程 同一次刷盘完成的确认合并成一个帧
+    private final AtomicBoolean confirmsScheduled = new AtomicBoolean(false);
+
+    private volatile boolean closed = false;
+    // 协商了压缩才不为 null 压缩在调用 writeResponse 的线程中进行
+    private volatile FrameCompressor compressor;
+
+    public NioSession(BrokerServer brokerServer, NioServer.Reactor reactor, SocketChannel socketChannel) throws IOException {
+        this.brokerServer = brokerServer;
+        this.reactor = reactor;
+        this.socketChannel = socketChannel;
+        this.remoteAddress = String.valueOf(socketChannel.getRemoteAddress());
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    // 有数据可读 尽可能多的读出完整的请求并处理
+    // 处理请求时产生的响应只放入队列 全部处理完之后再一起写出
+    void onReadable() throws IOException {
+        readFrames();
+        // 当前可读的请求都处理完了 把攒着的发布确认发出去
+        brokerServer.flushConfirms(this);
+        flush();
+    }
+
+    private void readFrames() throws IOException {
+        while (true) {
+            if (payloadBuffer == null) {
+                if (socketChannel.read(headerBuffer) < 0) {
+                    throw new EOFException();
+                }
+                if (headerBuffer.hasRemaining()) {
+                    // 请求头还没读完整 等下次可读
+                    return;
+                }
+                headerBuffer.flip();
+                requestType = headerBuffer.getInt();
+                int length = headerBuffer.getInt();
+                headerBuffer.clear();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("读取请求格式出错! length=" + length);
+                }
+                payloadBuffer = ByteBuffer.wrap(BufferPool.acquire(length), 0, length);
+            }
+            if (payloadBuffer.hasRemaining() && socketChannel.read(payloadBuffer) < 0) {
+                throw new EOFException();
+            }
+            if (payloadBuffer.hasRemaining()) {
+                return;
+            }
+
+            Request request = new Request();
+            request.setType(requestType);
+            request.setLength(payloadBuffer.limit());
+            request.setPayload(payloadBuffer.array());
+            payloadBuffer = null;
+            request = brokerServer.decompress(request);
+
+            // 流控中读到发布请求 先留着不处理 取消 OP_READ 不再读 socket 解除时由 resume 继续
+            if (BrokerServer.isPublish(request.getType()) && brokerServer.getFlowController().pause(() -> reactor.execute(this::resume))) {
+                pendingRequest = request;
+                selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            handleRequest(request);
+        }
+    }
+
+    private void handleRequest(Request request) throws IOException {
+        Response response;
+        try {
+            response = brokerServer.process(request, this);
+        } catch (ClassNotFoundException | MQException e) {
+            System.out.println("[NioSession] connection Exception");
+            e.printStackTrace();
+            throw new IOException(e);
+        } finally {
+            // 解析出来的参数不会引用 payload 处理完就放回池中
+            BufferPool.release(request.getPayload());
+        }
+        if (response != null) {
+            writeResponse(response);
+        }
+    }
+
+    // reactor 线程不能等待刷盘 发布请求在刷盘之后由刷盘的线程写回响应
+    @Override
+    public boolean respondsAsync() {
+        return true;
+    }
+
+    // 在刷盘的线程中调用 交给 reactor 线程发送攒着的发布确认 和 onReadable 结束时一样
+    @Override
+    public void confirmsReady() {
+        if (closed || !confirmsScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        reactor.execute(() -> {
+            confirmsScheduled.set(false);
+            try {
+                brokerServer.flushConfirms(this);
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    // 流控解除 在 reactor 线程中执行 处理留下的发布请求后恢复读取
+    private void resume() {
+        if (closed) {
+            return;
+        }
+        Request request = pendingRequest;
+        pendingRequest = null;
+        try {
+            if (request != null) {
+                handleRequest(request);
+            }
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+            onReadable();
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void writeResponse(Response response) throws IOException {
+        if (closed) {
+            throw new IOException("[NioSession] connection closed " + remoteAddress);
+        }
+        FrameCompressor compressor = this.compressor;
+        if (compressor != null) {
+            response = compressor.compress(response);
+        }
+        // 帧的数组从 BufferPool 中取出 完整写出之后放回
+        ByteBuffer buffer = ByteBuffer.wrap(BufferPool.acquire(8 + response.getLength()), 0, 8 + response.getLength());
+        buffer.putInt(response.getType());
+        buffer.putInt(response.getLength());
+        buffer.put(response.getPayload(), 0, response.getLength());
+        buffer.flip();
+        enqueue(buffer);
+    }
+
+    // 文件部分通过 FileChannel.transferTo 直接写到 socket 零拷贝
+    @Override
+    public void writeFileResponse(int type, byte[] head, MessageFileManager.RecordChannel record) throws IOException {
+        if (closed) {
+            record.close();
+            throw new IOException("[NioSession] connection closed " + remoteAddress);
+        }
+        enqueue(new FileRegion(type, head, record));
+    }
+
+    private void enqueue(Object frame) {
+        writeQueue.add(frame);
+
+        // reactor 线程中产生的响应 在 onReadable 结束时统一 flush
+        // 其他线程（如消费者推送）只在没有等待中的 flush 任务时才提交 多个帧共用一次唤醒和写操作
+        if (!reactor.inReactorThread() && flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+    }
+
+    // 只在 reactor 线程中调用 把待发送队列中的数据写到 socket
+    // 使用 gathering write 一次系统调用写出多个帧
+    // socket 发送缓冲区满了就关注 OP_WRITE 等可写时再继续
+    void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        ByteBuffer[] buffers = gatherBuffers;
+        while (!writeQueue.isEmpty()) {
+            Object first = writeQueue.peek();
+            if (first instanceof FileRegion) {
+                FileRegion region = (FileRegion) first;
+                if (!region.transferTo(socketChannel)) {
+                    selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                region.close();
+                continue;
+            }
+            // 只有 reactor 线程会从队列中取数据 取到的顺序就是队列的顺序
+            // 连续的 ByteBuffer 合并成一次写 遇到 FileRegion 停下
+            int count = 0;
+            for (Object frame : writeQueue) {
+                if (!(frame instanceof ByteBuffer)) {
+                    break;
+                }
+                buffers[count++] = (ByteBuffer) frame;
+                if (count == MAX_GATHER_FRAMES) {
+                    break;
+                }
+            }
+            socketChannel.write(buffers, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (buffers[i].hasRemaining()) {
+                    selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                BufferPool.release(buffers[i].array());
+                buffers[i] = null;
+            }
+        }
+        if ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            socketChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Object frame;
+        while ((frame = writeQueue.poll()) != null) {
+            if (frame instanceof FileRegion) {
+                ((FileRegion) frame).close();
+            }
+        }
+        System.out.println("[BrokerServer] connection closed by client IP: " + remoteAddress);
+        // 一个 TCP 连接中可能有多个 Channel 把这个连接上的所有 Channel 都顺便清理掉
+        brokerServer.clearClosedSession(this);
+    }
+
+    @Override
+    public void setCompressor(FrameCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && socketChannel.isOpen();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+}
@@ -0,0 +1,95 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.common.ConfirmReturns;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个 channel 在 confirm 模式下的发布确认状态
+ * 每条 publish 按到达顺序分配一个递增的序号（从 1 开始） 客户端按发送顺序计数 两边序号一致
+ * 连续成功的消息不逐条确认 而是攒成一个 "确认到 N" 的帧 在读完当前所有请求后（或者一次刷盘完成后）统一发送
+ * 持久化的消息刷盘之后才完成 可能晚于后面不需要刷盘的消息 只有连续完成的序号才能合并进 "确认到 N"
+ * S: channel 所在的连接 确认由 RequestHandler.Transport 发送
+ */
+class PublisherConfirm<S> {
+    // 持续有请求到来时 最多攒这么多条就发送一次确认 避免生产者一直收不到确认
+    static final int MAX_PENDING_CONFIRMS = 256;
+
+    @Getter
+    private final String channelId;
+    @Getter
+    private final S session;
+    private final RequestHandler.Transport<S> transport;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 最后一个分配出去的序号
+    private long publishSeq;
+    // 这个序号和之前的消息都已经完成 等待确认的最大序号
+    private long ackedSeq;
+    // 已经完成 但前面还有没完成的消息的序号
+    private final Set<Long> completedSeqs = new HashSet<>();
+    // 已经发送给客户端的最大序号
+    private long confirmedSeq;
+
+    PublisherConfirm(String channelId, S session, RequestHandler.Transport<S> transport) {
+        this.channelId = channelId;
+        this.session = session;
+        this.transport = transport;
+    }
+
+    long nextSeq() {
+        lock.lock();
+        try {
+            return ++publishSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 消息已经路由完成（持久化的消息已经刷盘） ok 为 false 表示投递失败
+    // 投递失败的消息立即单独发送 nack 之后的 "确认到 N" 跨过它时客户端已经完成了这条消息 不受影响
+    void complete(long seq, boolean ok) throws IOException {
+        lock.lock();
+        try {
+            if (!ok) {
+                write(seq, false, false);
+            }
+            completedSeqs.add(seq);
+            while (completedSeqs.remove(ackedSeq + 1)) {
+                ackedSeq++;
+            }
+            if (ackedSeq - confirmedSeq >= MAX_PENDING_CONFIRMS) {
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 把攒着的 ack 合并成一个帧发送
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            if (ackedSeq > confirmedSeq) {
+                write(ackedSeq, true, true);
+                confirmedSeq = ackedSeq;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(long deliveryTag, boolean ok, boolean multiple) throws IOException {
+        ConfirmReturns confirmReturns = new ConfirmReturns();
+        confirmReturns.setChannelId(channelId);
+        // 确认没有对应的请求 rid 设置成 ""
+        confirmReturns.setRid("");
+        confirmReturns.setOk(ok);
+        confirmReturns.setDeliveryTag(deliveryTag);
+        confirmReturns.setMultiple(multiple);
+        transport.writeConfirm(session, confirmReturns);
+    }
+}
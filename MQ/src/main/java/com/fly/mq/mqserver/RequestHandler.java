@@ -0,0 +1,268 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.common.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 网络连接（BrokerServer）和同一个 JVM 中的连接（LocalConnection）共用的请求处理逻辑
+ * 根据请求类型调用 VirtualHost 对应的方法 并维护 channel 的会话 发布确认和预取数量
+ * 只和连接相关的部分（推送消息 发送确认）通过 Transport 交给调用方
+ * 发布请求在持久化的消息刷盘之后才响应/确认 不能阻塞的连接（NIO）不在处理请求的线程中等待 刷盘之后由刷盘的线程写回
+ * S: 一个 channel 所在的连接 BrokerServer 中是 ClientSession LocalConnection 中是客户端的 Channel
+ */
+public class RequestHandler<S> {
+    /**
+     * 和具体连接方式相关的操作
+     */
+    public interface Transport<S> {
+        // 0xa 为 channel 创建的消费者 回调负责把消息推送到 session
+        Consumer newConsumer(S session, String consumerTag);
+
+        // 把发布确认发送给 session
+        void writeConfirm(S session, ConfirmReturns confirmReturns) throws IOException;
+
+        // 发布请求是否在刷盘之后异步响应 为 false 时在处理请求的线程中等待刷盘
+        default boolean respondsAsync(S session) {
+            return false;
+        }
+
+        // respondsAsync 为 true 时 刷盘之后把发布请求的响应写回 session type 是响应的类型
+        default void writeReturns(S session, int type, BaseReturns baseReturns) throws IOException {
+            throw new MQException("[RequestHandler] Transport does not respond asynchronously");
+        }
+
+        // respondsAsync 为 true 时 刷盘之后有新的发布确认攒着 由 session 找机会调用 flushConfirms
+        default void confirmsReady(S session) {
+        }
+    }
+
+    private final VirtualHost virtualHost;
+    private final Transport<S> transport;
+    // 同一个 JVM 中的连接没有 BrokerServer 也就没有流控 为 null
+    private final FlowController flowController;
+
+    // 表示当前所有会话 key: channelId value: channel 所在的连接
+    private final ConcurrentHashMap<String, S> sessions = new ConcurrentHashMap<>();
+    // 开启了发布确认的 channel key: channelId value: 该 channel 的确认状态
+    private final ConcurrentHashMap<String, PublisherConfirm<S>> confirms = new ConcurrentHashMap<>();
+    // 设置了预取数量的 channel key: channelId value: 之后创建的消费者的预取数量
+    private final ConcurrentHashMap<String, Integer> prefetchCounts = new ConcurrentHashMap<>();
+
+    public RequestHandler(VirtualHost virtualHost, Transport<S> transport) {
+        this(virtualHost, null, transport);
+    }
+
+    RequestHandler(VirtualHost virtualHost, FlowController flowController, Transport<S> transport) {
+        this.virtualHost = virtualHost;
+        this.flowController = flowController;
+        this.transport = transport;
+    }
+
+    // 处理一个请求 返回填好 channelId rid ok 的响应
+    // confirm 模式下的 publish 返回 null 结果通过之后的发布确认告诉客户端
+    // 异步响应的连接上 还没有刷盘的 publish 也返回 null 刷盘之后通过 Transport.writeReturns 写回
+    public BaseReturns handle(int type, BaseArguments baseArguments, S session) throws IOException {
+        String channelId = baseArguments.getChannelId();
+        boolean ok = true;
+        // 大部分请求的响应就是 BaseReturns 批量发送需要带上每条消息的结果
+        BaseReturns baseReturns = new BaseReturns();
+        if (type == 0x1) {
+            sessions.put(channelId, session);
+            System.out.println("[RequestHandler] create channel success channelId: " + channelId);
+        } else if (type == 0x2) {
+            PublisherConfirm<S> confirm = confirms.remove(channelId);
+            if (confirm != null) {
+                confirm.flush();
+            }
+            sessions.remove(channelId);
+            prefetchCounts.remove(channelId);
+            System.out.println("[RequestHandler] remove channel success channelId: " + channelId);
+        } else if (type == 0x3) {
+            // 0x3 创建交换机 说明 payload 是一个 ExchangeDeclareArguments 对象
+            ExchangeDeclareArguments arguments = (ExchangeDeclareArguments) baseArguments;
+            ok = virtualHost.exchangeDeclare(arguments.getExchangeName(), arguments.getExchangeType(),
+                    arguments.isDurable(), arguments.isAutoDelete(), arguments.getArguments());
+        } else if (type == 0x4) {
+            ExchangeDeleteArguments arguments = (ExchangeDeleteArguments) baseArguments;
+            ok = virtualHost.exchangeDelete(arguments.getExchangeName());
+        } else if (type == 0x5) {
+            QueueDeclareArguments arguments = (QueueDeclareArguments) baseArguments;
+            ok = virtualHost.queueDeclare(arguments.getQueueName(), arguments.isDurable(), arguments.isExclusive(),
+                    arguments.isAutoDelete(), arguments.getArguments());
+        } else if (type == 0x6) {
+            QueueDeleteArguments arguments = (QueueDeleteArguments) baseArguments;
+            ok = virtualHost.queueDelete(arguments.getQueueName());
+        } else if (type == 0x7) {
+            QueueBindArguments arguments = (QueueBindArguments) baseArguments;
+            ok = virtualHost.queueBind(arguments.getExchangeName(), arguments.getQueueName(), arguments.getBindingKey());
+        } else if (type == 0x8) {
+            QueueUnBindArguments arguments = (QueueUnBindArguments) baseArguments;
+            ok = virtualHost.queueUnbind(arguments.getExchangeName(), arguments.getQueueName());
+        } else if (type == 0x9) {
+            BasicPublishArguments arguments = (BasicPublishArguments) baseArguments;
+            PublisherConfirm<S> confirm = confirms.get(channelId);
+            // 序号要在处理之前分配 保证和客户端的发送顺序一致
+            long seq = confirm == null ? 0 : confirm.nextSeq();
+            CompletableFuture<Boolean> published = virtualHost.basicPublishAsync(arguments.getExchangeName(), arguments.getRoutingKey(),
+                    arguments.getBasicProperties(), arguments.getBody());
+            checkFlow();
+            if (confirm != null) {
+                // 消息路由完成 持久化的消息也已经刷盘 可以确认了
+                if (published.isDone() || !transport.respondsAsync(session)) {
+                    confirm.complete(seq, published.join());
+                } else {
+                    published.thenAccept(result -> completeConfirm(confirm, seq, result));
+                }
+                return null;
+            }
+            return respond(session, type, published, result -> fill(new BaseReturns(), baseArguments, result));
+        } else if (type == 0xa) {
+            BasicConsumeArguments arguments = (BasicConsumeArguments) baseArguments;
+            int prefetchCount = prefetchCounts.getOrDefault(channelId, 0);
+            ok = virtualHost.basicConsume(arguments.getConsumerTag(), arguments.getQueueName(), arguments.isAutoAck(), prefetchCount,
+                    transport.newConsumer(session, arguments.getConsumerTag()));
+        } else if (type == 0xb) {
+            BasicAckArguments arguments = (BasicAckArguments) baseArguments;
+            if (arguments.getMessageId() != null) {
+                ok = virtualHost.basicAck(arguments.getQueueName(), arguments.getMessageId());
+            } else {
+                // 按投递序号确认 客户端的 consumerTag 就是 channelId
+                ok = virtualHost.basicAck(channelId, arguments.getQueueName(), arguments.getDeliveryTag(), arguments.isMultiple());
+            }
+        } else if (type == 0xd) {
+            // 0xd 批量发送消息 一个请求中带有多条消息
+            BasicPublishBatchArguments arguments = (BasicPublishBatchArguments) baseArguments;
+            CompletableFuture<boolean[]> published = virtualHost.basicPublishBatchAsync(arguments.getExchangeName(), arguments.getMessages());
+            checkFlow();
+            return respond(session, type, published, results -> {
+                boolean allOk = true;
+                for (boolean result : results) {
+                    allOk &= result;
+                }
+                BasicPublishBatchReturns batchReturns = new BasicPublishBatchReturns();
+                batchReturns.setResults(results);
+                return fill(batchReturns, baseArguments, allOk);
+            });
+        } else if (type == 0xe) {
+            // 0xe 开启发布确认 之后这个 channel 上的 publish 不再逐条响应 改为异步推送确认
+            confirms.putIfAbsent(channelId, new PublisherConfirm<>(channelId, session, transport));
+            System.out.println("[RequestHandler] confirm select channelId: " + channelId);
+        } else if (type == 0x12) {
+            // 0x12 设置预取数量 对这个 channel 之后创建的消费者生效
+            BasicQosArguments arguments = (BasicQosArguments) baseArguments;
+            prefetchCounts.put(channelId, Math.max(0, arguments.getPrefetchCount()));
+        } else if (type == 0x13) {
+            // 0x13 主动拉取消息 取到的消息都放在这一个响应中返回
+            BasicGetArguments arguments = (BasicGetArguments) baseArguments;
+            List<GetMessage> messages = virtualHost.basicGet(arguments.getQueueName(), arguments.getMaxMessages(), arguments.isAutoAck());
+            ok = messages != null;
+            BasicGetReturns getReturns = new BasicGetReturns();
+            getReturns.setMessages(messages != null ? messages : new ArrayList<>());
+            baseReturns = getReturns;
+        } else {
+            throw new MQException("[RequestHandler] Unknown request type: " + type);
+        }
+        return fill(baseReturns, baseArguments, ok);
+    }
+
+    // 分块发送的消息收完整之后投递 和普通 publish 一样 但不参与 confirm 模式的序号
+    // 异步响应的连接上返回 null 刷盘之后以 responseType 写回响应
+    public BaseReturns handleChunkedPublish(BasicPublishArguments arguments, byte[] body, S session, int responseType) {
+        CompletableFuture<Boolean> published = virtualHost.basicPublishAsync(arguments.getExchangeName(), arguments.getRoutingKey(),
+                arguments.getBasicProperties(), body);
+        checkFlow();
+        return respond(session, responseType, published, ok -> fill(new BaseReturns(), arguments, ok));
+    }
+
+    // 已经完成 或者连接可以在当前线程等待刷盘时直接返回响应
+    // 否则返回 null 刷盘之后在刷盘的线程中构造响应 通过 Transport.writeReturns 写回
+    private <T> BaseReturns respond(S session, int type, CompletableFuture<T> published, Function<T, BaseReturns> toReturns) {
+        if (published.isDone() || !transport.respondsAsync(session)) {
+            return toReturns.apply(published.join());
+        }
+        published.thenAccept(result -> {
+            try {
+                transport.writeReturns(session, type, toReturns.apply(result));
+            } catch (IOException e) {
+                System.out.println("[RequestHandler] write publish returns failed type: " + type);
+                e.printStackTrace();
+            }
+        });
+        return null;
+    }
+
+    // 在刷盘的线程中完成发布确认 channel 已经关闭（不再由 flushConfirms 发送）时直接发出去
+    private void completeConfirm(PublisherConfirm<S> confirm, long seq, boolean ok) {
+        try {
+            confirm.complete(seq, ok);
+            if (confirms.get(confirm.getChannelId()) == confirm) {
+                transport.confirmsReady(confirm.getSession());
+            } else {
+                confirm.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("[RequestHandler] write confirm failed channelId: " + confirm.getChannelId());
+            e.printStackTrace();
+        }
+    }
+
+    static BaseReturns fill(BaseReturns baseReturns, BaseArguments baseArguments, boolean ok) {
+        baseReturns.setChannelId(baseArguments.getChannelId());
+        baseReturns.setRid(baseArguments.getRid());
+        baseReturns.setOk(ok);
+        return baseReturns;
+    }
+
+    private void checkFlow() {
+        if (flowController != null) {
+            flowController.check();
+        }
+    }
+
+    public S getSession(String channelId) {
+        return sessions.get(channelId);
+    }
+
+    // 所有 channel 所在的连接 一个连接上有多个 channel 时会出现多次
+    Collection<S> getSessions() {
+        return sessions.values();
+    }
+
+    // 把这个连接上所有 channel 攒着的发布确认发出去
+    // 在连接上暂时没有更多请求可读时调用 一段连续的 publish 只需要一个确认帧
+    public void flushConfirms(S session) throws IOException {
+        if (confirms.isEmpty()) {
+            return;
+        }
+        for (PublisherConfirm<S> confirm : confirms.values()) {
+            if (confirm.getSession() == session) {
+                confirm.flush();
+            }
+        }
+    }
+
+    // 连接关闭时清理它上面所有的 channel 返回清理掉的 channelId
+    public List<String> clearSession(S session) {
+        List<String> toDelete = new ArrayList<>();
+        for (Map.Entry<String, S> entry : sessions.entrySet()) {
+            // 不能在遍历的同时直接调用 remove 删除会导致迭代器失效
+            if (entry.getValue() == session) {
+                toDelete.add(entry.getKey());
+            }
+        }
+        for (String channelId : toDelete) {
+            sessions.remove(channelId);
+            confirms.remove(channelId);
+            prefetchCounts.remove(channelId);
+        }
+        return toDelete;
+    }
+}
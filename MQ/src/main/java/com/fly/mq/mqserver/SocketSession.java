@@ -0,0 +1,171 @@
+package com.fly.mq.mqserver;
+
+import com.fly.mq.common.FrameCompressor;
+import com.fly.mq.common.Response;
+import com.fly.mq.mqserver.dao.MessageFileManager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * BIO 方式下的客户端连接 对 Socket 的封装
+ * 响应和推送给消费者的消息都先放入待发送队列 由这个连接唯一的写线程按顺序写到 socket
+ * 写线程把队列中已有的帧都写入缓冲区后才 flush 一次系统调用可以发送多个帧
+ */
+public class SocketSession implements ClientSession {
+    // 待发送队列的容量 写线程跟不上时 放入队列的线程会阻塞等待
+    private static final int WRITE_QUEUE_CAPACITY = 1024;
+    // 输出缓冲区大小
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    // 整个连接共用一个输出流 只有写线程会使用
+    private final DataOutputStream dataOutputStream;
+    // 从文件发送数据时使用 写入的数据同样经过 dataOutputStream 的缓冲区
+    private final WritableByteChannel outputChannel;
+    // 待发送的帧 Response 或者 FileRegion
+    private final LinkedBlockingQueue<Object> writeQueue = new LinkedBlockingQueue<>(WRITE_QUEUE_CAPACITY);
+    private final Future<?> writerFuture;
+
+    private volatile boolean closed = false;
+    // 协商了压缩才不为 null 压缩在写线程中进行
+    private volatile FrameCompressor compressor;
+
+    public SocketSession(Socket socket, ExecutorService executorService) throws IOException {
+        this.socket = socket;
+        this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
+        this.outputChannel = Channels.newChannel(dataOutputStream);
+        this.writerFuture = executorService.submit(this::writeLoop);
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    // 只放入待发送队列 真正的写操作由写线程完成 不同线程的响应不会在 socket 上交错
+    @Override
+    public void writeResponse(Response response) throws IOException {
+        enqueue(response);
+    }
+
+    // BIO 的 socket 没有对应的 SocketChannel 文件数据经过一个小的中转缓冲区写入输出流
+    // 做不到真正的零拷贝 但不需要把整个消息读到内存中
+    @Override
+    public void writeFileResponse(int type, byte[] head, MessageFileManager.RecordChannel record) throws IOException {
+        FileRegion region = new FileRegion(type, head, record);
+        try {
+            enqueue(region);
+        } catch (IOException e) {
+            region.close();
+            throw e;
+        }
+    }
+
+    private void enqueue(Object frame) throws IOException {
+        if (closed) {
+            throw new IOException("[SocketSession] connection closed " + getRemoteAddress());
+        }
+        try {
+            writeQueue.put(frame);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[SocketSession] 等待写入被中断 " + getRemoteAddress(), e);
+        }
+    }
+
+    // 写线程 阻塞等待第一个帧 然后把队列中已有的帧都写入缓冲区 队列空了才 flush
+    private void writeLoop() {
+        try {
+            while (!closed) {
+                Object frame = writeQueue.take();
+                write(frame);
+                while ((frame = writeQueue.poll()) != null) {
+                    write(frame);
+                }
+                dataOutputStream.flush();
+            }
+        } catch (InterruptedException e) {
+            // close 时中断写线程
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("[SocketSession] write failed " + getRemoteAddress());
+                e.printStackTrace();
+                // 写失败说明连接已经不可用 关闭 socket 让读线程也退出
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            closed = true;
+            Object frame;
+            while ((frame = writeQueue.poll()) != null) {
+                if (frame instanceof FileRegion) {
+                    ((FileRegion) frame).close();
+                }
+            }
+        }
+    }
+
+    private void write(Object frame) throws IOException {
+        if (frame instanceof FileRegion) {
+            FileRegion region = (FileRegion) frame;
+            try {
+                // 阻塞的输出流一定能写完 写不完说明文件中的数据不够
+                if (!region.transferTo(outputChannel)) {
+                    throw new IOException("[SocketSession] 消息文件数据不完整");
+                }
+            } finally {
+                region.close();
+            }
+            return;
+        }
+        Response response = (Response) frame;
+        FrameCompressor compressor = this.compressor;
+        if (compressor != null) {
+            response = compressor.compress(response);
+        }
+        dataOutputStream.writeInt(response.getType());
+        dataOutputStream.writeInt(response.getLength());
+        dataOutputStream.write(response.getPayload(), 0, response.getLength());
+    }
+
+    // 连接断开时停止写线程
+    public void close() {
+        closed = true;
+        writerFuture.cancel(true);
+    }
+
+    @Override
+    public void setCompressor(FrameCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    // 每个连接有自己的读线程 直接在读线程中等待刷盘 请求按顺序响应
+    @Override
+    public boolean respondsAsync() {
+        return false;
+    }
+
+    // 不会异步完成 读线程读完当前的请求时发送确认
+    @Override
+    public void confirmsReady() {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && !socket.isClosed() && socket.isConnected();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().toString() + ":" + socket.getPort();
+    }
+}
@@ -0,0 +1,24 @@
+package com.fly.mq.mqserver;
+
+/**
+ * 表示 BrokerServer 使用的网络传输方式
+ * BIO: 每个连接一个线程 阻塞读写 Socket
+ * NIO: ServerSocketChannel + Selector 少量 reactor 线程处理所有连接
+ */
+public enum TransportType {
+    BIO,
+    NIO;
+
+    // 从配置中解析传输方式 未配置或无法识别时默认使用 BIO
+    public static TransportType of(String name) {
+        if (name == null || name.isEmpty()) {
+            return BIO;
+        }
+        for (TransportType type : values()) {
+            if (type.name().equalsIgnoreCase(name.trim())) {
+                return type;
+            }
+        }
+        return BIO;
+    }
+}
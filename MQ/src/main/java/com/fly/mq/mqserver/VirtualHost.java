@@ -1,14 +1,26 @@
 package com.fly.mq.mqserver;
 
 import com.fly.mq.common.Consumer;
+import com.fly.mq.common.GetMessage;
 import com.fly.mq.common.MQException;
+import com.fly.mq.common.PublishMessage;
 import com.fly.mq.mqserver.core.*;
 import com.fly.mq.mqserver.dao.DiskDataManager;
 import com.fly.mq.mqserver.dao.MemoryDataManager;
 import lombok.Getter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 虚拟主机
@@ -19,18 +31,32 @@ public class VirtualHost {
     @Getter
     private String virtualHostName;
     @Getter
-    private DiskDataManager diskDataManager = new DiskDataManager();
+    private DiskDataManager diskDataManager;
     @Getter
     private MemoryDataManager memoryDataManager = new MemoryDataManager();
     // 交换机锁对象
-    private final Object exchangeLocker = new Object();
+    // 使用 ReentrantLock 而不是 synchronized 持锁期间有数据库 IO 虚拟线程在 synchronized 中阻塞会被钉住（pinned）
+    private final ReentrantLock exchangeLocker = new ReentrantLock();
     // 队列锁对象
-    private final Object queueLocker = new Object();
+    private final ReentrantLock queueLocker = new ReentrantLock();
 
-    private ConsumerManager consumerManager = new ConsumerManager(this);
+    @Getter
+    private final BrokerConfig config;
+
+    private ConsumerManager consumerManager;
+    // 后台压缩段文件 compactionIntervalMs 为 0 时不启动
+    private ScheduledExecutorService compactor;
 
     public VirtualHost(String name) {
+        this(name, new BrokerConfig());
+    }
+
+    public VirtualHost(String name, BrokerConfig config) {
         this.virtualHostName = name;
+        this.config = config;
+        this.diskDataManager = new DiskDataManager(config.getSegmentSize(), config.getFsyncPolicy(),
+                config.getFsyncIntervalMs(), config.getFsyncBatchMessages());
+        this.consumerManager = new ConsumerManager(this, config.getThreadMode(), config.getConsumerThreads());
 
         // 此处 memoryDataManager 不需要额外初始化操作
         // 针对 DiskDataManager 需要初始化操作 建库建表 及恢复硬盘数据
@@ -41,6 +67,28 @@ public class VirtualHost {
             e.printStackTrace();
             System.out.println("[VirtualHost] Could not be recovery");
         }
+
+        if (config.getCompactionIntervalMs() > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "compactor-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compact, config.getCompactionIntervalMs(),
+                    config.getCompactionIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 每个队列每次最多压缩一个段 每次加锁只搬一小批消息 不会长时间挡住发布和投递
+    private void compact() {
+        for (MSGQueue queue : memoryDataManager.getQueues()) {
+            try {
+                diskDataManager.compact(queue, config.getCompactionThreshold(), memoryDataManager::getMessage);
+            } catch (Exception e) {
+                System.out.println("[VirtualHost] Compact failed queueName = " + queue.getName());
+                e.printStackTrace();
+            }
+        }
     }
 
     // 创建交换机
@@ -48,7 +96,8 @@ public class VirtualHost {
         // 将交换机的名字加上虚拟主机名的前缀 以此来确定交换机的归属
         exchangeName = virtualHostName + exchangeName;
         try{
-            synchronized (exchangeLocker) {
+            exchangeLocker.lock();
+            try {
                 // 1.判断交换机是否存在
                 Exchange existsExchange = memoryDataManager.getExchange(exchangeName);
                 if (existsExchange != null) {
@@ -72,6 +121,8 @@ public class VirtualHost {
                 // 4.将交换机写入内存
                 memoryDataManager.insertExchange(exchange);
                 System.out.println("[VirtualHost] Exchange " + exchangeName + " created");
+            } finally {
+                exchangeLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -85,7 +136,8 @@ public class VirtualHost {
     public boolean exchangeDelete(String exchangeName){
         exchangeName = virtualHostName + exchangeName;
         try{
-            synchronized (exchangeLocker) {
+            exchangeLocker.lock();
+            try {
 
                 // 1.先找到对应的交换机
                 Exchange toDelete = memoryDataManager.getExchange(exchangeName);
@@ -101,6 +153,8 @@ public class VirtualHost {
                 // 3.删除硬盘上的数据
                 memoryDataManager.deleteExchange(exchangeName);
                 System.out.println("[VirtualHost] Exchange " + exchangeName + " deleted");
+            } finally {
+                exchangeLocker.unlock();
             }
             return true;
 
@@ -114,7 +168,8 @@ public class VirtualHost {
     public boolean queueDeclare(String queueName, boolean durable, boolean exclusive, boolean autoDelete, Map<String,Object> arguments) {
         queueName = virtualHostName + queueName;
         try{
-            synchronized (queueLocker) {
+            queueLocker.lock();
+            try {
                 // 1.判断队列是否存在
                 MSGQueue existsQueue = memoryDataManager.getQueue(queueName);
                 if (existsQueue != null) {
@@ -134,6 +189,8 @@ public class VirtualHost {
                 }
                 memoryDataManager.insertQueue(queue);
                 System.out.println("[VirtualHost] Queue " + queueName + " created");
+            } finally {
+                queueLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -147,7 +204,8 @@ public class VirtualHost {
     public boolean queueDelete(String queueName) {
         queueName = virtualHostName + queueName;
         try {
-            synchronized (queueLocker) {
+            queueLocker.lock();
+            try {
                 MSGQueue queue = memoryDataManager.getQueue(queueName);
                 if (queue == null) {
                     throw new MQException("[VirtualHost] Queue " + queueName + " does not exist");
@@ -157,6 +215,8 @@ public class VirtualHost {
                 }
                 memoryDataManager.deleteQueue(queueName);
                 System.out.println("[VirtualHost] Queue " + queueName + " deleted");
+            } finally {
+                queueLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -172,8 +232,10 @@ public class VirtualHost {
         exchangeName = virtualHostName + exchangeName;
         queueName = virtualHostName + queueName;
         try{
-            synchronized (exchangeLocker) {
-                synchronized (queueLocker) {
+            exchangeLocker.lock();
+            try {
+                queueLocker.lock();
+                try {
                     Binding existsBinding = memoryDataManager.getBinding(exchangeName, queueName);
                     if (existsBinding != null) {
                         throw new MQException("[VirtualHost] Binding already exists " + exchangeName + " " + queueName);
@@ -205,7 +267,11 @@ public class VirtualHost {
                         diskDataManager.insertBinding(binding);
                     }
                     memoryDataManager.insertBinding(binding);
+                } finally {
+                    queueLocker.unlock();
                 }
+            } finally {
+                exchangeLocker.unlock();
             }
             System.out.println("[VirtualHost] Binding "+bindingKey+" created");
             return true;
@@ -221,8 +287,10 @@ public class VirtualHost {
         exchangeName = virtualHostName + exchangeName;
         queueName = virtualHostName + queueName;
         try{
-            synchronized (exchangeLocker) {
-                synchronized (queueLocker) {
+            exchangeLocker.lock();
+            try {
+                queueLocker.lock();
+                try {
                     Binding binding = memoryDataManager.getBinding(exchangeName, queueName);
                     if (binding == null) {
                         throw new MQException("[VirtualHost] Binding " + queueName + " does not exist");
@@ -232,7 +300,11 @@ public class VirtualHost {
                     diskDataManager.deleteBinding(binding);
 
                     memoryDataManager.deleteBinding(binding);
+                } finally {
+                    queueLocker.unlock();
                 }
+            } finally {
+                exchangeLocker.unlock();
             }
 
             System.out.println("[VirtualHost] Binding deleted");
@@ -244,8 +316,14 @@ public class VirtualHost {
         }
     }
 
-    // 发送消息到指定交换机/队列
+    // 发送消息到指定交换机/队列 持久化的消息刷盘之后才返回
     public boolean basicPublish(String exchangeName, String routingKey, BasicProperties basicProperties,byte[] data) {
+        return basicPublishAsync(exchangeName, routingKey, basicProperties, data).join();
+    }
+
+    // 和 basicPublish 一样路由并写入文件 但不等待刷盘 返回的 future 在消息放入所有队列之后完成 不会异常完成
+    // 持久化的消息刷盘之后才放入内存中的队列 交给消费者 future 可能在刷盘的线程中完成 后续的回调不能阻塞
+    public CompletableFuture<Boolean> basicPublishAsync(String exchangeName, String routingKey, BasicProperties basicProperties,byte[] data) {
         try {
             exchangeName = virtualHostName + exchangeName;
             if (!Router.checkRoutingKey(routingKey)) {
@@ -256,64 +334,148 @@ public class VirtualHost {
                 throw new MQException("[VirtualHost] Exchange " + exchangeName + " does not exist");
             }
 
-            // 判断交换机类型
-            if(exchange.getType() == ExchangeType.DIRECT) {
-                // 按照直接交换机的方式进行消息转发
-                // 无视绑定 直接用 routingKey 作为队列的名字将消息写入到队列中
-                String queueName = virtualHostName + routingKey;
-                // 构造消息对象
-                Message message = Message.createMessageById(routingKey,basicProperties,data);
-                MSGQueue queue = memoryDataManager.getQueue(queueName);
-                if (queue == null) {
-                    throw new MQException("[VirtualHost] Queue " + queueName + " does not exist");
+            // 按交换机类型找到消息要投递的队列
+            Map<MSGQueue, Message> routed = route(exchange, routingKey, basicProperties, data);
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (Map.Entry<MSGQueue, Message> entry : routed.entrySet()) {
+                sent.add(sendMessages(entry.getKey(), Collections.singletonList(entry.getValue())));
+            }
+            return CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).handle((v, e) -> {
+                if (e != null) {
+                    System.out.println("[VirtualHost] Send message failed");
+                    e.printStackTrace();
+                    return false;
                 }
+                return true;
+            });
+        }catch (Exception e){
+            System.out.println("[VirtualHost] Send message failed");
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+    // 批量发送消息到指定交换机
+    // 整批只查一次交换机 路由完成后按队列分组 每个队列只加一次锁 写一次硬盘
+    // 返回值 results[i] 表示第 i 条消息是否投递成功 某条消息失败不影响其他消息
+    public boolean[] basicPublishBatch(String exchangeName, List<PublishMessage> publishMessages) {
+        return basicPublishBatchAsync(exchangeName, publishMessages).join();
+    }
 
-                sendMessage(queue,message);
+    // 和 basicPublishBatch 一样路由并写入文件 但不等待刷盘 和 basicPublishAsync 一样在刷盘之后完成
+    public CompletableFuture<boolean[]> basicPublishBatchAsync(String exchangeName, List<PublishMessage> publishMessages) {
+        boolean[] results = new boolean[publishMessages.size()];
+        exchangeName = virtualHostName + exchangeName;
+        Exchange exchange = memoryDataManager.getExchange(exchangeName);
+        if (exchange == null) {
+            System.out.println("[VirtualHost] Exchange " + exchangeName + " does not exist");
+            return CompletableFuture.completedFuture(results);
+        }
 
-            }else{
-                // 按照 fanout 和 topic
-                // 找到该交换机关联的所有绑定
-                ConcurrentHashMap<String, Binding> bindings = memoryDataManager.getBindings(exchangeName);
-                for (Map.Entry<String, Binding> entry : bindings.entrySet()) {
-                    // 1） 获取到绑定对象 判断对应的队列是否存在
-                    Binding binding = entry.getValue();
-                    MSGQueue queue = memoryDataManager.getQueue(binding.getQueueName());
-                    if (queue == null) {
-                        // 希望一个队列不存在 不影响其他队列的消息传输
-                        System.out.println("[VirtualHost] Queue not exists "+binding.getQueueName());
-                        continue;
-                    }
+        // key: 队列 value: 要写入该队列的消息 以及消息在这一批中的下标
+        Map<MSGQueue, List<Message>> queueMessages = new LinkedHashMap<>();
+        Map<MSGQueue, List<Integer>> queueIndexes = new HashMap<>();
+        for (int i = 0; i < publishMessages.size(); i++) {
+            PublishMessage publishMessage = publishMessages.get(i);
+            try {
+                if (!Router.checkRoutingKey(publishMessage.getRoutingKey())) {
+                    throw new MQException("[VirtualHost] routingKey 非法 routingKey: " + publishMessage.getRoutingKey());
+                }
+                Map<MSGQueue, Message> routed = route(exchange, publishMessage.getRoutingKey(),
+                        publishMessage.getBasicProperties(), publishMessage.getBody());
+                for (Map.Entry<MSGQueue, Message> entry : routed.entrySet()) {
+                    queueMessages.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(entry.getValue());
+                    queueIndexes.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(i);
+                }
+                results[i] = true;
+            } catch (Exception e) {
+                System.out.println("[VirtualHost] Route message failed index = " + i + " " + e.getMessage());
+            }
+        }
 
-                    // 构造消息对象
-                    Message message = Message.createMessageById(routingKey,basicProperties,data);
-                    // 判断此消息是否要发送到该队列
-                    // 1) fanout 所有绑定的队列都需要转发
-                    // 2) topic 还需要判断 bindingKey 和 routingKey 是否匹配
-                    if(!Router.rout(exchange.getType(),binding,message)) {
-                        continue;
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (Map.Entry<MSGQueue, List<Message>> entry : queueMessages.entrySet()) {
+            CompletableFuture<Void> future;
+            try {
+                future = sendMessages(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            sent.add(future.handle((v, e) -> {
+                if (e != null) {
+                    System.out.println("[VirtualHost] Send messages failed queueName = " + entry.getKey().getName());
+                    e.printStackTrace();
+                    for (int index : queueIndexes.get(entry.getKey())) {
+                        results[index] = false;
                     }
-                    sendMessage(queue,message);
                 }
-            }
-            return true;
-        }catch (Exception e){
-            System.out.println("[VirtualHost] Send message failed");
-            e.printStackTrace();
-            return false;
+                return null;
+            }));
         }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).thenApply(v -> results);
     }
-    private void sendMessage(MSGQueue queue, Message message) throws IOException, InterruptedException {
-        // 将消息写入内存和硬盘上
-        // deliverMode == 1 不持久化 2 持久化
-        if(message.getDeliverMode() == 2){
-            // 持久化到硬盘
-            diskDataManager.sendMessage(queue,message);
+
+    // 根据交换机类型找出消息要投递到的队列 并为每个队列构造一条消息
+    // 1) direct 无视绑定 直接用 routingKey 作为队列的名字
+    // 2) fanout 所有绑定的队列都需要转发
+    // 3) topic 还需要判断 bindingKey 和 routingKey 是否匹配
+    private Map<MSGQueue, Message> route(Exchange exchange, String routingKey, BasicProperties basicProperties, byte[] data) throws MQException {
+        Map<MSGQueue, Message> routed = new LinkedHashMap<>();
+        if(exchange.getType() == ExchangeType.DIRECT) {
+            String queueName = virtualHostName + routingKey;
+            MSGQueue queue = memoryDataManager.getQueue(queueName);
+            if (queue == null) {
+                throw new MQException("[VirtualHost] Queue " + queueName + " does not exist");
+            }
+            routed.put(queue, Message.createMessageById(routingKey,basicProperties,data));
+            return routed;
         }
-        // 写入消息到内存
-        memoryDataManager.sendMessage(queue,message);
 
-        // 通知消费者消费消息
-        consumerManager.notifyConsume(queue.getName());
+        // 找到该交换机关联的所有绑定
+        ConcurrentHashMap<String, Binding> bindings = memoryDataManager.getBindings(exchange.getName());
+        if (bindings == null) {
+            return routed;
+        }
+        for (Map.Entry<String, Binding> entry : bindings.entrySet()) {
+            Binding binding = entry.getValue();
+            MSGQueue queue = memoryDataManager.getQueue(binding.getQueueName());
+            if (queue == null) {
+                // 希望一个队列不存在 不影响其他队列的消息传输
+                System.out.println("[VirtualHost] Queue not exists "+binding.getQueueName());
+                continue;
+            }
+            Message message = Message.createMessageById(routingKey,basicProperties,data);
+            if(!Router.rout(exchange.getType(),binding,message)) {
+                continue;
+            }
+            routed.put(queue, message);
+        }
+        return routed;
+    }
+
+    // 写入同一个队列的消息 deliverMode == 1 不持久化 2 持久化
+    // 持久化的消息一次性追加到文件中 刷盘之后内存中一次加锁放入整批消息 然后逐条通知消费者
+    // 返回的 future 在消息放入内存之后完成 写入或者刷盘失败时异常完成 这一批消息都不放入内存
+    private CompletableFuture<Void> sendMessages(MSGQueue queue, List<Message> messages) throws IOException {
+        List<Message> durableMessages = new ArrayList<>();
+        for (Message message : messages) {
+            if (message.getDeliverMode() == 2) {
+                durableMessages.add(message);
+            }
+        }
+        CompletableFuture<Void> durable = durableMessages.isEmpty()
+                ? CompletableFuture.completedFuture(null)
+                : diskDataManager.sendMessagesAsync(queue, durableMessages);
+        return durable.thenRun(() -> {
+            memoryDataManager.sendMessages(queue, messages);
+            for (int i = 0; i < messages.size(); i++) {
+                try {
+                    consumerManager.notifyConsume(queue.getName());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
     }
 
     // 订阅消息
@@ -322,10 +484,15 @@ public class VirtualHost {
     // autoAck:消息被消费完成后应答的方式 true 自动应答 false 手动应答
     // Consumer 函数式接口
     public boolean basicConsume(String consumerTag,String queueName,boolean autoAck, Consumer consumer) throws MQException {
+        return basicConsume(consumerTag, queueName, autoAck, 0, consumer);
+    }
+
+    // prefetchCount: 这个消费者最多同时有多少条推送了但还没有确认的消息 0 表示不限制
+    public boolean basicConsume(String consumerTag,String queueName,boolean autoAck, int prefetchCount, Consumer consumer) throws MQException {
         // 构造一个 consumer 对象 找到对应的队列将这个 consumer 加进去
         queueName = virtualHostName + queueName;
         try{
-            consumerManager.addConsumer(consumerTag,queueName,autoAck,consumer);
+            consumerManager.addConsumer(consumerTag,queueName,autoAck,prefetchCount,consumer);
             System.out.println("[VirtualHost] Consumer added queueName = " + queueName);
             return true;
         } catch (RuntimeException e) {
@@ -335,6 +502,47 @@ public class VirtualHost {
         }
     }
 
+    // 按投递序号确认 multiple 为 true 时确认 deliveryTag 及之前所有未确认的消息
+    // 持久化的消息一次性从硬盘上删除 只打开一次文件 更新一次统计文件
+    public boolean basicAck(String consumerTag, String queueName, long deliveryTag, boolean multiple) {
+        queueName = virtualHostName + queueName;
+        try {
+            MSGQueue queue = memoryDataManager.getQueue(queueName);
+            if (queue == null) {
+                throw new MQException("[VirtualHost] Ack message`s queue not exists " + queueName);
+            }
+            // 1.取出这次确认的所有消息
+            List<Message> messages = consumerManager.takeUnacked(queue, consumerTag, deliveryTag, multiple);
+            if (messages.isEmpty()) {
+                throw new MQException("[VirtualHost] Ack deliveryTag " + deliveryTag + " does not exist");
+            }
+
+            // 2.删除硬盘上的数据
+            List<Message> durableMessages = new ArrayList<>();
+            for (Message message : messages) {
+                if (message.getDeliverMode() == 2) {
+                    durableMessages.add(message);
+                }
+            }
+            if (!durableMessages.isEmpty()) {
+                diskDataManager.deleteMessages(queue, durableMessages);
+            }
+
+            // 3.删除消息中心和待确认集合中的消息
+            for (Message message : messages) {
+                memoryDataManager.removeMessage(message.getMessageId());
+                memoryDataManager.removeMessageWaitAck(queueName, message.getMessageId());
+            }
+            System.out.println("[VirtualHost] basicAck success queueName = " + queueName + ", deliveryTag = " + deliveryTag
+                    + ", count = " + messages.size());
+            return true;
+        } catch (Exception e) {
+            System.out.println("[VirtualHost] basicAck failed queueName = " + queueName + ", deliveryTag = " + deliveryTag);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public boolean basicAck(String queueName, String messageId) throws MQException {
         queueName = virtualHostName + queueName;
         try{
@@ -358,6 +566,9 @@ public class VirtualHost {
 
             // 4.删除待确认消息集合的消息
             memoryDataManager.removeMessageWaitAck(queueName,messageId);
+
+            // 5.推送给的消费者空出一个位置 继续推送
+            consumerManager.onAck(queueName, messageId);
             System.out.println("[VirtualHost] basicAck success queueName = " + queueName + ", messageId = " + messageId);
 
             return true;
@@ -368,4 +579,100 @@ public class VirtualHost {
         }
     }
 
+    // 主动拉取消息 一次最多取 maxMessages 条 直接在调用线程中完成 不经过 ConsumerManager 的扫描线程和线程池
+    // autoAck 为 false 时消息放入待确认集合 之后按 messageId 调用 basicAck
+    // 返回的是属性和消息体 读出的消息体不挂到消息中心的消息上 读不出消息体的消息直接丢弃 不返回
+    public List<GetMessage> basicGet(String queueName, int maxMessages, boolean autoAck) {
+        queueName = virtualHostName + queueName;
+        try {
+            MSGQueue queue = memoryDataManager.getQueue(queueName);
+            if (queue == null) {
+                throw new MQException("[VirtualHost] Get message`s queue not exists " + queueName);
+            }
+            List<Message> polled = memoryDataManager.pollMessages(queueName, maxMessages);
+            List<Message> messages = new ArrayList<>(polled.size());
+            List<GetMessage> getMessages = new ArrayList<>(polled.size());
+            for (Message message : polled) {
+                try {
+                    getMessages.add(new GetMessage(message.getBasicProperties(), loadBody(queue, message)));
+                    messages.add(message);
+                } catch (IOException e) {
+                    // loadBody 已经丢弃了这条消息 继续取下一条
+                    e.printStackTrace();
+                }
+            }
+            if (messages.isEmpty()) {
+                return getMessages;
+            }
+            if (!autoAck) {
+                for (Message message : messages) {
+                    memoryDataManager.addMessageWaitAck(queueName, message);
+                }
+            } else {
+                // 自动确认 取出即删除 持久化的消息一次性从硬盘上删除
+                List<Message> durableMessages = new ArrayList<>();
+                for (Message message : messages) {
+                    if (message.getDeliverMode() == 2) {
+                        durableMessages.add(message);
+                    }
+                }
+                if (!durableMessages.isEmpty()) {
+                    diskDataManager.deleteMessages(queue, durableMessages);
+                }
+                for (Message message : messages) {
+                    memoryDataManager.removeMessage(message.getMessageId());
+                }
+            }
+            System.out.println("[VirtualHost] basicGet success queueName = " + queueName + ", count = " + messages.size());
+            return getMessages;
+        } catch (Exception e) {
+            System.out.println("[VirtualHost] basicGet failed queueName = " + queueName);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // 取出投递用的消息体 在队列锁之外调用
+    // 恢复时持久化的消息只加载了属性 投递之前从文件中读出消息体 读出的消息体不挂到消息上 投递完就可以回收
+    // 读不出消息体（文件损坏 CRC 校验不通过）的消息再投递也一样失败 不放回队列 直接丢弃后抛出异常
+    public byte[] loadBody(MSGQueue queue, Message message) throws IOException {
+        byte[] body = message.getBody();
+        if (body != null || message.getDeliverMode() != 2) {
+            return body;
+        }
+        try {
+            return diskDataManager.readBody(queue, message);
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("[VirtualHost] Load message body failed, drop message queueName = " + queue.getName()
+                    + ", messageId = " + message.getMessageId());
+            dropMessage(queue, message);
+            throw new IOException("[VirtualHost] Message body unreadable messageId: " + message.getMessageId(), e);
+        }
+    }
+
+    // 丢弃一条消息 和确认一样从硬盘 消息中心 待确认集合中删除 推送给的消费者空出一个位置
+    private void dropMessage(MSGQueue queue, Message message) {
+        try {
+            diskDataManager.deleteMessage(queue, message);
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        memoryDataManager.removeMessage(message.getMessageId());
+        memoryDataManager.removeMessageWaitAck(queue.getName(), message.getMessageId());
+        try {
+            consumerManager.onAck(queue.getName(), message.getMessageId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 关闭虚拟主机 停止消费者线程和压缩线程 关闭消息文件
+    public void close() {
+        consumerManager.close();
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        diskDataManager.close();
+    }
+
 }
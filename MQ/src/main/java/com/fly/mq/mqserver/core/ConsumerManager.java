@@ -2,12 +2,15 @@ package com.fly.mq.mqserver.core;
 
 import com.fly.mq.common.Consumer;
 import com.fly.mq.common.ConsumerEnv;
+import com.fly.mq.common.ExecutorTool;
 import com.fly.mq.common.MQException;
+import com.fly.mq.common.ThreadMode;
 import com.fly.mq.mqserver.VirtualHost;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -17,16 +20,25 @@ public class ConsumerManager {
     // 持有 VirtualHost 的引用用来操作数据
     private VirtualHost parent;
     // 指定一个线程池 用来执行指定的任务
-    ExecutorService workerPool = Executors.newFixedThreadPool(4);
+    // PLATFORM 模式下是固定大小的线程池 VIRTUAL 模式下每次投递一个虚拟线程 阻塞的回调不会卡住其他投递
+    ExecutorService workerPool;
     // 存放令牌的队列（队列名）
     private BlockingQueue<String> tokenQueue = new LinkedBlockingQueue<>();
     // 扫描线程
     private Thread scannerThread = null;
+    // 推送给手动确认的消费者 还没有确认的消息 key: messageId value: 消息推送给的消费者
+    // 收到确认时据此减少消费者的未确认数 让它可以继续接收消息
+    private ConcurrentHashMap<String, ConsumerEnv> unackedConsumers = new ConcurrentHashMap<>();
 
     public ConsumerManager(VirtualHost parent) {
+        this(parent, ThreadMode.PLATFORM, 4);
+    }
+
+    public ConsumerManager(VirtualHost parent, ThreadMode threadMode, int workerThreads) {
         this.parent = parent;
+        this.workerPool = ExecutorTool.newFixedThreadPool(threadMode, workerThreads);
         scannerThread = new Thread(() -> {
-            while(true) {
+            while(!Thread.currentThread().isInterrupted()) {
                 try {
                     // 1.拿到有消息的令牌（队列名）
                     String queueName = tokenQueue.take();
@@ -36,10 +48,16 @@ public class ConsumerManager {
                         throw new MQException("[ConsumerManager] Queue not found queueName: " + queueName);
                     }
                     // 3.从这个队列中消费消息
-                    synchronized(queue) {
+                    queue.getLock().lock();
+                    try {
                         consumeMessage(queue);
+                    } finally {
+                        queue.getLock().unlock();
                     }
-                } catch (InterruptedException | MQException e) {
+                } catch (InterruptedException e) {
+                    // close() 时中断扫描线程
+                    break;
+                } catch (MQException e) {
                     e.printStackTrace();
                 }
             }
@@ -50,20 +68,62 @@ public class ConsumerManager {
 
     }
 
+    // 停止扫描线程和线程池
+    public void close() {
+        scannerThread.interrupt();
+        workerPool.shutdownNow();
+    }
+
     // 发送消息的时候调用
     public void notifyConsume(String queueName) throws InterruptedException {
         tokenQueue.put(queueName);
     }
 
-    //
+    // 消息被确认 推送给它的消费者空出一个位置 给这个队列一个令牌 继续推送
+    public void onAck(String queueName, String messageId) throws InterruptedException {
+        ConsumerEnv consumerEnv = unackedConsumers.remove(messageId);
+        if (consumerEnv == null) {
+            return;
+        }
+        consumerEnv.removeUnacked(messageId);
+        notifyConsume(queueName);
+    }
+
+    // 按 deliveryTag 确认 取出这次确认的所有消息 multiple 为 true 时包括 deliveryTag 之前所有未确认的消息
+    // 每空出一个位置给队列一个令牌 返回的消息由调用方从硬盘和内存中删除
+    public List<Message> takeUnacked(MSGQueue queue, String consumerTag, long deliveryTag, boolean multiple) throws InterruptedException {
+        ConsumerEnv consumerEnv;
+        queue.getLock().lock();
+        try {
+            consumerEnv = queue.getConsumerEnv(consumerTag);
+        } finally {
+            queue.getLock().unlock();
+        }
+        if (consumerEnv == null) {
+            throw new MQException("[ConsumerManager] Consumer not found consumerTag = " + consumerTag);
+        }
+        List<Message> messages = consumerEnv.removeUnacked(deliveryTag, multiple);
+        for (Message message : messages) {
+            unackedConsumers.remove(message.getMessageId());
+            notifyConsume(queue.getName());
+        }
+        return messages;
+    }
+
     public void addConsumer(String consumerTag, String queueName, boolean autoAck, Consumer consumer) {
+        addConsumer(consumerTag, queueName, autoAck, 0, consumer);
+    }
+
+    // prefetchCount: 最多同时有多少条未确认的消息 0 表示不限制
+    public void addConsumer(String consumerTag, String queueName, boolean autoAck, int prefetchCount, Consumer consumer) {
         // 找到对应的队列
         MSGQueue queue = parent.getMemoryDataManager().getQueue(queueName);
         if(queue == null){
             throw new MQException("[ConsumerManager] Queue not found queueName = " + queueName);
         }
-        ConsumerEnv consumerEnv = new ConsumerEnv(consumerTag, queueName, autoAck, consumer);
-        synchronized (queue){
+        ConsumerEnv consumerEnv = new ConsumerEnv(consumerTag, queueName, autoAck, consumer, prefetchCount);
+        queue.getLock().lock();
+        try {
             queue.addConsumerEnv(consumerEnv);
             // 此时如果队列中有消息 需要立即消费
             int n = parent.getMemoryDataManager().getMessageCount(queueName);
@@ -71,6 +131,8 @@ public class ConsumerManager {
                 // 消费一条消息
                 consumeMessage(queue);
             }
+        } finally {
+            queue.getLock().unlock();
         }
     }
 
@@ -82,7 +144,8 @@ public class ConsumerManager {
         // 1.按照轮询的方式找到一个消费者
         ConsumerEnv luckyOne = queue.chooseConsumerEnv();
         if(luckyOne == null) {
-            // 如果没有的消费者
+            // 如果没有的消费者 或者所有消费者的未确认消息都达到了预取数量
+            // 消息留在队列中 等消费者确认消息后再推送
             return;
         }
         Message message = parent.getMemoryDataManager().pollMessage(queue.getName());
@@ -90,22 +153,42 @@ public class ConsumerManager {
             // 当前队列没有消息
             return;
         }
+        long deliveryTag = luckyOne.nextDeliveryTag();
+        if (!luckyOne.isAutoAck()) {
+            // 在队列锁内计数 下一次选择消费者时就能看到
+            luckyOne.addUnacked(deliveryTag, message);
+            unackedConsumers.put(message.getMessageId(), luckyOne);
+        }
 
         // 把消息带到消费者的回调方法中丢给线程池执行
         workerPool.submit(() -> {
             try {
                 // 1.把消息放到待确认集合中
                 parent.getMemoryDataManager().addMessageWaitAck(queue.getName(), message);
-                // 2.执行回调
+                // 2.执行回调 在队列锁之外读出消息体 直接从文件发送的消费者自己读取
+                // 读不出消息体时 loadBody 已经把消息丢弃
                 try{
-                    luckyOne.getConsumer().handleDelivery(luckyOne.getConsumerTag(), message.getBasicProperties(), message.getBody());
+                    Consumer consumer = luckyOne.getConsumer();
+                    if (consumer.readsBodyFromFile()) {
+                        consumer.handleDelivery(luckyOne.getConsumerTag(), deliveryTag, queue, message);
+                    } else {
+                        consumer.handleDelivery(luckyOne.getConsumerTag(), deliveryTag, message.getBasicProperties(),
+                                parent.loadBody(queue, message));
+                    }
                 }catch (Exception e){
                     System.out.println("[ConsumerManager] Consumer handleDelivery threw exception");
                     e.printStackTrace();
-                    return; // 提前退出，不执行后续删除逻辑
+                    // 消息没有交给消费者 不执行后续删除逻辑 放回队列重新推送
+                    requeue(queue, luckyOne, message);
+                    return;
                 }
                 // 3.如果 autoAck == true 直接删掉 如果为 false 则需要后续消费者调用 basicAck()
-                if (luckyOne.isAutoAck()) {
+                if (!luckyOne.isAutoAck()) {
+                    // 持久化的消息已经交给消费者（零拷贝投递直接从文件发送） 等待确认期间不再持有消息体
+                    if (message.getDeliverMode() == 2) {
+                        parent.getMemoryDataManager().releaseBody(message);
+                    }
+                } else {
                     // 1) 删除硬盘上的消息
                     if(message.getDeliverMode() == 2) {
                         parent.getDiskDataManager().deleteMessage(queue, message);
@@ -124,6 +207,25 @@ public class ConsumerManager {
         });
     }
 
-
-
+    // 推送失败 消费者空出这条消息占用的预取位置 消息从待确认集合放回队列头部 交给其他消费者
+    // 推送失败的消费者（比如连接已经断开）从队列中移除 否则消息会反复选中它 一直失败
+    // 读不出消息体时 loadBody 已经把消息丢弃并空出了位置 不再放回
+    private void requeue(MSGQueue queue, ConsumerEnv consumerEnv, Message message) throws InterruptedException {
+        queue.getLock().lock();
+        try {
+            queue.removeConsumerEnv(consumerEnv);
+        } finally {
+            queue.getLock().unlock();
+        }
+        if (parent.getMemoryDataManager().getMessage(message.getMessageId()) == null) {
+            return;
+        }
+        if (!consumerEnv.isAutoAck()) {
+            consumerEnv.removeUnacked(message.getMessageId());
+            unackedConsumers.remove(message.getMessageId());
+        }
+        parent.getMemoryDataManager().removeMessageWaitAck(queue.getName(), message.getMessageId());
+        parent.getMemoryDataManager().requeueMessage(queue, message);
+        notifyConsume(queue.getName());
+    }
 }
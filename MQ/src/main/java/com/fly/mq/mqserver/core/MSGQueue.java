@@ -15,6 +15,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 表示存储消的队列
@@ -47,22 +48,47 @@ public class MSGQueue {
     // 记录当前取到了那个消费者方便实现轮询
     private AtomicInteger consumerSeq = new AtomicInteger(0);
 
+    // 针对这个队列的锁 多个线程写同一个队列的文件/消费同一个队列时使用
+    // 使用 ReentrantLock 而不是 synchronized(queue) 避免虚拟线程在持锁做文件 IO 时被钉住
+    @Getter
+    private final ReentrantLock lock = new ReentrantLock();
+
     // 添加一个订阅者
     public void addConsumerEnv(ConsumerEnv consumerEnv){
         consumerEnvList.add(consumerEnv);
     }
 
-    // 删除一个订阅者 TODO
+    // 删除一个订阅者 推送失败（连接已经断开）的订阅者不再参与轮询
+    public void removeConsumerEnv(ConsumerEnv consumerEnv) {
+        consumerEnvList.remove(consumerEnv);
+    }
+
+    // 根据 consumerTag 找到订阅者 没有返回 null
+    public ConsumerEnv getConsumerEnv(String consumerTag) {
+        for (ConsumerEnv consumerEnv : consumerEnvList) {
+            if (consumerEnv.getConsumerTag().equals(consumerTag)) {
+                return consumerEnv;
+            }
+        }
+        return null;
+    }
 
     // 选择一个订阅者处理当前的消息（轮询的方式）
+    // 跳过未确认消息数已经达到预取数量的订阅者 所有订阅者都满了返回 null
     public ConsumerEnv chooseConsumerEnv(){
        if(consumerEnvList.isEmpty()){
            return null;
        }
-       // 记录当前元素的下标
-       int index = consumerSeq.get() % consumerEnvList.size();
-       consumerSeq.getAndIncrement();
-       return consumerEnvList.get(index);
+       int size = consumerEnvList.size();
+       for (int i = 0; i < size; i++) {
+           // 记录当前元素的下标
+           int index = Math.floorMod(consumerSeq.getAndIncrement(), size);
+           ConsumerEnv consumerEnv = consumerEnvList.get(index);
+           if (consumerEnv.hasCapacity()) {
+               return consumerEnv;
+           }
+       }
+       return null;
     }
 
 
@@ -95,7 +121,8 @@ public class MSGQueue {
 
     // 这里方便代码内部使用和测试
     public Object getArguments(String key) {
-        return arguments.get(key);
+        // 声明队列时 arguments 可能传的是 null
+        return arguments == null ? null : arguments.get(key);
     }
 
     public void setArguments(String key, Object value) {
@@ -31,8 +31,10 @@ public class Message implements Serializable {
     // 如果传入的 routingKey 和 BasicProperties 里的冲突以传入的为主
     public static Message createMessageById(String routingKey,BasicProperties basicProperties,byte[] body) {
         Message message = new Message();
+        // 只拷贝 deliverMode 不共用调用方的 BasicProperties
+        // 同一份属性路由到多个队列时 每条消息都要有自己的 messageId
         if(basicProperties != null) {
-            message.setBasicProperties(basicProperties);
+            message.setDeliverMode(basicProperties.getDeliverMode());
         }
 
         // 此时生成的 messageId 以 M- 作为前缀
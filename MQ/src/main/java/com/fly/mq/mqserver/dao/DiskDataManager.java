@@ -8,6 +8,8 @@ import com.fly.mq.mqserver.core.Message;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * 统一管理 硬盘上的文件
@@ -16,10 +18,24 @@ import java.util.List;
  */
 public class DiskDataManager {
     // 数据库
-    private MessageFileManager messageFileManager = new MessageFileManager();
+    private final MessageFileManager messageFileManager;
     // 数据文件
     private DataBaseManager dataBaseManager = new DataBaseManager();
 
+    public DiskDataManager() {
+        this(MessageFileManager.DEFAULT_SEGMENT_SIZE);
+    }
+
+    // segmentSize: 每个队列的段文件大小
+    public DiskDataManager(long segmentSize) {
+        messageFileManager = new MessageFileManager(segmentSize);
+    }
+
+    // fsyncPolicy: 持久化消息的刷盘策略
+    public DiskDataManager(long segmentSize, FsyncPolicy fsyncPolicy, long fsyncIntervalMs, int fsyncBatchMessages) {
+        messageFileManager = new MessageFileManager(segmentSize, fsyncPolicy, fsyncIntervalMs, fsyncBatchMessages);
+    }
+
     public void init(){
         dataBaseManager.init();
     }
@@ -71,15 +87,46 @@ public class DiskDataManager {
         messageFileManager.sendMessage(queue,message);
     }
 
+    public void sendMessages(MSGQueue queue, List<Message> messages) throws IOException {
+        messageFileManager.sendMessages(queue,messages);
+    }
+
+    // 写入之后立即返回 消息刷盘之后 future 完成
+    public CompletableFuture<Void> sendMessagesAsync(MSGQueue queue, List<Message> messages) throws IOException {
+        return messageFileManager.sendMessagesAsync(queue,messages);
+    }
+
+    // 删除消息 段中的消息全部删除之后段文件随之删除 不再需要整个文件的 GC
     public void deleteMessage(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
         messageFileManager.deleteMessage(queue,message);
-        if(messageFileManager.checkGC(queue.getName())){
-            messageFileManager.gc(queue);
-        };
+    }
+
+    // 批量删除同一个队列的消息
+    public void deleteMessages(MSGQueue queue, List<Message> messages) throws IOException, ClassNotFoundException {
+        messageFileManager.deleteMessages(queue,messages);
+    }
+
+    public MessageFileManager.RecordChannel openMessageChannel(MSGQueue queue, Message message) throws IOException {
+        return messageFileManager.openMessageChannel(queue, message);
+    }
+
+    // 恢复时只加载了属性的消息 投递之前读出消息体
+    public byte[] readBody(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        return messageFileManager.readBody(queue, message);
+    }
+
+    // 压缩队列中有效消息比例不超过 threshold 的一个段 lookup 用来找到内存中的消息 更新它们的位置
+    public boolean compact(MSGQueue queue, double threshold, Function<String, Message> lookup) throws IOException, ClassNotFoundException {
+        return messageFileManager.compact(queue, threshold, lookup);
     }
 
     public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, ClassNotFoundException {
         return messageFileManager.loadAllMessageFromQueue(queueName);
     }
 
+    // 关闭打开的消息文件 统计信息写回文件
+    public void close() {
+        messageFileManager.close();
+    }
+
 }
@@ -0,0 +1,29 @@
+package com.fly.mq.mqserver.dao;
+
+/**
+ * 持久化消息什么时候刷到磁盘（fsync）
+ * 发布请求的响应和发布确认都在消息所在的批次刷盘之后才返回 同一时间写入的消息共用一次刷盘
+ * NONE: 不主动刷盘 由操作系统决定什么时候写回 断电可能丢失消息
+ * ALWAYS: 每次写入之后都刷盘 正在刷盘时到达的写入等这一次结束后一起刷
+ * INTERVAL: 每隔 fsync-interval-ms 毫秒刷一次
+ * BATCH: 等待刷盘的消息达到 fsync-batch-messages 条时刷一次 消息不够时最多等 fsync-interval-ms 毫秒
+ */
+public enum FsyncPolicy {
+    NONE,
+    ALWAYS,
+    INTERVAL,
+    BATCH;
+
+    // 从配置中解析 未配置或无法识别时默认使用 ALWAYS
+    public static FsyncPolicy of(String name) {
+        if (name == null || name.isEmpty()) {
+            return ALWAYS;
+        }
+        for (FsyncPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name.trim())) {
+                return policy;
+            }
+        }
+        return ALWAYS;
+    }
+}
@@ -0,0 +1,253 @@
+package com.fly.mq.mqserver.dao;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 持久化消息的组提交
+ * 写入消息的线程在队列锁内登记写过的段 拿到一个序号 释放队列锁之后等待这个序号之前的写入都刷到磁盘
+ * 同一时间等待的线程中只有一个去刷盘（把登记过的段都 force 一遍） 其他线程等它结束 一次 fsync 覆盖所有已经写入的消息
+ * 一个 MessageFileManager（一个虚拟主机）共用一个 不同队列的写入也合并在一起刷盘
+ * 不能阻塞的线程（NIO 的 reactor）用 whenSynced 异步等待 刷盘交给 fsync-flusher 线程 刷完之后完成返回的 future
+ */
+class GroupCommitter {
+    private final FsyncPolicy policy;
+    private final int batchMessages;
+    // 使用 ReentrantLock 而不是 synchronized 避免虚拟线程等待刷盘时被钉住
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    // 已经写入的序号 和已经刷盘的序号
+    private long writtenSeq = 0;
+    private long syncedSeq = 0;
+    // 上次刷盘之后写入的消息个数
+    private int pendingMessages = 0;
+    // 上次刷盘之后写过的段
+    private Set<QueueLog.Segment> dirtySegments = new LinkedHashSet<>();
+    // 有线程正在刷盘
+    private boolean syncing = false;
+    private boolean closed = false;
+    // 异步等待刷盘的写入 key: 序号 value: 这个序号刷盘之后要完成的 future
+    private final TreeMap<Long, List<CompletableFuture<Void>>> callbacks = new TreeMap<>();
+    // 已经刷盘（或者刷盘失败）的 future 在 lock 之外按刷盘的顺序完成 避免在锁内执行回调
+    private List<Runnable> completions = new ArrayList<>();
+    // 同一时间只有一个线程完成 future 先刷盘的一批先完成
+    private final ReentrantLock completing = new ReentrantLock();
+    // 已经把一次刷盘交给 flusher 还没有开始执行
+    private boolean flushQueued = false;
+    // 执行异步等待的写入的刷盘 INTERVAL / BATCH 模式下还定时刷盘
+    private final ScheduledExecutorService flusher;
+
+    GroupCommitter(FsyncPolicy policy, long intervalMs, int batchMessages) {
+        this.policy = policy;
+        this.batchMessages = Math.max(1, batchMessages);
+        if (policy == FsyncPolicy.NONE) {
+            flusher = null;
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fsync-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (policy == FsyncPolicy.INTERVAL || policy == FsyncPolicy.BATCH) {
+            long delay = Math.max(1, intervalMs);
+            flusher.scheduleWithFixedDelay(this::flushQuietly, delay, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 在队列锁内调用 登记写入了 count 条消息的段 返回这次写入的序号
+    long written(QueueLog.Segment segment, int count) {
+        if (policy == FsyncPolicy.NONE) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            dirtySegments.add(segment);
+            pendingMessages += count;
+            return ++writtenSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 在队列锁外调用 等到 seq 之前的写入都已经刷盘
+    void await(long seq) throws IOException {
+        if (policy == FsyncPolicy.NONE) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (syncedSeq < seq) {
+                if (!syncing && shouldLead()) {
+                    sync();
+                } else {
+                    synced.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[GroupCommitter] 等待刷盘被中断");
+        } finally {
+            lock.unlock();
+            runCompletions();
+        }
+    }
+
+    // 在队列锁外调用 不阻塞调用线程 seq 之前的写入都刷盘之后返回的 future 完成 刷盘失败时异常完成
+    // 需要立即刷盘时（ALWAYS 或者 BATCH 攒够了消息）交给 flusher 线程 INTERVAL 模式下等定时任务
+    // future 在刷盘的线程中完成 后续的回调不能阻塞
+    CompletableFuture<Void> whenSynced(long seq) {
+        if (policy == FsyncPolicy.NONE) {
+            return CompletableFuture.completedFuture(null);
+        }
+        lock.lock();
+        try {
+            if (syncedSeq >= seq) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            callbacks.computeIfAbsent(seq, k -> new ArrayList<>()).add(future);
+            scheduleFlush();
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 持有 lock 时调用 有异步等待的写入需要刷盘时让 flusher 刷一次
+    // 正在刷盘时不用提交 这次刷盘结束后 sync 会再检查一次
+    private void scheduleFlush() {
+        if (syncing || flushQueued || callbacks.isEmpty() || !shouldLead()) {
+            return;
+        }
+        flushQueued = true;
+        try {
+            flusher.execute(this::flushQuietly);
+        } catch (RejectedExecutionException e) {
+            // 已经关闭 close 会把剩下的写入刷掉
+            flushQueued = false;
+        }
+    }
+
+    // 等待的线程是否自己去刷盘 INTERVAL 模式下由定时任务刷盘
+    private boolean shouldLead() {
+        return policy == FsyncPolicy.ALWAYS || closed
+                || (policy == FsyncPolicy.BATCH && pendingMessages >= batchMessages);
+    }
+
+    // 持有 lock 时调用 刷盘期间释放锁 新的写入可以继续登记 等下一次刷盘
+    private void sync() throws IOException {
+        syncing = true;
+        long target = writtenSeq;
+        List<QueueLog.Segment> segments = new ArrayList<>(dirtySegments);
+        dirtySegments = new LinkedHashSet<>();
+        pendingMessages = 0;
+        lock.unlock();
+        IOException error = null;
+        try {
+            for (QueueLog.Segment segment : segments) {
+                segment.force();
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+            syncing = false;
+        }
+        // 这次刷盘覆盖的异步等待 成功时正常完成 失败时异常完成 不再重试
+        Map<Long, List<CompletableFuture<Void>>> covered = callbacks.headMap(target, true);
+        for (List<CompletableFuture<Void>> futures : covered.values()) {
+            for (CompletableFuture<Void> future : futures) {
+                IOException cause = error;
+                completions.add(cause == null ? () -> future.complete(null) : () -> future.completeExceptionally(cause));
+            }
+        }
+        covered.clear();
+        if (error != null) {
+            // 刷盘失败 这些段留到下一次再刷 阻塞等待的线程继续等
+            dirtySegments.addAll(segments);
+            synced.signalAll();
+            scheduleFlush();
+            throw error;
+        }
+        syncedSeq = Math.max(syncedSeq, target);
+        synced.signalAll();
+        // 刷盘期间又有异步等待的写入
+        scheduleFlush();
+    }
+
+    // 在 lock 之外调用 完成已经刷盘的 future
+    private void runCompletions() {
+        completing.lock();
+        try {
+            while (true) {
+                List<Runnable> ready;
+                lock.lock();
+                try {
+                    if (completions.isEmpty()) {
+                        return;
+                    }
+                    ready = completions;
+                    completions = new ArrayList<>();
+                } finally {
+                    lock.unlock();
+                }
+                for (Runnable completion : ready) {
+                    completion.run();
+                }
+            }
+        } finally {
+            completing.unlock();
+        }
+    }
+
+    // 定时任务和 flusher 执行的刷盘 有还没刷盘的写入时刷一次
+    private void flushQuietly() {
+        lock.lock();
+        try {
+            flushQueued = false;
+            if (!syncing && syncedSeq < writtenSeq) {
+                sync();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+            runCompletions();
+        }
+    }
+
+    // 停止 flusher 把剩下的写入刷掉 之后等待的线程自己刷盘
+    // 不中断 flusher 中断正在 force 的线程会把段文件的 FileChannel 关掉 等它这次刷完
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushQuietly();
+    }
+}
@@ -7,9 +7,12 @@ import com.fly.mq.mqserver.core.MSGQueue;
 import com.fly.mq.mqserver.core.Message;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 管理内存中的数据
@@ -27,6 +30,10 @@ public class MemoryDataManager {
     private ConcurrentHashMap<String, LinkedList<Message>> queueMessageMap = new ConcurrentHashMap<>();
     // 表示未被确认的消息 1.key:queueName 2.key:messageId
     private ConcurrentHashMap<String, ConcurrentHashMap<String, Message>> queueMessageWaitAckMap = new ConcurrentHashMap<>();
+    // 消息中心里所有消息估算占用的内存 用于发布流控
+    private final AtomicLong messageBytes = new AtomicLong(0);
+    // 估算时每条消息在消息体之外的额外开销（Message BasicProperties 链表节点 哈希表节点等）
+    private static final int MESSAGE_OVERHEAD = 128;
 
     // 针对 Exchange
     public void insertExchange(Exchange exchange) {
@@ -49,6 +56,10 @@ public class MemoryDataManager {
     public MSGQueue getQueue(String queueName) {
         return queueMap.get(queueName);
     }
+    public Collection<MSGQueue> getQueues() {
+        return queueMap.values();
+    }
+
     public void deleteQueue(String queueName) {
         queueMap.remove(queueName);
         System.out.println("[MemoryDataManager] delete queue: " + queueName);
@@ -97,7 +108,7 @@ public class MemoryDataManager {
     }
 
     public void addMessage(Message message) {
-        messageMap.put(message.getMessageId(), message);
+        putMessage(message);
         System.out.println("[MemoryDataManager] add message: " + message.getMessageId());
     }
 
@@ -105,9 +116,40 @@ public class MemoryDataManager {
     public Message getMessage(String messageId) {
         return messageMap.get(messageId);
     }
+    // 消息中心里所有消息估算占用的字节数
+    public long getMessageBytes() {
+        return messageBytes.get();
+    }
+
+    // 重复插入同一条消息不重复计算大小
+    private void putMessage(Message message) {
+        if (messageMap.put(message.getMessageId(), message) == null) {
+            messageBytes.addAndGet(sizeOf(message));
+        }
+    }
+
+    private static long sizeOf(Message message) {
+        return MESSAGE_OVERHEAD + (message.getBody() == null ? 0 : message.getBody().length);
+    }
+
+    // 持久化的消息推送出去之后 消息体不用留在内存中等确认 重新投递时再从文件中读出
+    // 和 removeMessage 在同一个 key 上互斥 占用的字节数只减一次
+    public void releaseBody(Message message) {
+        messageMap.computeIfPresent(message.getMessageId(), (messageId, current) -> {
+            if (current == message && current.getBody() != null) {
+                messageBytes.addAndGet(-current.getBody().length);
+                current.setBody(null);
+            }
+            return current;
+        });
+    }
+
     // 从消息中心删除指定消息
     public void removeMessage(String messageId) {
-        messageMap.remove(messageId);
+        Message message = messageMap.remove(messageId);
+        if (message != null) {
+            messageBytes.addAndGet(-sizeOf(message));
+        }
         System.out.println("[MemoryDataManager] delete message: " + messageId);
     }
 
@@ -120,7 +162,7 @@ public class MemoryDataManager {
 //            messages = new LinkedList<>();
 //        }
         LinkedList<Message> messages = queueMessageMap.computeIfAbsent(queue.getName(), k -> new LinkedList<>());
-        synchronized (message) {
+        synchronized (messages) {
             messages.add(message);
         }
         // 即使重复插入也没影响
@@ -128,6 +170,28 @@ public class MemoryDataManager {
         System.out.println("[MemoryDataManager] send message: " + message.getMessageId());
     }
 
+    // 批量发送消息到指定队列 一次加锁把整批消息放到队列的链表中
+    public void sendMessages(MSGQueue queue, List<Message> messages) {
+        // 先放入 messageMap 再放入队列 消费者取到消息时一定能查到它
+        for (Message message : messages) {
+            putMessage(message);
+        }
+        LinkedList<Message> queueMessages = queueMessageMap.computeIfAbsent(queue.getName(), k -> new LinkedList<>());
+        synchronized (queueMessages) {
+            queueMessages.addAll(messages);
+        }
+        System.out.println("[MemoryDataManager] send messages: " + messages.size() + " queue: " + queue.getName());
+    }
+
+    // 推送失败的消息放回队列头部 下一次仍然最先被取出 消息中心中的消息一直都在 不需要重新放入
+    public void requeueMessage(MSGQueue queue, Message message) {
+        LinkedList<Message> messages = queueMessageMap.computeIfAbsent(queue.getName(), k -> new LinkedList<>());
+        synchronized (messages) {
+            messages.addFirst(message);
+        }
+        System.out.println("[MemoryDataManager] requeue message: " + message.getMessageId());
+    }
+
     // 从指定队列取出消息
     public Message pollMessage(String queueName) {
         // 根据队列名查找一下对应的消息链表
@@ -145,6 +209,21 @@ public class MemoryDataManager {
         }
     }
 
+    // 从指定队列一次取出最多 max 条消息 整批只加一次锁
+    public List<Message> pollMessages(String queueName, int max) {
+        List<Message> result = new ArrayList<>();
+        LinkedList<Message> messages = queueMessageMap.get(queueName);
+        if(messages == null || max <= 0) {
+            return result;
+        }
+        synchronized (messages) {
+            while (result.size() < max && !messages.isEmpty()) {
+                result.add(messages.removeFirst());
+            }
+        }
+        return result;
+    }
+
     // 获取指定队列中的消息个数
     public int getMessageCount(String queueName) {
         LinkedList<Message> messages = queueMessageMap.get(queueName);
@@ -192,6 +271,7 @@ public class MemoryDataManager {
         queueMap.clear();
         bindingsMap.clear();
         messageMap.clear();
+        messageBytes.set(0);
         queueMessageMap.clear();
 
         // 1.恢复所有的交换机数据
@@ -216,7 +296,7 @@ public class MemoryDataManager {
             LinkedList<Message> messages = diskDataCenter.loadAllMessageFromQueue(queue.getName());
             queueMessageMap.put(queue.getName(),messages);
             for(Message message : messages) {
-                messageMap.put(message.getMessageId(), message);
+                putMessage(message);
             }
         }
         // 针对未被确认的消息 一旦在等待 ack 的过程中服务器重启了 此时未被确认的消息就恢复成在队列中"未被取走"的消息
@@ -1,5 +1,6 @@
 package com.fly.mq.mqserver.dao;
 
+import com.fly.mq.common.BinaryCodec;
 import com.fly.mq.common.BinaryTool;
 import com.fly.mq.common.MQException;
 import com.fly.mq.mqserver.core.MSGQueue;
@@ -7,14 +8,76 @@ import com.fly.mq.mqserver.core.Message;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
 
 /**
  * 针对消息管理
+ * 每个队列的消息写在若干个固定大小的段文件中 只往最后一个段追加 写满之后新建一个段
+ * 一个段中的消息全部被删除（确认）之后直接删除这个段文件 不需要重写整个数据文件
+ * 段文件的 FileChannel 一直保持打开 写入位置和消息统计记在内存中 统计文件只在检查点和关闭时写入
+ * 持久化的消息按 FsyncPolicy 组提交刷盘 sendMessages 在消息刷盘之后才返回 sendMessagesAsync 写入之后立即返回 刷盘之后完成返回的 future
+ * 队列参数 x-storage-mode 为 mmap 时段文件映射到内存 追加 读取和删除标记都直接访问映射 不再每次调用 read / write
+ *
+ * 记录格式: [长度(4)] [头部长度(4)] [头部 CRC32C(4)] [消息体 CRC32C(4)] [编码后的消息]
+ * 编码后的消息分成头部（消息体之前的部分 包括属性和消息体长度）和消息体 两部分分别计算 CRC32C
+ * 头部 CRC 覆盖长度 头部长度 消息体 CRC 和头部 除了 isValid 这一个字节 删除消息时只改写这个字节 不需要重新计算 CRC
+ * 启动时只读出并校验每条记录的头部 跳过消息体 消息体的 CRC 在 readBody 读出消息体时再校验
+ * 长度的最高位为 1 表示后面跟着 CRC 旧版本写入的记录（以及 Java 原生序列化的记录）没有 CRC 只有 [长度(4)] [消息]
+ * 消息的 offsetBeg 始终指向编码后的消息的开头
  */
 @Slf4j
 public class MessageFileManager {
+    // 默认的段文件大小 一条消息不会被拆到两个段中 超过这个大小的消息单独占一个段
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // 统计信息改变这么多次之后写一次统计文件
+    private static final int CHECKPOINT_INTERVAL = 1000;
+    // 记录长度的最高位 表示长度后面跟着头部长度和 CRC32C
+    private static final int CHECKSUM_FLAG = 0x80000000;
+    // 记录头部（长度 + 头部长度 + 两个 CRC）最大的长度
+    private static final int RECORD_HEADER_LENGTH = 16;
+    // 压缩时每次加锁最多搬动的记录个数
+    private static final int COMPACT_BATCH = 64;
+    // 零拷贝投递之前校验消息体 CRC 时每次读取的大小
+    private static final int VERIFY_CHUNK_SIZE = 64 * 1024;
+    // 队列参数中表示存储方式的 key 值为 STORAGE_MMAP 时使用内存映射 其他值（或者不设置）使用 FileChannel
+    public static final String STORAGE_MODE = "x-storage-mode";
+    public static final String STORAGE_MMAP = "mmap";
+    private static final String SEGMENT_PREFIX = "queue_data_";
+    private static final String SEGMENT_SUFFIX = ".txt";
+
+    private final long segmentSize;
+    private final GroupCommitter groupCommitter;
+    // 已经打开过的队列日志 key: 队列名
+    private final ConcurrentHashMap<String, QueueLog> logs = new ConcurrentHashMap<>();
+
+    public MessageFileManager() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MessageFileManager(long segmentSize) {
+        this(segmentSize, FsyncPolicy.ALWAYS, 0, 0);
+    }
+
+    // fsyncIntervalMs: INTERVAL / BATCH 模式下的刷盘间隔 fsyncBatchMessages: BATCH 模式下攒够多少条消息刷一次
+    public MessageFileManager(long segmentSize, FsyncPolicy fsyncPolicy, long fsyncIntervalMs, int fsyncBatchMessages) {
+        this.segmentSize = segmentSize;
+        this.groupCommitter = new GroupCommitter(fsyncPolicy, fsyncIntervalMs, fsyncBatchMessages);
+    }
 
     // 用来描述该队列消息的统计信息
     static public class Stat {
@@ -29,8 +92,13 @@ public class MessageFileManager {
         return "./data/" + queueName;
     }
 
-    // 用来获取该队列的消息数据文件
-    private String getQueueDataPath(String queueName) {
+    // 段文件以起始位置命名 补齐到 20 位 按文件名排序就是段的顺序
+    private String getSegmentPath(String queueName, long base) {
+        return getQueueDir(queueName) + "/" + SEGMENT_PREFIX + String.format("%020d", base) + SEGMENT_SUFFIX;
+    }
+
+    // 旧版本的单个数据文件 第一次打开队列日志时改名成起始位置为 0 的段 里面的消息位置不变
+    private String getLegacyDataPath(String queueName) {
         return getQueueDir(queueName) + "/queue_data.txt";
     }
 
@@ -40,8 +108,16 @@ public class MessageFileManager {
     }
 
 
-    // 读取消息统计文件
+    // 读取消息统计
+    // 队列日志已经打开时返回内存中的统计 否则读取统计文件
     private Stat readStat(String queueName) {
+        QueueLog queueLog = logs.get(queueName);
+        if (queueLog != null) {
+            Stat stat = new Stat();
+            stat.totalCount = queueLog.getStat().totalCount;
+            stat.validCount = queueLog.getStat().validCount;
+            return stat;
+        }
         // 这里是文本直接使用 Scanner 读
         Stat stat = new Stat();
         try (InputStream is = new FileInputStream(getQueueStatPath(queueName))) {
@@ -56,7 +132,18 @@ public class MessageFileManager {
         return null;
     }
 
+    // 写入统计文件 队列日志已经打开时同时更新内存中的统计
     private void writeStat(String queueName, Stat stat) {
+        QueueLog queueLog = logs.get(queueName);
+        if (queueLog != null) {
+            queueLog.getStat().totalCount = stat.totalCount;
+            queueLog.getStat().validCount = stat.validCount;
+            queueLog.clearDirty();
+        }
+        writeStatFile(queueName, stat);
+    }
+
+    private void writeStatFile(String queueName, Stat stat) {
         try (OutputStream outputStream = new FileOutputStream(getQueueStatPath(queueName))) {
             PrintWriter printWriter = new PrintWriter(outputStream);
             printWriter.write(stat.totalCount + "\t" + stat.validCount);
@@ -66,8 +153,19 @@ public class MessageFileManager {
         }
     }
 
+    // 检查点 统计信息改变的次数足够多时写一次统计文件
+    private void checkpoint(String queueName, QueueLog queueLog, boolean force) {
+        int dirtyCount = queueLog.getDirtyCount();
+        if (dirtyCount == 0 || (!force && dirtyCount < CHECKPOINT_INTERVAL)) {
+            return;
+        }
+        writeStatFile(queueName, queueLog.getStat());
+        queueLog.clearDirty();
+    }
+
 
     // 创建队列对应的目录和文件
+    // 段文件在第一次写入消息时才创建
     public void createQueueFiles(String queueName) throws IOException {
         // 1.创建文件所在目录
         File baseDir = new File(getQueueDir(queueName));
@@ -78,16 +176,7 @@ public class MessageFileManager {
             }
         }
 
-        // 2.创建队列数据文件
-        File queueDataFile = new File(getQueueDataPath(queueName));
-        if (!queueDataFile.exists()) {
-            boolean ok = queueDataFile.createNewFile();
-            if (!ok) {
-                throw new IOException("Unable to create queueDataFile " + queueDataFile.getAbsolutePath());
-            }
-        }
-
-        // 3.创建消息统计文件
+        // 2.创建消息统计文件
         File queueStatFile = new File(getQueueStatPath(queueName));
         if (!queueStatFile.exists()) {
             boolean ok = queueStatFile.createNewFile();
@@ -96,7 +185,8 @@ public class MessageFileManager {
             }
         }
 
-        // 4.给消息统计文件设置初始值 0 \t 0
+        // 3.给消息统计文件设置初始值 0 \t 0
+        closeLog(queueName);
         Stat stat = new Stat();
         stat.totalCount = 0;
         stat.validCount = 0;
@@ -106,216 +196,869 @@ public class MessageFileManager {
     // 删除队列对应的目录和文件
     // 删除队列之后队列所对应的消息文件也随之删除
     public void destroyQueueFiles(String queueName) throws IOException {
-        File queueDataFile = new File(getQueueDataPath(queueName));
-        boolean ok1 = queueDataFile.delete();
+        closeLog(queueName);
+        for (long base : listSegmentBases(queueName)) {
+            Files.deleteIfExists(Paths.get(getSegmentPath(queueName, base)));
+        }
+        Files.deleteIfExists(Paths.get(getLegacyDataPath(queueName)));
         File queueStatFile = new File(getQueueStatPath(queueName));
-        boolean ok2 = queueStatFile.delete();
+        boolean ok1 = queueStatFile.delete();
         File baseDir = new File(getQueueDir(queueName));
-        boolean ok3 = baseDir.delete();
-        if(!ok1 || !ok2 || !ok3){
+        boolean ok2 = baseDir.delete();
+        if(!ok1 || !ok2){
             throw new IOException("delete dir and files failed " + queueStatFile.getAbsolutePath());
         }
     }
 
     // 检查队列对应的文件是否存在
     public boolean checkFilesExists(String queueName) {
-        // 检查数据文件和统计文件是否都存在
-        File queueDataFile = new File(getQueueDataPath(queueName));
+        // 检查队列目录和统计文件是否都存在
+        File baseDir = new File(getQueueDir(queueName));
 
         File queueStatFile = new File(getQueueStatPath(queueName));
 
-        return queueDataFile.exists() && queueStatFile.exists();
+        return baseDir.isDirectory() && queueStatFile.exists();
+    }
+
+    // 按顺序列出队列的所有段 顺便把旧版本的数据文件改名成第一个段
+    private List<Long> listSegmentBases(String queueName) throws IOException {
+        File legacyFile = new File(getLegacyDataPath(queueName));
+        if (legacyFile.exists()) {
+            File firstSegment = new File(getSegmentPath(queueName, 0));
+            if (firstSegment.exists() || !legacyFile.renameTo(firstSegment)) {
+                throw new IOException("[MassageFileManager] Migrate legacy data file fail: " + legacyFile.getAbsolutePath());
+            }
+        }
+        List<Long> bases = new ArrayList<>();
+        File[] files = new File(getQueueDir(queueName)).listFiles();
+        if (files == null) {
+            return bases;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                bases.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // 不是段文件
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    // 取出队列日志 这个进程中第一次使用时扫描一遍段文件
+    private QueueLog getLog(String queueName) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = logs.get(queueName);
+        if (queueLog == null) {
+            queueLog = scan(queueName, null);
+            logs.put(queueName, queueLog);
+        }
+        return queueLog;
+    }
+
+    // 关闭队列日志打开的文件 统计信息写回文件
+    private void closeLog(String queueName) throws IOException {
+        QueueLog queueLog = logs.remove(queueName);
+        if (queueLog != null) {
+            if (checkFilesExists(queueName)) {
+                checkpoint(queueName, queueLog, true);
+            }
+            queueLog.close();
+        }
+    }
+
+    // 读取所有段文件 统计每个段的大小和消息个数 messages 不为 null 时把有效消息放进去
+    // 已经没有有效消息的段（最后一个段除外）直接删除
+    // 队列的统计信息由各个段的消息个数算出 和统计文件不一致时以段文件为准
+    private QueueLog scan(String queueName, List<Message> messages) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = new QueueLog();
+        try {
+            List<Long> bases = listSegmentBases(queueName);
+            for (long base : bases) {
+                QueueLog.Segment segment = new QueueLog.Segment(base, getSegmentPath(queueName, base));
+                readSegment(segment, base == bases.get(bases.size() - 1), messages);
+                queueLog.addSegment(segment);
+            }
+            deleteDeadSegments(queueName, queueLog);
+            checkpoint(queueName, queueLog, true);
+        } catch (IOException | ClassNotFoundException e) {
+            queueLog.close();
+            throw e;
+        }
+        return queueLog;
+    }
+
+    // 顺序读取段文件中的记录 已经删除的记录只读固定头部 有效的记录只读出并校验消息体之前的部分 只解析属性 跳过消息体
+    // 遇到不完整或者校验失败的记录（写入时宕机）就停止 最后一个段截掉这部分 新的消息从最后一条完整的记录后面开始写
+    // 消息体不读也不校验 写入时宕机留下的损坏的消息体在投递之前 readBody 校验时发现
+    private void readSegment(QueueLog.Segment segment, boolean last, List<Message> messages) throws IOException, ClassNotFoundException {
+        File segmentFile = new File(segment.getPath());
+        long fileSize = segmentFile.length();
+        long position = 0;
+        String broken = null;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)))) {
+            while (position < fileSize) {
+                if (position + 4 > fileSize) {
+                    broken = "incomplete length";
+                    break;
+                }
+                // 1.读取记录的长度 为 0 说明后面是内存映射模式预先扩展出来的空白
+                int lengthField = dis.readInt();
+                if (lengthField == 0) {
+                    break;
+                }
+                boolean checksummed = (lengthField & CHECKSUM_FLAG) != 0;
+                int messageSize = lengthField & ~CHECKSUM_FLAG;
+                int headerSize = checksummed ? RECORD_HEADER_LENGTH : 4;
+                if (messageSize < BinaryCodec.MESSAGE_HEADER_LENGTH || position + headerSize + messageSize > fileSize) {
+                    broken = "incomplete record";
+                    break;
+                }
+                // 没有 CRC 的旧记录没有单独的头部 整条当作头部读出
+                int headLength = messageSize;
+                int headCrc = 0;
+                int bodyCrc = 0;
+                if (checksummed) {
+                    headLength = dis.readInt();
+                    headCrc = dis.readInt();
+                    bodyCrc = dis.readInt();
+                    if (headLength < BinaryCodec.MESSAGE_HEADER_LENGTH || headLength > messageSize) {
+                        broken = "bad head length";
+                        break;
+                    }
+                }
+
+                // 2.先只读消息的固定头部 已经删除的记录直接跳过 不读消息体也不解码
+                byte[] messageBytes = new byte[headLength];
+                dis.readFully(messageBytes, 0, BinaryCodec.MESSAGE_HEADER_LENGTH);
+                if (BinaryCodec.isMessageHeader(messageBytes) && messageBytes[BinaryCodec.MESSAGE_VALID_OFFSET] != 0x1) {
+                    dis.skipNBytes(messageSize - BinaryCodec.MESSAGE_HEADER_LENGTH);
+                    segment.totalCount++;
+                    position += headerSize + messageSize;
+                    continue;
+                }
+
+                // 3.有效的记录读出头部剩下的部分 校验头部的 CRC 消息体直接跳过
+                dis.readFully(messageBytes, BinaryCodec.MESSAGE_HEADER_LENGTH, headLength - BinaryCodec.MESSAGE_HEADER_LENGTH);
+                if (checksummed && headChecksum(lengthField, bodyCrc, messageBytes) != headCrc) {
+                    broken = "checksum mismatch";
+                    break;
+                }
+                dis.skipNBytes(messageSize - headLength);
+
+                // 4.只解析属性 消息体投递时再读 旧格式的记录整条反序列化
+                Message message;
+                if (BinaryCodec.isMessageHeader(messageBytes)) {
+                    message = BinaryCodec.decodeMessageHeader(messageBytes);
+                } else if (BinaryCodec.isLegacy(messageBytes)) {
+                    message = (Message) BinaryTool.fromFileBytes(messageBytes);
+                } else {
+                    broken = "unknown record format";
+                    break;
+                }
+                segment.totalCount++;
+
+                // 5.有效消息记录在日志中的位置
+                if (message.getIsValid() == 0x1) {
+                    segment.validCount++;
+                    if (messages != null) {
+                        message.setOffsetBeg(segment.base + position + headerSize);
+                        message.setOffsetEnd(segment.base + position + headerSize + messageSize);
+                        messages.add(message);
+                    }
+                }
+                position += headerSize + messageSize;
+            }
+        }
+        if (broken != null) {
+            if (last) {
+                log.warn("[MassageFileManager] Truncate broken record ({}) segment: {} position: {}", broken, segment.getPath(), position);
+                segment.channel().truncate(position);
+            } else {
+                // 已经写满的段不会再写入 保留文件 只是不再读取后面的部分
+                log.warn("[MassageFileManager] Skip broken record ({}) segment: {} position: {}", broken, segment.getPath(), position);
+            }
+        }
+        segment.size = position;
+    }
+
+    // 头部的 CRC32C 覆盖记录的长度 头部长度 消息体的 CRC 和头部 跳过 isValid 这一个字节
+    private static int headChecksum(int lengthField, int bodyCrc, byte[] head) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(12).putInt(lengthField).putInt(head.length).putInt(bodyCrc).flip());
+        crc.update(head, 0, BinaryCodec.MESSAGE_VALID_OFFSET);
+        crc.update(head, BinaryCodec.MESSAGE_VALID_OFFSET + 1, head.length - BinaryCodec.MESSAGE_VALID_OFFSET - 1);
+        return (int) crc.getValue();
+    }
+
+    private static int bodyChecksum(byte[] body) {
+        CRC32C crc = new CRC32C();
+        if (body != null) {
+            crc.update(body, 0, body.length);
+        }
+        return (int) crc.getValue();
+    }
+
+    // 一条要追加的记录 消息分成编码后的头部和原始的消息体两段 消息体不复制 直接写入文件
+    // Java 原生序列化的旧记录整条放在 head 中 body 为 null
+    private static class Record {
+        final byte[] head;
+        final byte[] body;
+
+        Record(byte[] head, byte[] body) {
+            this.head = head;
+            this.body = body;
+        }
+
+        int length() {
+            return head.length + (body == null ? 0 : body.length);
+        }
+    }
+
+    /**
+     * 打开的一条消息记录 用于在队列锁之外读取或者直接从文件发送
+     * position 和 length 在队列锁内根据消息的 offsetBeg / offsetEnd 算出 之后压缩把消息搬走也不会改变
+     * 读取时只使用这里的位置和长度 不再读 Message 上的偏移量
+     * fileChannel 是段文件共用的只读 FileChannel 只能按位置读取（read(buffer, position) / transferTo）
+     * close 只释放对段的引用 不关闭 fileChannel
+     */
+    public static class RecordChannel implements Closeable {
+        private final QueueLog.Segment segment;
+        private final FileChannel fileChannel;
+        // 消息在段文件中的起始位置
+        private final long position;
+        // 编码后的消息的长度
+        private final long length;
+        private boolean released = false;
+
+        RecordChannel(QueueLog.Segment segment, FileChannel fileChannel, long position, long length) {
+            this.segment = segment;
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.length = length;
+        }
+
+        public FileChannel getFileChannel() {
+            return fileChannel;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        // 重复调用只释放一次
+        @Override
+        public synchronized void close() throws IOException {
+            if (!released) {
+                released = true;
+                segment.release();
+            }
+        }
+    }
+
+    // 关闭并删除已经没有有效消息的段文件 关闭时先解除内存映射 不会删除还映射着的文件
+    private void deleteDeadSegments(String queueName, QueueLog queueLog) throws IOException {
+        for (QueueLog.Segment segment : queueLog.removeDeadSegments()) {
+            segment.close();
+            Files.deleteIfExists(Paths.get(segment.getPath()));
+            log.info("[MassageFileManager] Segment deleted queue: {} base: {}", queueName, segment.base);
+        }
     }
 
     // 写入消息
     // 将新的消息放到对应的 queue 对应的文件中
     public void sendMessage(MSGQueue queue, Message message) throws IOException {
-        // 1.检查当前队列对应的文件是否存在
-        if(!checkFilesExists(queue.getName())){
+        sendMessages(queue, Collections.singletonList(message));
+    }
+
+    // 批量写入消息
+    // 一次加锁 同一个段的消息一次写入 当前的段写满时换到新的段继续写
+    // 释放队列锁之后等待消息刷盘 同一时间其他线程写入的消息一起刷
+    public void sendMessages(MSGQueue queue, List<Message> messages) throws IOException {
+        groupCommitter.await(append(queue, messages));
+    }
+
+    // 和 sendMessages 一样写入 但不等待刷盘 返回的 future 在消息刷盘之后完成 刷盘失败时异常完成
+    // 给不能阻塞的线程（NIO 的 reactor）使用 future 在刷盘的线程中完成 后续的回调不能阻塞
+    public CompletableFuture<Void> sendMessagesAsync(MSGQueue queue, List<Message> messages) throws IOException {
+        return groupCommitter.whenSynced(append(queue, messages));
+    }
+
+    // 把消息追加到队列的日志 返回等待刷盘用的序号
+    private long append(MSGQueue queue, List<Message> messages) throws IOException {
+        // 1.检查当前队列对应的文件是否存在 日志已经打开过就不用再检查
+        if(!logs.containsKey(queue.getName()) && !checkFilesExists(queue.getName())){
             throw new MQException("[MassageFileManager] File does not exist: " + queue.getName());
         }
 
-        // 2.将 Message 进行序列化转成字节数组
-        byte[] binaryMessage = BinaryTool.toBytes(message);
+        // 2.将 Message 编码 只编码消息体之前的部分 消息体写入时直接使用原来的数组
+        List<Record> records = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            records.add(new Record(BinaryCodec.encodeMessageHeader(message), message.getBody()));
+        }
 
-        // 3.获取到队列数据文件的长度 计算出该 Message对象的 offsetBeg 和 offsetEnd
-        // 把新的 message 写到队列数据文件的末尾 此时 Message 对象的 offsetEnd 为当前数据文件长度 + 4
-        // offsetEnd 为当前文件长度 + 4 加自身数据长度
+        // 3.消息写到当前段的末尾 offsetBeg 为段的起始位置 + 段的长度 + 4
+        // offsetEnd 为 offsetBeg 加自身数据长度
 
+        boolean mapped = isMapped(queue);
+        long seq = 0;
         // 针对 queue 进行加锁保证多个线程向同一个队列写入文件时的线程安全
-        synchronized(queue) {
-            File queueDataFile = new File(getQueueDataPath(queue.getName()));
-            message.setOffsetBeg(queueDataFile.length() + 4);
-            message.setOffsetEnd(queueDataFile.length() + 4 + binaryMessage.length);
-
-            // 4.写入消息到数据文件
-            try (OutputStream fos = new FileOutputStream(queueDataFile, true)) {
-                try (DataOutputStream dos = new DataOutputStream(fos)) {
-                    // 1.先写入 4 个字节的消息长度
-                    dos.writeInt(binaryMessage.length);
-                    // 2.写入消息
-                    dos.write(binaryMessage);
-                }
+        queue.getLock().lock();
+        try {
+            QueueLog queueLog = getLog(queue.getName());
+            long[] offsets = new long[messages.size()];
+            Map<QueueLog.Segment, Integer> written = appendRecords(queue.getName(), queueLog, mapped, records, offsets);
+            for (int i = 0; i < messages.size(); i++) {
+                messages.get(i).setOffsetBeg(offsets[i]);
+                messages.get(i).setOffsetEnd(offsets[i] + records.get(i).length());
+            }
+            for (Map.Entry<QueueLog.Segment, Integer> entry : written.entrySet()) {
+                seq = groupCommitter.written(entry.getKey(), entry.getValue());
             }
 
-            // 5.更新统计消息文件
-            Stat stat = readStat(queue.getName());
-            stat.totalCount++;
-            stat.validCount++;
-            writeStat(queue.getName(), stat);
+            // 5.统计信息只在内存中更新 定期写回文件
+            checkpoint(queue.getName(), queueLog, false);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("[MassageFileManager] Read segment fail: " + queue.getName(), e);
+        } finally {
+            queue.getLock().unlock();
         }
+
+        // 6.由调用方在队列锁之外等待消息刷盘 其他线程可以继续写入同一批
+        return seq;
     }
 
-    // 删除消息 isValid 设为 0
-    public void deleteMessage(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
-        synchronized (queue) {
-            try (RandomAccessFile raf = new RandomAccessFile(getQueueDataPath(queue.getName()), "rw")) {
-                // 1.从文件中读出二进制数据
-                // seek 控制光标指向
-                byte[] srcBuffer = new byte[(int) (message.getOffsetEnd() - message.getOffsetBeg())];
-                raf.seek(message.getOffsetBeg());
-                raf.read(srcBuffer);
+    // 在队列锁内调用 把记录追加到日志末尾 当前的段写满时换到新的段继续写
+    // offsets[i] 返回第 i 条记录（不含长度）在日志中的起始位置 返回值是写过的段和每个段写入的记录个数
+    private Map<QueueLog.Segment, Integer> appendRecords(String queueName, QueueLog queueLog, boolean mapped,
+                                                         List<Record> records, long[] offsets) throws IOException {
+        Map<QueueLog.Segment, Integer> written = new LinkedHashMap<>();
+        int i = 0;
+        while (i < records.size()) {
+            QueueLog.Segment segment = queueLog.active();
+            if (segment == null || isFull(segment, records.get(i).length())) {
+                segment = queueLog.roll(getSegmentPath(queueName, queueLog.nextBase()));
+                // 上一个段可能已经全部确认 换段之后就可以删掉了
+                deleteDeadSegments(queueName, queueLog);
+            }
+            // 4.每条消息是记录头部加上消息内容 写到段的末尾
+            List<ByteBuffer> buffers = new ArrayList<>();
+            long end = segment.size;
+            int count = 0;
+            do {
+                Record record = records.get(i);
+                // 本格式编码的消息带上 CRC 旧格式的记录（压缩时搬动）保持原来的格式
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+                if (BinaryCodec.isMessageHeader(record.head)) {
+                    int lengthField = record.length() | CHECKSUM_FLAG;
+                    int bodyCrc = bodyChecksum(record.body);
+                    header.putInt(lengthField).putInt(record.head.length)
+                            .putInt(headChecksum(lengthField, bodyCrc, record.head)).putInt(bodyCrc);
+                } else {
+                    header.putInt(record.length());
+                }
+                header.flip();
+                offsets[i] = segment.base + end + header.remaining();
+                end += header.remaining() + record.length();
+                buffers.add(header);
+                buffers.add(ByteBuffer.wrap(record.head));
+                if (record.body != null && record.body.length > 0) {
+                    buffers.add(ByteBuffer.wrap(record.body));
+                }
+                count++;
+                i++;
+            } while (i < records.size() && !isFull(segment, end, records.get(i).length()));
+            if (mapped) {
+                ByteBuffer view = segment.lockMapped(Math.max(segmentSize, end));
+                try {
+                    view.position((int) segment.size);
+                    for (ByteBuffer buffer : buffers) {
+                        view.put(buffer);
+                    }
+                } finally {
+                    segment.unlockMapped();
+                }
+            } else {
+                writeFully(segment.channel(), segment.size, buffers.toArray(new ByteBuffer[0]));
+            }
+            segment.size = end;
+            queueLog.appended(segment, count);
+            written.merge(segment, count, Integer::sum);
+        }
+        return written;
+    }
+
+    // 队列是否使用内存映射模式
+    private boolean isMapped(MSGQueue queue) {
+        return STORAGE_MMAP.equals(queue.getArguments(STORAGE_MODE));
+    }
 
-                // 2.将二进制数据转成 Message 对象
-                Message diskMessage = (Message) BinaryTool.fromBytes(srcBuffer);
+    // 段中已经有消息 再写入这条消息就会超过段的大小
+    private boolean isFull(QueueLog.Segment segment, int messageLength) {
+        return isFull(segment, segment.size, messageLength);
+    }
+
+    private boolean isFull(QueueLog.Segment segment, long size, int messageLength) {
+        return size > 0 && size + RECORD_HEADER_LENGTH + messageLength > segmentSize;
+    }
 
-                // 3.将isValid 设置设置成 0x0（无效）
-                diskMessage.setIsValid((byte) 0x0);
+    // 从 position 开始写入所有的数据 一次写不完时继续写
+    private void writeFully(FileChannel channel, long position, ByteBuffer... buffers) throws IOException {
+        channel.position(position);
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
 
-                // 4.重新写入文件
-                byte[] destBuffer = BinaryTool.toBytes(diskMessage);
-                raf.seek(message.getOffsetBeg());
-                raf.write(destBuffer);
+    private void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("[MassageFileManager] Unexpected end of segment at " + (position + buffer.position()));
             }
+        }
+    }
 
-            Stat stat = readStat(queue.getName());
-            if (stat.validCount > 0) {
-                stat.validCount--;
+    // 在段中的 position 位置读出 data.length 个字节
+    private void readAt(QueueLog.Segment segment, boolean mapped, long position, byte[] data) throws IOException {
+        if (mapped) {
+            ByteBuffer view = segment.lockMapped(Math.max(segmentSize, segment.size));
+            try {
+                view.position((int) position);
+                view.get(data);
+            } finally {
+                segment.unlockMapped();
             }
-            writeStat(queue.getName(), stat);
+        } else {
+            readFully(segment.channel(), position, ByteBuffer.wrap(data));
         }
     }
 
-    /**
-     * 从加载所有的消息内容到内存 服务启动时调用
-     * @param queueName
-     * @return
-     * @throws IOException
-     */
-    public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, ClassNotFoundException {
-        LinkedList<Message> messages = new LinkedList<>();
-        try(InputStream stream = new FileInputStream(getQueueDataPath(queueName))) {
-            try(DataInputStream dis = new DataInputStream(stream)) {
-                long currentOffset = 0;
-                while(true) {
-                    // 1.读取当前消息长度，可能读到文件末尾，会抛出 EOPException
-                    int messageSize = dis.readInt();
-
-                    // 2.按照这个消息长度读取消息内容
-                    byte[] messageBytes = new byte[messageSize];
-                    if(dis.read(messageBytes) != messageSize){
-                        // 如果不匹配说明文件有错误
-                        throw new MQException("[MassageFileManager] Message size mismatch");
-                    }
+    private void writeAt(QueueLog.Segment segment, boolean mapped, long position, byte[] data) throws IOException {
+        if (mapped) {
+            ByteBuffer view = segment.lockMapped(Math.max(segmentSize, segment.size));
+            try {
+                view.position((int) position);
+                view.put(data);
+            } finally {
+                segment.unlockMapped();
+            }
+        } else {
+            writeFully(segment.channel(), position, ByteBuffer.wrap(data));
+        }
+    }
 
-                    // 3.将读到的二进制消息反序列化成 Message 对象
-                    Message message = (Message) BinaryTool.fromBytes(messageBytes);
+    // 删除一条旧格式的消息 整条读出 反序列化后把 isValid 改成 0 再按旧格式写回 保证记录长度不变
+    // 返回 false 表示消息已经删除过了
+    private boolean deleteLegacyMessage(QueueLog.Segment segment, boolean mapped, long position, Message message)
+            throws IOException, ClassNotFoundException {
+        byte[] srcBuffer = new byte[(int) (message.getOffsetEnd() - message.getOffsetBeg())];
+        readAt(segment, mapped, position, srcBuffer);
+        Message diskMessage = (Message) BinaryTool.fromFileBytes(srcBuffer);
+        if (diskMessage.getIsValid() != 0x1) {
+            return false;
+        }
+        diskMessage.setIsValid((byte) 0x0);
+        writeAt(segment, mapped, position, BinaryTool.toSerializedBytes(diskMessage));
+        return true;
+    }
 
-                    // 4.如果为无效消息直接跳过
-                    if(message.getIsValid() != 0x1){
-                        currentOffset += (4 + messageBytes.length);
+    // 删除消息 isValid 设为 0
+    public void deleteMessage(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        deleteMessages(queue, Collections.singletonList(message));
+    }
+
+    // 批量删除消息
+    // 一次加锁 每条消息只读写记录头部的几个字节 统计信息只在内存中更新 定期写回文件
+    // 删除之后没有有效消息的段整个删掉
+    public void deleteMessages(MSGQueue queue, List<Message> messages) throws IOException, ClassNotFoundException {
+        boolean mapped = isMapped(queue);
+        queue.getLock().lock();
+        try {
+            QueueLog queueLog = getLog(queue.getName());
+            for (Message message : messages) {
+                QueueLog.Segment segment = queueLog.segmentOf(message.getOffsetBeg(), message.getOffsetEnd());
+                if (segment == null) {
+                    // 所在的段已经删除 说明消息已经删除过了
+                    System.out.println("[MassageFileManager] Message segment not found messageId: " + message.getMessageId());
+                    continue;
+                }
+                long position = message.getOffsetBeg() - segment.base;
+
+                // 1.只读出记录的固定头部 [魔数][版本号][类型标记][isValid]
+                byte[] header = new byte[BinaryCodec.MESSAGE_HEADER_LENGTH];
+                readAt(segment, mapped, position, header);
+                if (BinaryCodec.isLegacy(header)) {
+                    // 旧格式（Java 原生序列化）的记录没有固定位置的 isValid 整条读出来改写
+                    if (!deleteLegacyMessage(segment, mapped, position, message)) {
                         continue;
                     }
+                } else if (!BinaryCodec.isMessageHeader(header)) {
+                    System.out.println("[MassageFileManager] Message record not found messageId: " + message.getMessageId());
+                    continue;
+                } else if (header[BinaryCodec.MESSAGE_VALID_OFFSET] != 0x1) {
+                    // 已经删除过了
+                    continue;
+                } else {
+                    // 2.把 isValid 这一个字节改成 0x0（无效） 代价和消息体的大小无关
+                    writeAt(segment, mapped, position + BinaryCodec.MESSAGE_VALID_OFFSET, new byte[]{0x0});
+                }
+                queueLog.deleted(segment);
+            }
 
-                    // 5.将消息加入到链表中
-                    message.setOffsetBeg(currentOffset + 4);
-                    message.setOffsetEnd(currentOffset + 4 + messageBytes.length);
-                    currentOffset += (4 + messageBytes.length);
-                    messages.add(message);
+            // 3.没有有效消息的段直接删除文件 回收空间的代价和段的大小无关
+            deleteDeadSegments(queue.getName(), queueLog);
+            checkpoint(queue.getName(), queueLog, false);
+        } finally {
+            queue.getLock().unlock();
+        }
+    }
+
+    // 读出消息的消息体 恢复时没有加载消息体的消息在投递之前调用
+    // 只在打开文件时加队列锁 读取和校验 CRC 不占用队列锁 校验不通过抛出 IOException
+    public byte[] readBody(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        RecordChannel recordChannel = openRecordChannel(queue, message);
+        if (recordChannel == null) {
+            throw new IOException("[MassageFileManager] Message segment not found messageId: " + message.getMessageId());
+        }
+        try (recordChannel) {
+            FileChannel fileChannel = recordChannel.getFileChannel();
+            long position = recordChannel.getPosition();
+            int length = (int) recordChannel.getLength();
+            // 1.记录前面是带 CRC 的记录头部 头部和消息体分别读出并校验
+            if (position >= RECORD_HEADER_LENGTH) {
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+                readFully(fileChannel, position - RECORD_HEADER_LENGTH, header);
+                header.flip();
+                int lengthField = header.getInt();
+                if (lengthField == (length | CHECKSUM_FLAG)) {
+                    return readChecksummedBody(fileChannel, position, lengthField, header, message);
                 }
-            }catch (EOFException e){
-                // 处理文件读取到末尾
             }
+            // 2.没有 CRC 的旧记录 整条读出解码
+            byte[] record = new byte[length];
+            readFully(fileChannel, position, ByteBuffer.wrap(record));
+            Message diskMessage = (Message) BinaryTool.fromFileBytes(record);
+            if (!message.getMessageId().equals(diskMessage.getMessageId())) {
+                throw new IOException("[MassageFileManager] Message record mismatch messageId: " + message.getMessageId());
+            }
+            return diskMessage.getBody();
         }
-        return messages;
     }
 
-    /**
-     * 检查当前是否要针对该队列的数据文件进行 GC
-     * @return
-     */
-    public boolean checkGC(String queueName) {
-        // 根据总消息数和有效消息数判断是否需要 GC
-        Stat stat = readStat(queueName);
-        assert stat != null;
-        return stat.totalCount > 2000 && (double) stat.validCount / (double) stat.totalCount < 0.5;
+    // header 是已经读过长度的记录头部 消息体直接读到结果数组中 不经过解码
+    private byte[] readChecksummedBody(FileChannel fileChannel, long position, int lengthField, ByteBuffer header, Message message)
+            throws IOException {
+        int length = lengthField & ~CHECKSUM_FLAG;
+        int headLength = header.getInt();
+        int headCrc = header.getInt();
+        int bodyCrc = header.getInt();
+        if (headLength < BinaryCodec.MESSAGE_HEADER_LENGTH || headLength > length) {
+            throw new IOException("[MassageFileManager] Bad head length messageId: " + message.getMessageId());
+        }
+        byte[] head = new byte[headLength];
+        readFully(fileChannel, position, ByteBuffer.wrap(head));
+        if (headChecksum(lengthField, bodyCrc, head) != headCrc) {
+            throw new IOException("[MassageFileManager] Message header checksum mismatch messageId: " + message.getMessageId());
+        }
+        if (!message.getMessageId().equals(BinaryCodec.readMessageId(head))) {
+            throw new IOException("[MassageFileManager] Message record mismatch messageId: " + message.getMessageId());
+        }
+        byte[] body = new byte[length - headLength];
+        readFully(fileChannel, position + headLength, ByteBuffer.wrap(body));
+        if (bodyChecksum(body) != bodyCrc) {
+            throw new IOException("[MassageFileManager] Message body checksum mismatch messageId: " + message.getMessageId());
+        }
+        return BinaryCodec.isMessageBodyNull(head) ? null : body;
     }
 
-    // 获取新文件路径
-    private String getQueueDataNewPath(String queueName) {
-        return getQueueDataPath(queueName) + "queue_data_new.txt";
+    // 在队列锁内找到消息所在的段 取得段共用的只读 FileChannel 不用每次投递都打开一次文件
+    // offsetBeg 和 offsetEnd 都在锁内读出 压缩在同一把锁内修改它们 读到的一定是同一次写入的位置
+    // 之后即使段被删除 在调用方关闭返回的记录之前 FileChannel 仍然可以读取 段已经不存在返回 null
+    private RecordChannel openRecordChannel(MSGQueue queue, Message message) throws IOException {
+        queue.getLock().lock();
+        try {
+            long offsetBeg = message.getOffsetBeg();
+            long offsetEnd = message.getOffsetEnd();
+            QueueLog.Segment segment = getLog(queue.getName()).segmentOf(offsetBeg, offsetEnd);
+            if (segment == null) {
+                return null;
+            }
+            return new RecordChannel(segment, segment.retain(), offsetBeg - segment.base, offsetEnd - offsetBeg);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("[MassageFileManager] Read segment fail: " + queue.getName(), e);
+        } finally {
+            queue.getLock().unlock();
+        }
     }
 
     /**
-     * 真正垃圾回收 使用复制算法完成
-     * 创建一个新的文件 queue_data_new.txt 将原来数据文件里的有效数据读取出来写到新的文件中
-     * 删除旧的文件
-     * 在将文件重命名成原来的 queue_data.txt 同时更新消息统计文件
-     * @param queue
+     * 压缩一个段 后台线程调用
+     * 找到第一个有效消息比例不超过 threshold 的已写满的段 把其中的有效消息搬到日志末尾 搬完之后这个段没有有效消息 直接删除
+     * 每次加锁只搬 COMPACT_BATCH 条记录 搬的过程中队列仍然可以写入 投递和确认
+     * 搬过的消息在内存中的 offsetBeg / offsetEnd 同时更新 内存中找不到的消息（正在被确认）留在原来的段中
+     * @param lookup 根据 messageId 找到内存中的消息对象
+     * @return 是否删除了一个段
      */
-    public void gc(MSGQueue queue) throws IOException, ClassNotFoundException {
-        synchronized (queue) {
-            // 此处统计一下 gc 的耗时
-            long gcBeg = System.currentTimeMillis();
-
-            // 1.创建一个新的文件
-            File queueDataNewFile = new File(getQueueDataNewPath(queue.getName()));
-            if(queueDataNewFile.exists()){
-                throw new MQException("[MassageFileManager] File already exists: " + queue.getName());
-            }
-            boolean ok = queueDataNewFile.createNewFile();
-            if(!ok){
-                throw new IOException("[MassageFileManager] Create file fail: " + queueDataNewFile.getAbsolutePath());
-            }
-
-            // 2.从旧的文件中读取出所有消息
-            LinkedList<Message> messages = loadAllMessageFromQueue(queue.getName());
-
-            // 3.将有效消息写到新的文件
-            try(OutputStream fos = new FileOutputStream(queueDataNewFile, true)) {
-                try(DataOutputStream dos = new DataOutputStream(fos)) {
-                    for (Message message : messages) {
-                        byte[] buffer = BinaryTool.toBytes(message);
-                        dos.writeInt(buffer.length);
-                        dos.write(buffer);
-                    }
+    public boolean compact(MSGQueue queue, double threshold, Function<String, Message> lookup) throws IOException, ClassNotFoundException {
+        boolean mapped = isMapped(queue);
+        QueueLog queueLog;
+        QueueLog.Segment segment = null;
+        queue.getLock().lock();
+        try {
+            // 只压缩已经打开的日志 没有持久化消息的队列不需要
+            queueLog = logs.get(queue.getName());
+            if (queueLog == null) {
+                return false;
+            }
+            for (QueueLog.Segment candidate : queueLog.getSegments()) {
+                if (candidate != queueLog.active() && candidate.validCount > 0
+                        && candidate.validCount <= candidate.totalCount * threshold) {
+                    segment = candidate;
+                    break;
                 }
             }
+        } finally {
+            queue.getLock().unlock();
+        }
+        if (segment == null) {
+            return false;
+        }
 
-            // 4.删除旧的数据文件
-            File oldFile = new File(getQueueDataPath(queue.getName()));
-            ok = oldFile.delete();
-            if(!ok){
-                throw new IOException("[MassageFileManager] Delete oldFile fail: " + oldFile.getAbsolutePath());
+        long cursor = 0;
+        while (true) {
+            queue.getLock().lock();
+            try {
+                // 队列被删除 或者段已经被删除
+                if (logs.get(queue.getName()) != queueLog || segment.validCount == 0) {
+                    break;
+                }
+                cursor = compactBatch(queue.getName(), queueLog, segment, mapped, cursor, lookup);
+                if (cursor >= segment.size) {
+                    break;
+                }
+            } finally {
+                queue.getLock().unlock();
             }
-            ok = queueDataNewFile.renameTo(oldFile);
-            if(!ok){
-                throw new IOException("[MassageFileManager] Rename fail: " + queueDataNewFile.getAbsolutePath());
+        }
+
+        queue.getLock().lock();
+        try {
+            if (logs.get(queue.getName()) != queueLog) {
+                return false;
             }
+            boolean removed = segment.validCount == 0;
+            deleteDeadSegments(queue.getName(), queueLog);
+            checkpoint(queue.getName(), queueLog, false);
+            log.info("[MassageFileManager] Segment compacted queue: {} base: {} removed: {}", queue.getName(), segment.base, removed);
+            return removed;
+        } finally {
+            queue.getLock().unlock();
+        }
+    }
 
-            // 5.更新统计文件
-            Stat stat = readStat(queue.getName());
-            assert stat != null;
-            stat.totalCount = messages.size();
-            stat.validCount = messages.size();
-            writeStat(queue.getName(), stat);
+    // 在队列锁内调用 从段中 cursor 位置开始搬最多 COMPACT_BATCH 条有效记录 返回下一次开始的位置
+    // 先把记录追加到日志末尾并刷盘 再把原来的记录标记为无效 中途宕机最多留下重复的记录 不会丢失消息
+    // 搬动之前校验两个 CRC 损坏的记录留在原处 不带着重新计算的 CRC 写到新的位置
+    private long compactBatch(String queueName, QueueLog queueLog, QueueLog.Segment segment, boolean mapped,
+                              long cursor, Function<String, Message> lookup) throws IOException, ClassNotFoundException {
+        List<Message> moved = new ArrayList<>();
+        List<Record> records = new ArrayList<>();
+        byte[] length = new byte[4];
+        while (cursor < segment.size && moved.size() < COMPACT_BATCH) {
+            readAt(segment, mapped, cursor, length);
+            int lengthField = ByteBuffer.wrap(length).getInt();
+            int recordLength = lengthField & ~CHECKSUM_FLAG;
+            if (recordLength <= 0) {
+                return segment.size;
+            }
+            long position = cursor + ((lengthField & CHECKSUM_FLAG) != 0 ? RECORD_HEADER_LENGTH : 4);
+            cursor = position + recordLength;
+            // 已经删除的记录只读头部
+            byte[] header = new byte[Math.min(recordLength, BinaryCodec.MESSAGE_HEADER_LENGTH)];
+            readAt(segment, mapped, position, header);
+            if (BinaryCodec.isMessageHeader(header) && header[BinaryCodec.MESSAGE_VALID_OFFSET] != 0x1) {
+                continue;
+            }
+            Record record;
+            String messageId;
+            if ((lengthField & CHECKSUM_FLAG) != 0) {
+                record = readChecksummedRecord(segment, mapped, position, lengthField);
+                if (record == null) {
+                    log.warn("[MassageFileManager] Skip corrupted record segment: {} position: {}", segment.getPath(), position);
+                    continue;
+                }
+                messageId = BinaryCodec.readMessageId(record.head);
+            } else {
+                byte[] data = new byte[recordLength];
+                readAt(segment, mapped, position, data);
+                Message diskMessage = (Message) BinaryTool.fromFileBytes(data);
+                if (diskMessage.getIsValid() != 0x1) {
+                    continue;
+                }
+                messageId = diskMessage.getMessageId();
+                // 没有 CRC 的本格式记录拆成头部和消息体 搬动之后带上 CRC
+                if (BinaryCodec.isMessageHeader(data)) {
+                    int headLength = BinaryCodec.messageHeaderLength(data);
+                    record = new Record(Arrays.copyOf(data, headLength), Arrays.copyOfRange(data, headLength, data.length));
+                } else {
+                    record = new Record(data, null);
+                }
+            }
+            // 只搬内存中还在 并且位置对得上的消息
+            Message message = lookup.apply(messageId);
+            if (message == null || message.getOffsetBeg() != segment.base + position) {
+                continue;
+            }
+            moved.add(message);
+            records.add(record);
+        }
+        if (moved.isEmpty()) {
+            return cursor;
+        }
 
-            long gcEnd = System.currentTimeMillis();
+        // 1.追加到日志末尾 刷盘之后才能删除原来的记录
+        long[] offsets = new long[records.size()];
+        Map<QueueLog.Segment, Integer> written = appendRecords(queueName, queueLog, mapped, records, offsets);
+        for (QueueLog.Segment target : written.keySet()) {
+            target.force();
+        }
+        // 2.原来的记录标记为无效 内存中的消息指向新的位置
+        for (int i = 0; i < moved.size(); i++) {
+            Message message = moved.get(i);
+            long position = message.getOffsetBeg() - segment.base;
+            if (BinaryCodec.isLegacy(records.get(i).head)) {
+                deleteLegacyMessage(segment, mapped, position, message);
+            } else {
+                writeAt(segment, mapped, position + BinaryCodec.MESSAGE_VALID_OFFSET, new byte[]{0x0});
+            }
+            queueLog.deleted(segment);
+            message.setOffsetBeg(offsets[i]);
+            message.setOffsetEnd(offsets[i] + records.get(i).length());
+        }
+        return cursor;
+    }
 
-            log.info("[MassageFileManager] GC completed in {}ms", gcEnd - gcBeg);
+    // 打开消息所在的段文件 用于把消息直接从文件发送给消费者（零拷贝投递）
+    // 在队列锁内取得段文件 锁外校验这个位置上确实是这条消息 并且头部和消息体的 CRC 都正确
+    // 返回的记录带着消息在段文件中的位置和长度 发送时只使用这两个值 之后即使段被删除 FileChannel 仍然可以读取
+    // 返回的记录由调用方关闭 用的是段共用的只读 FileChannel 不会影响段文件一直打开的写入 FileChannel
+    // 校验不通过（没有 CRC 的旧记录 位置已经过期 或者记录损坏）返回 null 调用方按普通方式通过 readBody 投递
+    // 损坏的记录由 readBody 再次校验时发现 消息被丢弃 不会把损坏的数据发给消费者
+    public RecordChannel openMessageChannel(MSGQueue queue, Message message) throws IOException {
+        RecordChannel record = openRecordChannel(queue, message);
+        if (record == null) {
+            return null;
+        }
+        try {
+            if (!verifyRecord(record, message)) {
+                record.close();
+                return null;
+            }
+            return record;
+        } catch (IOException e) {
+            record.close();
+            throw e;
+        }
+    }
 
+    // 校验要直接从文件发送的记录 只接受带 CRC 的记录
+    // 消息体按 VERIFY_CHUNK_SIZE 分块读到同一个缓冲区中计算 CRC 不需要把整个消息体放到堆内存中
+    private boolean verifyRecord(RecordChannel record, Message message) throws IOException {
+        FileChannel fileChannel = record.getFileChannel();
+        long position = record.getPosition();
+        long length = record.getLength();
+        if (length <= 0 || position < RECORD_HEADER_LENGTH || fileChannel.size() < position + length) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(fileChannel, position - RECORD_HEADER_LENGTH, header);
+        header.flip();
+        int lengthField = header.getInt();
+        if (lengthField != ((int) length | CHECKSUM_FLAG)) {
+            return false;
+        }
+        int headLength = header.getInt();
+        int headCrc = header.getInt();
+        int bodyCrc = header.getInt();
+        if (headLength < BinaryCodec.MESSAGE_HEADER_LENGTH || headLength > length) {
+            return false;
+        }
+        byte[] head = new byte[headLength];
+        readFully(fileChannel, position, ByteBuffer.wrap(head));
+        if (headChecksum(lengthField, bodyCrc, head) != headCrc
+                || !message.getMessageId().equals(BinaryCodec.readMessageId(head))) {
+            return false;
         }
+        CRC32C crc = new CRC32C();
+        long offset = position + headLength;
+        long end = position + length;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(end - offset, VERIFY_CHUNK_SIZE));
+        while (offset < end) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), end - offset));
+            readFully(fileChannel, offset, chunk);
+            chunk.flip();
+            offset += chunk.remaining();
+            crc.update(chunk);
+        }
+        return (int) crc.getValue() == bodyCrc;
     }
 
+    // 读出带 CRC 的记录 头部和消息体分别读到两个数组中 任意一个 CRC 不对返回 null
+    private Record readChecksummedRecord(QueueLog.Segment segment, boolean mapped, long position, int lengthField) throws IOException {
+        int length = lengthField & ~CHECKSUM_FLAG;
+        byte[] recordHeader = new byte[RECORD_HEADER_LENGTH];
+        readAt(segment, mapped, position - RECORD_HEADER_LENGTH, recordHeader);
+        ByteBuffer header = ByteBuffer.wrap(recordHeader, 4, RECORD_HEADER_LENGTH - 4);
+        int headLength = header.getInt();
+        int headCrc = header.getInt();
+        int bodyCrc = header.getInt();
+        if (headLength < BinaryCodec.MESSAGE_HEADER_LENGTH || headLength > length) {
+            return null;
+        }
+        byte[] head = new byte[headLength];
+        byte[] body = new byte[length - headLength];
+        readAt(segment, mapped, position, head);
+        readAt(segment, mapped, position + headLength, body);
+        if (headChecksum(lengthField, bodyCrc, head) != headCrc || bodyChecksum(body) != bodyCrc) {
+            return null;
+        }
+        return new Record(head, body);
+    }
 
+    /**
+     * 从加载所有的消息内容到内存 服务启动时调用
+     * 按段的顺序读取 同时重新统计每个段的消息个数
+     * 只加载消息的属性和位置 消息体为 null 投递之前通过 readBody 读取（Java 原生序列化的旧记录仍然带着消息体）
+     * @param queueName
+     * @return
+     * @throws IOException
+     */
+    public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, ClassNotFoundException {
+        LinkedList<Message> messages = new LinkedList<>();
+        closeLog(queueName);
+        logs.put(queueName, scan(queueName, messages));
+        return messages;
+    }
+
+    // 关闭所有打开的段文件 统计信息写回文件 服务停止时调用
+    // 调用之前需要先停止对队列的读写
+    public void close() {
+        groupCommitter.close();
+        for (String queueName : new ArrayList<>(logs.keySet())) {
+            try {
+                closeLog(queueName);
+            } catch (IOException e) {
+                log.warn("[MassageFileManager] Close queue log fail queue: {}", queueName, e);
+            }
+        }
+    }
 }
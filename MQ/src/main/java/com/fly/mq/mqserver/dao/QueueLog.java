@@ -0,0 +1,306 @@
+package com.fly.mq.mqserver.dao;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 一个队列的消息日志 由若干个按顺序排列的段文件组成
+ * 每个段用它的起始位置（base）命名 消息的 offsetBeg / offsetEnd 是在整个日志中的位置 = 段的 base + 在段文件中的位置
+ * 新的段从上一个段的末尾开始 所以段被删除之后 其他消息的位置不会改变
+ * 段文件打开之后一直保持打开 写入位置 消息个数和统计信息都记在内存中 统计信息只在检查点和关闭时写回文件
+ * 内存映射模式下段文件预先扩展到段的大小并整个映射到内存 读写都直接访问映射 文件中数据之后的部分全是 0
+ * 段关闭时显式解除映射 删除段文件之前映射占用的内存和文件空间就已经释放
+ * 除了刷盘和读取方释放段 所有方法都在队列锁内调用
+ */
+class QueueLog {
+    // sun.misc.Unsafe.invokeCleaner 用来显式解除内存映射 JDK 17 没有公开的方法 找不到时为 null 映射交给 GC 回收
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    // 解除映射之后再访问这块内存会让 JVM 崩溃 调用方保证已经没有人在使用它
+    static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // 解除失败 映射不再被引用之后由 GC 回收
+        }
+    }
+
+    /**
+     * 一个段文件
+     */
+    static class Segment {
+        // 段的起始位置 也是文件名
+        final long base;
+        // 段文件的长度 也是下一条消息的写入位置
+        long size;
+        // 段中写入的消息个数
+        int totalCount;
+        // 段中还没有被删除的消息个数 为 0 时整个文件可以直接删除
+        int validCount;
+        // 第一次读写时打开 段删除或者队列关闭时关闭
+        // 刷盘在队列锁外进行 所以用 volatile
+        private volatile FileChannel channel;
+        // 内存映射模式下第一次读写时映射
+        private volatile MappedByteBuffer mapped;
+        // 访问映射（读写 刷盘）时持有读锁 重新映射和解除映射时持有写锁
+        // 刷盘在队列锁之外 解除映射之前要等正在进行的刷盘结束
+        private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+        // 在队列锁之外读取和发送消息用的只读 FileChannel 所有读取方共用一个 只按位置读 不改变 position
+        // 和写入的 channel 分开 读线程被中断时 FileChannel 被关闭的只是这一个 下一次 retain 时重新打开
+        // 下面三个字段由段对象的锁保护
+        private FileChannel readChannel;
+        // 正在使用 readChannel 的读取方个数
+        private int readers;
+        // 段已经关闭 最后一个读取方释放时关闭 readChannel
+        private boolean closed;
+        private final String path;
+
+        Segment(long base, String path) {
+            this.base = base;
+            this.path = path;
+        }
+
+        long end() {
+            return base + size;
+        }
+
+        FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        // 把段文件映射到内存 映射的区域至少有 capacity 字节 不够时重新映射 旧的映射立即解除
+        // 映射超过文件长度时文件会被扩展 多出来的部分是 0
+        // 返回映射的一个视图 同时持有映射的读锁 用完之后调用 unlockMapped
+        ByteBuffer lockMapped(long capacity) throws IOException {
+            while (true) {
+                mapLock.readLock().lock();
+                MappedByteBuffer current = mapped;
+                if (current != null && current.capacity() >= capacity) {
+                    return current.duplicate();
+                }
+                mapLock.readLock().unlock();
+                mapLock.writeLock().lock();
+                try {
+                    if (mapped == null || mapped.capacity() < capacity) {
+                        FileChannel fileChannel = channel();
+                        MappedByteBuffer remapped = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, fileChannel.size()));
+                        unmap(mapped);
+                        mapped = remapped;
+                    }
+                } finally {
+                    mapLock.writeLock().unlock();
+                }
+            }
+        }
+
+        void unlockMapped() {
+            mapLock.readLock().unlock();
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        // 在队列锁内调用 取得共用的只读 FileChannel 用完之后调用 release
+        // 之后段即使被关闭 删除 FileChannel 也要等所有读取方都释放之后才关闭
+        synchronized FileChannel retain() throws IOException {
+            if (readChannel == null || !readChannel.isOpen()) {
+                readChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            }
+            readers++;
+            return readChannel;
+        }
+
+        synchronized void release() throws IOException {
+            readers--;
+            if (readers == 0 && closed) {
+                closeReadChannel();
+            }
+        }
+
+        private void closeReadChannel() throws IOException {
+            if (readChannel != null) {
+                readChannel.close();
+                readChannel = null;
+            }
+        }
+
+        // 把写入的数据刷到磁盘 段已经关闭（删除或者队列关闭时已经刷过）时忽略
+        void force() throws IOException {
+            mapLock.readLock().lock();
+            try {
+                if (mapped != null) {
+                    mapped.force();
+                }
+            } finally {
+                mapLock.readLock().unlock();
+            }
+            FileChannel fileChannel = channel;
+            if (fileChannel != null) {
+                try {
+                    fileChannel.force(false);
+                } catch (ClosedChannelException e) {
+                    // 段已经关闭
+                }
+            }
+        }
+
+        // 先解除映射 之后删除段文件时不会有映射还占着它 读取方只用 readChannel 不访问映射
+        // 还有读取方在用的 readChannel 等最后一个读取方释放时再关闭
+        void close() throws IOException {
+            mapLock.writeLock().lock();
+            try {
+                unmap(mapped);
+                mapped = null;
+            } finally {
+                mapLock.writeLock().unlock();
+            }
+            synchronized (this) {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+                closed = true;
+                if (readers == 0) {
+                    closeReadChannel();
+                }
+            }
+        }
+    }
+
+    // key: 段的起始位置
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    // 队列的消息统计 打开日志时由各个段的消息个数算出
+    private final MessageFileManager.Stat stat = new MessageFileManager.Stat();
+    // 上一次检查点之后统计信息是否改变过 以及改变的次数
+    private int dirtyCount = 0;
+
+    void addSegment(Segment segment) {
+        segments.put(segment.base, segment);
+        stat.totalCount += segment.totalCount;
+        stat.validCount += segment.validCount;
+    }
+
+    // 当前写入的段 最后一个段 还没有任何段时返回 null
+    Segment active() {
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        return last == null ? null : last.getValue();
+    }
+
+    // 新建一个段作为当前写入的段 从上一个段的末尾开始
+    Segment roll(String path) {
+        Segment segment = new Segment(nextBase(), path);
+        segments.put(segment.base, segment);
+        return segment;
+    }
+
+    long nextBase() {
+        Segment active = active();
+        return active == null ? 0 : active.end();
+    }
+
+    // 找到 [offsetBeg, offsetEnd) 所在的段 段已经被删除或者位置越界返回 null
+    Segment segmentOf(long offsetBeg, long offsetEnd) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offsetBeg);
+        if (entry == null || offsetEnd > entry.getValue().end()) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    // 取出所有已经没有有效消息的段（当前写入的段除外） 调用方负责关闭和删除文件
+    List<Segment> removeDeadSegments() {
+        List<Segment> dead = new ArrayList<>();
+        Segment active = active();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.validCount == 0) {
+                dead.add(segment);
+            }
+        }
+        for (Segment segment : dead) {
+            segments.remove(segment.base);
+            stat.totalCount -= segment.totalCount;
+        }
+        if (!dead.isEmpty()) {
+            dirtyCount++;
+        }
+        return dead;
+    }
+
+    List<Segment> getSegments() {
+        return new ArrayList<>(segments.values());
+    }
+
+    // 写入了 count 条消息
+    void appended(Segment segment, int count) {
+        segment.totalCount += count;
+        segment.validCount += count;
+        stat.totalCount += count;
+        stat.validCount += count;
+        dirtyCount++;
+    }
+
+    // 删除了段中的一条消息
+    void deleted(Segment segment) {
+        segment.validCount--;
+        stat.validCount--;
+        dirtyCount++;
+    }
+
+    MessageFileManager.Stat getStat() {
+        return stat;
+    }
+
+    int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    void clearDirty() {
+        dirtyCount = 0;
+    }
+
+    // 关闭之前先刷盘
+    void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.force();
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.fly.mq;
+
+import com.fly.mq.common.BufferPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BufferPoolTests {
+    // 每一级最多缓存的数组个数的上限 取这么多次一定能取到刚放回去的数组
+    private static final int MAX_CLASS_LIMIT = 256;
+
+    @Test
+    public void testSizeClass() {
+        // 不超过 MIN_SIZE 的都取最小的一级
+        Assertions.assertEquals(BufferPool.MIN_SIZE, BufferPool.acquire(0).length);
+        Assertions.assertEquals(BufferPool.MIN_SIZE, BufferPool.acquire(1).length);
+        Assertions.assertEquals(BufferPool.MIN_SIZE, BufferPool.acquire(BufferPool.MIN_SIZE).length);
+        // 其他的向上取整到 2 的幂 正好是 2 的幂的不再翻倍
+        Assertions.assertEquals(BufferPool.MIN_SIZE * 2, BufferPool.acquire(BufferPool.MIN_SIZE + 1).length);
+        Assertions.assertEquals(4096, BufferPool.acquire(4096).length);
+        Assertions.assertEquals(8192, BufferPool.acquire(4097).length);
+        Assertions.assertEquals(BufferPool.MAX_SIZE, BufferPool.acquire(BufferPool.MAX_SIZE).length);
+        // 超过 MAX_SIZE 的按实际大小分配
+        Assertions.assertEquals(BufferPool.MAX_SIZE + 1, BufferPool.acquire(BufferPool.MAX_SIZE + 1).length);
+    }
+
+    @Test
+    public void testReleasePooled() {
+        byte[] buffer = BufferPool.acquire(3000);
+        Assertions.assertEquals(4096, buffer.length);
+        BufferPool.release(buffer);
+        // 池中可能还有其他测试放回的数组 先进先出 最多取 MAX_CLASS_LIMIT 次
+        Assertions.assertTrue(drain(3000).stream().anyMatch(b -> b == buffer));
+    }
+
+    @Test
+    public void testReleaseNotPooled() {
+        // 长度不是某一级大小的数组 以及超过 MAX_SIZE 的数组都不放回池中
+        byte[] odd = new byte[3000];
+        byte[] large = new byte[BufferPool.MAX_SIZE * 2];
+        byte[] small = new byte[BufferPool.MIN_SIZE / 2];
+        BufferPool.release(odd);
+        BufferPool.release(large);
+        BufferPool.release(small);
+        BufferPool.release(null);
+
+        for (byte[] b : drain(3000)) {
+            Assertions.assertNotSame(odd, b);
+            Assertions.assertEquals(4096, b.length);
+        }
+        for (byte[] b : drain(1)) {
+            Assertions.assertNotSame(small, b);
+        }
+        byte[] acquired = BufferPool.acquire(large.length);
+        Assertions.assertNotSame(large, acquired);
+        Assertions.assertEquals(large.length, acquired.length);
+    }
+
+    // 取出这一级中所有缓存的数组（以及一些新分配的） 不再放回
+    private static List<byte[]> drain(int size) {
+        List<byte[]> buffers = new ArrayList<>();
+        for (int i = 0; i <= MAX_CLASS_LIMIT; i++) {
+            buffers.add(BufferPool.acquire(size));
+        }
+        return buffers;
+    }
+}
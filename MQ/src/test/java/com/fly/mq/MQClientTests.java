@@ -1,11 +1,17 @@
 package com.fly.mq;
 
 
+import com.fly.mq.common.BaseReturns;
 import com.fly.mq.common.Consumer;
+import com.fly.mq.common.GetMessage;
+import com.fly.mq.common.MQException;
+import com.fly.mq.common.PublishMessage;
 import com.fly.mq.mqclient.Channel;
 import com.fly.mq.mqclient.Connection;
 import com.fly.mq.mqclient.ConnectionFactory;
+import com.fly.mq.mqserver.BrokerConfig;
 import com.fly.mq.mqserver.BrokerServer;
+import com.fly.mq.mqserver.TransportType;
 import com.fly.mq.mqserver.core.BasicProperties;
 import com.fly.mq.mqserver.core.ExchangeType;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
@@ -16,8 +22,24 @@ import org.junit.jupiter.api.Test;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SpringBootTest
 public class MQClientTests {
@@ -158,5 +180,730 @@ public class MQClientTests {
         connection.close();
     }
 
+    // 使用 NIO 传输方式的服务器 客户端不需要做任何修改
+    @Test
+    public void testNioTransport() throws IOException, InterruptedException {
+        BrokerServer nioBrokerServer = new BrokerServer(9091, TransportType.NIO, 2);
+        Thread nioThread = new Thread(() -> {
+            try {
+                nioBrokerServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        nioThread.start();
+
+        ConnectionFactory nioFactory = new ConnectionFactory();
+        nioFactory.setHost("127.0.0.1");
+        nioFactory.setPort(9091);
+        Connection connection = nioFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertNotNull(channel);
+
+        boolean ok = channel.exchangeDeclare("testExchange", ExchangeType.DIRECT,true,false,null);
+        Assertions.assertTrue(ok);
+        ok = channel.queueDeclare("testQueue", true, false, false, null);
+        Assertions.assertTrue(ok);
+
+        byte[] requestBody = "Hello Nio".getBytes();
+        for (int i = 0; i < 10; i++) {
+            ok = channel.basicPublish("testExchange", "testQueue", null, requestBody);
+            Assertions.assertTrue(ok);
+        }
+
+        CountDownLatch latch = new CountDownLatch(10);
+        ok = channel.basicConsume("testQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                Assertions.assertArrayEquals(requestBody, body);
+                latch.countDown();
+            }
+        });
+        Assertions.assertTrue(ok);
+        Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        channel.close();
+        connection.close();
+        nioBrokerServer.stop();
+    }
+
+    // 异步发送 一个 channel 上同时有大量请求在途
+    @Test
+    public void testPublishAsync() throws IOException {
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclareAsync("testExchange", ExchangeType.DIRECT, true, false, null).join().isOk());
+        Assertions.assertTrue(channel.queueDeclareAsync("testQueue", false, false, false, null).join().isOk());
+
+        List<CompletableFuture<BaseReturns>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(channel.basicPublishAsync("testExchange", "testQueue", null, ("Hello " + i).getBytes()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        for (CompletableFuture<BaseReturns> future : futures) {
+            Assertions.assertTrue(future.join().isOk());
+        }
+        // 所有响应都已经被取走
+        Assertions.assertTrue(channel.getPendingReturnsMap().isEmpty());
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testPublishBatch() throws IOException, MQException, InterruptedException {
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue", true, false, false, null));
+
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        List<PublishMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(new PublishMessage("testQueue", basicProperties, ("Hello " + i).getBytes()));
+        }
+        // 队列不存在的消息单独失败 不影响同一批中的其他消息
+        messages.add(new PublishMessage("notExistQueue", null, "Hello".getBytes()));
+        boolean[] results = channel.basicPublishBatch("testExchange", messages);
+        Assertions.assertEquals(101, results.length);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(results[i]);
+        }
+        Assertions.assertFalse(results[100]);
+
+        CountDownLatch latch = new CountDownLatch(100);
+        channel.basicConsume("testQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                latch.countDown();
+            }
+        });
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testPublisherConfirm() throws IOException {
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue", true, false, false, null));
+        Assertions.assertTrue(channel.confirmSelect());
+
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        List<CompletableFuture<BaseReturns>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(channel.basicPublishAsync("testExchange", "testQueue", basicProperties, ("Hello " + i).getBytes()));
+        }
+        // 投递失败的消息收到 nack 不影响前后消息的确认
+        CompletableFuture<BaseReturns> failed = channel.basicPublishAsync("testExchange", "notExistQueue", null, "Hello".getBytes());
+        futures.add(channel.basicPublishAsync("testExchange", "testQueue", null, "Hello".getBytes()));
+        Assertions.assertEquals(503, channel.getNextPublishSeqNo());
+
+        Assertions.assertFalse(channel.waitForConfirms());
+        Assertions.assertFalse(failed.join().isOk());
+        for (CompletableFuture<BaseReturns> future : futures) {
+            Assertions.assertTrue(future.join().isOk());
+        }
+        Assertions.assertTrue(channel.getUnconfirmedMap().isEmpty());
+        // 确认之后 publish 的结果也通过确认返回
+        Assertions.assertTrue(channel.basicPublish("testExchange", "testQueue", null, "Hello".getBytes()));
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testPushAndResponseOnSameConnection() throws IOException, MQException, InterruptedException {
+        // 同一个连接上既有消费者推送又有 publish 的响应 帧之间不能交错
+        Connection connection = connectionFactory.newConnection();
+        Channel consumerChannel = connection.createChannel();
+        Channel producerChannel = connection.createChannel();
+        Assertions.assertTrue(producerChannel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(producerChannel.queueDeclare("testQueue", false, false, false, null));
+
+        CountDownLatch latch = new CountDownLatch(1000);
+        consumerChannel.basicConsume("testQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                latch.countDown();
+            }
+        });
+        List<CompletableFuture<BaseReturns>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(producerChannel.basicPublishAsync("testExchange", "testQueue", null, ("Hello " + i).getBytes()));
+        }
+        for (CompletableFuture<BaseReturns> future : futures) {
+            Assertions.assertTrue(future.join().isOk());
+        }
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        connection.close();
+    }
+
+    @Test
+    public void testCompression() throws IOException, MQException, InterruptedException {
+        connectionFactory.setCompressionThreshold(1024);
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue", false, false, false, null));
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"message-").append(i).append("\"},");
+        }
+        byte[] largeBody = json.append("{}]").toString().getBytes();
+        byte[] smallBody = "Hello".getBytes();
+        Assertions.assertTrue(channel.basicPublish("testExchange", "testQueue", null, largeBody));
+        Assertions.assertTrue(channel.basicPublish("testExchange", "testQueue", null, smallBody));
+
+        // 回调在线程池中执行 不依赖顺序 只统计内容一致的消息
+        CountDownLatch latch = new CountDownLatch(2);
+        channel.basicConsume("testQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                if (Arrays.equals(largeBody, body) || Arrays.equals(smallBody, body)) {
+                    latch.countDown();
+                }
+            }
+        });
+        Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // 只有大的 publish 和推送被压缩
+        Assertions.assertEquals(1, connection.getCompressionStats().getCompressedFrames());
+        Assertions.assertEquals(1, connection.getCompressionStats().getDecompressedFrames());
+        Assertions.assertTrue(connection.getCompressionStats().getSavedBytes() > 0);
+        Assertions.assertEquals(1, brokerServer.getCompressionStats().getDecompressedFrames());
+        Assertions.assertEquals(1, brokerServer.getCompressionStats().getCompressedFrames());
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testFileDelivery() throws IOException, MQException, InterruptedException {
+        // 持久化的消息直接从队列文件发送 BIO 和 NIO 都要能收到完整的消息
+        checkFileDelivery(connectionFactory);
+
+        BrokerServer nioBrokerServer = new BrokerServer(9092, TransportType.NIO, 2);
+        Thread nioThread = new Thread(() -> {
+            try {
+                nioBrokerServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        nioThread.start();
+        ConnectionFactory nioFactory = new ConnectionFactory();
+        nioFactory.setHost("127.0.0.1");
+        nioFactory.setPort(9092);
+        checkFileDelivery(nioFactory);
+        nioBrokerServer.stop();
+    }
+
+    private void checkFileDelivery(ConnectionFactory factory) throws IOException, MQException, InterruptedException {
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("fileExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("fileQueue", true, false, false, null));
+
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        List<byte[]> bodies = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] body = new byte[i * 20000 + 1];
+            Arrays.fill(body, (byte) i);
+            bodies.add(body);
+            Assertions.assertTrue(channel.basicPublish("fileExchange", "fileQueue", basicProperties, body));
+        }
+
+        CountDownLatch latch = new CountDownLatch(20);
+        channel.basicConsume("fileQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties properties, byte[] body) {
+                Assertions.assertEquals(2, properties.getDeliverMode());
+                Assertions.assertArrayEquals(bodies.get(body[0]), body);
+                latch.countDown();
+            }
+        });
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        channel.queueDelete("fileQueue");
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testBasicQos() throws IOException, MQException, InterruptedException {
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue", false, false, false, null));
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(channel.basicPublish("testExchange", "testQueue", null, ("Hello " + i).getBytes()));
+        }
+
+        // 预取 2 条 不确认就不会收到更多的消息
+        Assertions.assertTrue(channel.basicQos(2));
+        List<String> messageIds = Collections.synchronizedList(new ArrayList<>());
+        Assertions.assertTrue(channel.basicConsume("testQueue", false, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                messageIds.add(basicProperties.getMessageId());
+            }
+        }));
+        Thread.sleep(500);
+        Assertions.assertEquals(2, messageIds.size());
+
+        // 确认一条 空出一个位置 再推送一条
+        Assertions.assertTrue(channel.basicAck("testQueue", messageIds.get(0)));
+        Thread.sleep(500);
+        Assertions.assertEquals(3, messageIds.size());
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testMultipleAck() throws IOException, MQException, InterruptedException {
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue", true, false, false, null));
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        for (int i = 0; i < 200; i++) {
+            Assertions.assertTrue(channel.basicPublish("testExchange", "testQueue", basicProperties, ("Hello " + i).getBytes()));
+        }
+
+        // 预取 50 条 每收到 50 条批量确认一次 不确认就收不全 200 条
+        Assertions.assertTrue(channel.basicQos(50));
+        CountDownLatch latch = new CountDownLatch(200);
+        Assertions.assertTrue(channel.basicConsume("testQueue", false, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+            }
+
+            @Override
+            public void handleDelivery(String consumerTag, long deliveryTag, BasicProperties basicProperties, byte[] body) throws IOException {
+                latch.countDown();
+                if (deliveryTag % 50 == 0) {
+                    channel.basicAckAsync("testQueue", deliveryTag, true);
+                }
+            }
+        }));
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testBasicGet() throws IOException, MQException {
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue", true, false, false, null));
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(channel.basicPublish("testExchange", "testQueue", basicProperties, ("Hello " + i).getBytes()));
+        }
+
+        // 一次最多取 4 条 按发送顺序返回
+        List<GetMessage> messages = channel.basicGet("testQueue", 4, true);
+        Assertions.assertEquals(4, messages.size());
+        Assertions.assertArrayEquals("Hello 0".getBytes(), messages.get(0).getBody());
+        Assertions.assertArrayEquals("Hello 3".getBytes(), messages.get(3).getBody());
+
+        // 手动确认 取出剩下的 6 条
+        messages = channel.basicGet("testQueue", 100, false);
+        Assertions.assertEquals(6, messages.size());
+        for (GetMessage message : messages) {
+            Assertions.assertTrue(channel.basicAck("testQueue", message.getBasicProperties().getMessageId()));
+        }
+        Assertions.assertTrue(channel.basicGet("testQueue", 100, false).isEmpty());
+
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testFlowControl() throws IOException, MQException, InterruptedException {
+        // 队列积压达到 x-max-length 后暂停发布 消费之后恢复 BIO 和 NIO 都要生效
+        checkFlowControl(connectionFactory);
+
+        BrokerServer nioBrokerServer = new BrokerServer(9092, TransportType.NIO, 2);
+        Thread nioThread = new Thread(() -> {
+            try {
+                nioBrokerServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        nioThread.start();
+        ConnectionFactory nioFactory = new ConnectionFactory();
+        nioFactory.setHost("127.0.0.1");
+        nioFactory.setPort(9092);
+        checkFlowControl(nioFactory);
+        nioBrokerServer.stop();
+    }
+
+    private void checkFlowControl(ConnectionFactory factory) throws IOException, MQException, InterruptedException {
+        Connection producer = factory.newConnection();
+        Channel producerChannel = producer.createChannel();
+        Assertions.assertTrue(producerChannel.exchangeDeclare("flowExchange", ExchangeType.DIRECT, true, false, null));
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("x-max-length", 20);
+        Assertions.assertTrue(producerChannel.queueDeclare("flowQueue", false, false, false, arguments));
+
+        AtomicInteger published = new AtomicInteger(0);
+        Thread publisher = new Thread(() -> {
+            try {
+                for (int i = 0; i < 50; i++) {
+                    producerChannel.basicPublish("flowExchange", "flowQueue", null, ("Hello " + i).getBytes());
+                    published.incrementAndGet();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        publisher.start();
+        // 积压到 20 条之后发布被暂停
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (published.get() < 20 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(500);
+        Assertions.assertEquals(20, published.get());
+        Assertions.assertTrue(producer.isBlocked());
+
+        // 另一个连接取走消息 降到低水位以下后恢复发布
+        Connection consumer = factory.newConnection();
+        Channel consumerChannel = consumer.createChannel();
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received < 50 && System.currentTimeMillis() < deadline) {
+            received += consumerChannel.basicGet("flowQueue", 100, true).size();
+            Thread.sleep(50);
+        }
+        publisher.join(5000);
+        Assertions.assertEquals(50, published.get());
+        Assertions.assertEquals(50, received);
+        Thread.sleep(300);
+        Assertions.assertFalse(producer.isBlocked());
+
+        producerChannel.queueDelete("flowQueue");
+        consumerChannel.close();
+        producerChannel.close();
+        consumer.close();
+        producer.close();
+    }
+
+    @Test
+    public void testOrderedDispatch() throws IOException, MQException, InterruptedException {
+        // 服务器只用一个线程推送 保证推送的顺序 检查客户端回调线程比 channel 多时 同一个 channel 的回调仍然按推送顺序执行
+        BrokerConfig config = new BrokerConfig();
+        config.setPort(9093);
+        config.setConsumerThreads(1);
+        BrokerServer orderedBrokerServer = new BrokerServer(config);
+        Thread orderedThread = new Thread(() -> {
+            try {
+                orderedBrokerServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        orderedThread.start();
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("127.0.0.1");
+        factory.setPort(9093);
+        factory.setCallbackThreads(8);
+        factory.setLaneCapacity(16);
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        List<Channel> consumers = new ArrayList<>();
+        List<List<Integer>> received = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(400);
+        for (int c = 0; c < 2; c++) {
+            String queueName = "orderQueue" + c;
+            Assertions.assertTrue(channel.queueDeclare(queueName, false, false, false, null));
+            List<Integer> bodies = Collections.synchronizedList(new ArrayList<>());
+            received.add(bodies);
+            Channel consumerChannel = connection.createChannel();
+            consumers.add(consumerChannel);
+            Assertions.assertTrue(consumerChannel.basicConsume(queueName, true, new Consumer() {
+                @Override
+                public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                    bodies.add(Integer.parseInt(new String(body)));
+                    Thread.yield();
+                    latch.countDown();
+                }
+            }));
+        }
+        for (int i = 0; i < 200; i++) {
+            Assertions.assertTrue(channel.basicPublish("testExchange", "orderQueue0", null, String.valueOf(i).getBytes()));
+            Assertions.assertTrue(channel.basicPublish("testExchange", "orderQueue1", null, String.valueOf(i).getBytes()));
+        }
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (List<Integer> bodies : received) {
+            for (int i = 0; i < 200; i++) {
+                Assertions.assertEquals(i, bodies.get(i));
+            }
+        }
+
+        for (Channel consumerChannel : consumers) {
+            consumerChannel.close();
+        }
+        channel.close();
+        connection.close();
+        orderedBrokerServer.stop();
+    }
+
+    @Test
+    public void testUnixSocket() throws IOException, MQException, InterruptedException {
+        // BIO 方式由单独的 NioServer 监听 socket 文件 NIO 方式和 TCP 共用 reactor 两种都检查一遍
+        TransportType[] transportTypes = {TransportType.BIO, TransportType.NIO};
+        for (int t = 0; t < transportTypes.length; t++) {
+            String socketPath = Path.of(System.getProperty("java.io.tmpdir"), "mq-test-" + t + ".sock").toString();
+            BrokerConfig config = new BrokerConfig();
+            config.setPort(9094 + t);
+            config.setTransportType(transportTypes[t]);
+            config.setIoThreads(1);
+            config.setUnixSocketPath(socketPath);
+            BrokerServer unixBrokerServer = new BrokerServer(config);
+            Thread unixThread = new Thread(() -> {
+                try {
+                    unixBrokerServer.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            unixThread.start();
+            ConnectionFactory factory = new ConnectionFactory();
+            factory.setUnixSocketPath(socketPath);
+            Connection connection = factory.newConnection();
+            Channel channel = connection.createChannel();
+            Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+            Assertions.assertTrue(channel.queueDeclare("unixQueue", false, false, false, null));
+            CountDownLatch latch = new CountDownLatch(10);
+            Assertions.assertTrue(channel.basicConsume("unixQueue", true, new Consumer() {
+                @Override
+                public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                    latch.countDown();
+                }
+            }));
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertTrue(channel.basicPublish("testExchange", "unixQueue", null, ("hello" + i).getBytes()));
+            }
+            Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+            channel.close();
+            connection.close();
+            unixBrokerServer.stop();
+            Assertions.assertFalse(Files.exists(Path.of(socketPath)));
+        }
+    }
+
+    @Test
+    public void testUnixSocketInUse() throws IOException, MQException, InterruptedException {
+        Path socketPath = Path.of(System.getProperty("java.io.tmpdir"), "mq-test-in-use.sock");
+        Files.deleteIfExists(socketPath);
+        BrokerConfig config = new BrokerConfig();
+        config.setPort(9096);
+        config.setTransportType(TransportType.NIO);
+        config.setIoThreads(1);
+        config.setUnixSocketPath(socketPath.toString());
+
+        // 1.路径上是普通文件（配置错误） 启动失败 文件保留
+        Files.write(socketPath, "not a socket".getBytes());
+        Assertions.assertThrows(IOException.class, () -> new BrokerServer(config));
+        Assertions.assertEquals("not a socket", new String(Files.readAllBytes(socketPath)));
+        Files.delete(socketPath);
+
+        // 2.上次没有正常停止留下的 socket 文件 没有进程监听 直接删除后启动
+        ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        stale.bind(UnixDomainSocketAddress.of(socketPath));
+        stale.close();
+        Assertions.assertTrue(Files.exists(socketPath));
+        BrokerServer running = new BrokerServer(config);
+        Thread runningThread = new Thread(() -> {
+            try {
+                running.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        runningThread.start();
+
+        // 3.另一个 broker 正在使用这个 socket 文件 第二个 broker 启动失败 不影响第一个
+        BrokerConfig secondConfig = new BrokerConfig();
+        secondConfig.setPort(9097);
+        secondConfig.setTransportType(TransportType.NIO);
+        secondConfig.setIoThreads(1);
+        secondConfig.setUnixSocketPath(socketPath.toString());
+        Assertions.assertThrows(IOException.class, () -> new BrokerServer(secondConfig));
+
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setUnixSocketPath(socketPath.toString());
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+
+        channel.close();
+        connection.close();
+        running.stop();
+        Assertions.assertFalse(Files.exists(socketPath));
+    }
+
+    @Test
+    public void testLocalConnection() throws IOException, MQException, InterruptedException {
+        // 直接使用服务器的 VirtualHost 和走网络的客户端共用同一份数据
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setVirtualHost(brokerServer.getVirtualHost());
+        Connection localConnection = factory.newConnection();
+        Channel channel = localConnection.createChannel();
+        Assertions.assertNotNull(channel);
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("localQueue", false, false, false, null));
+        Assertions.assertTrue(channel.queueDeclare("localGetQueue", false, false, false, null));
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(11);
+        Assertions.assertTrue(channel.basicConsume("localQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                received.add(new String(body));
+                latch.countDown();
+            }
+        }));
+        Assertions.assertTrue(channel.confirmSelect());
+        for (int i = 0; i < 10; i++) {
+            channel.basicPublishAsync("testExchange", "localQueue", null, ("local" + i).getBytes());
+        }
+        Assertions.assertTrue(channel.waitForConfirms());
+
+        // 走网络的客户端发布的消息 本地消费者同样能收到
+        Connection remoteConnection = connectionFactory.newConnection();
+        Channel remoteChannel = remoteConnection.createChannel();
+        Assertions.assertTrue(remoteChannel.basicPublish("testExchange", "localQueue", null, "remote".getBytes()));
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(received.contains("remote"));
+        Assertions.assertTrue(received.contains("local9"));
+
+        Assertions.assertTrue(remoteChannel.basicPublish("testExchange", "localGetQueue", null, "get".getBytes()));
+        Channel getChannel = localConnection.createChannel();
+        List<GetMessage> messages = getChannel.basicGet("localGetQueue", 10, true);
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertEquals("get", new String(messages.get(0).getBody()));
+
+        getChannel.close();
+        channel.close();
+        remoteChannel.close();
+        remoteConnection.close();
+        localConnection.close();
+    }
+
+    @Test
+    public void testChunkedMessage() throws IOException, MQException, InterruptedException {
+        // 发布按 64KB 分块 服务器推送按默认的 512KB 分块 持久化的大消息也不走整条的文件推送
+        connectionFactory.setChunkSize(64 * 1024);
+        Connection connection = connectionFactory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("chunkQueue", true, false, false, null));
+
+        byte[] large = new byte[3 * 1024 * 1024 + 7];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 31);
+        }
+        BasicProperties properties = new BasicProperties();
+        properties.setDeliverMode(2);
+        List<byte[]> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(3);
+        Channel consumerChannel = connection.createChannel();
+        Assertions.assertTrue(consumerChannel.basicConsume("chunkQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                received.add(body);
+                latch.countDown();
+            }
+        }));
+        Assertions.assertTrue(channel.basicPublish("testExchange", "chunkQueue", properties, large));
+        Assertions.assertTrue(channel.basicPublish("testExchange", "chunkQueue", null,
+                new ByteArrayInputStream(large), large.length));
+        Assertions.assertTrue(channel.basicPublish("testExchange", "chunkQueue", null, "small".getBytes()));
+        Assertions.assertTrue(latch.await(20, TimeUnit.SECONDS));
+
+        int largeCount = 0;
+        for (byte[] body : received) {
+            if (body.length == large.length) {
+                Assertions.assertArrayEquals(large, body);
+                largeCount++;
+            } else {
+                Assertions.assertEquals("small", new String(body));
+            }
+        }
+        Assertions.assertEquals(2, largeCount);
+
+        consumerChannel.close();
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testChunkedMessageLimit() throws IOException, MQException, InterruptedException {
+        BrokerConfig config = new BrokerConfig();
+        config.setPort(9098);
+        config.setTransportType(TransportType.NIO);
+        config.setIoThreads(1);
+        config.setMaxMessageSize(1024 * 1024);
+        config.setMaxChunkStreams(1);
+        BrokerServer limited = new BrokerServer(config);
+        Thread limitedThread = new Thread(() -> {
+            try {
+                limited.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        limitedThread.start();
+
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("127.0.0.1");
+        factory.setPort(9098);
+        factory.setChunkSize(64 * 1024);
+        Connection connection = factory.newConnection();
+        Channel channel = connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(channel.queueDeclare("limitQueue", false, false, false, null));
+
+        // 超过 maxMessageSize 的分块 publish 直接失败 之后发送的数据帧被丢弃 连接仍然可以使用
+        Assertions.assertFalse(channel.basicPublish("testExchange", "limitQueue", null, new byte[2 * 1024 * 1024]));
+        Assertions.assertTrue(channel.basicPublish("testExchange", "limitQueue", null, new byte[512 * 1024]));
+        Assertions.assertTrue(channel.basicPublish("testExchange", "limitQueue", null, "small".getBytes()));
+        List<GetMessage> messages = channel.basicGet("limitQueue", 10, true);
+        Assertions.assertEquals(2, messages.size());
+        Assertions.assertEquals(512 * 1024, messages.get(0).getBody().length);
+        Assertions.assertEquals("small", new String(messages.get(1).getBody()));
+
+        // 输入流提前结束时客户端放弃这次传输 服务器丢弃收到的部分 唯一的位置空出来给下一个分块 publish
+        Assertions.assertThrows(IOException.class, () -> channel.basicPublish("testExchange", "limitQueue", null,
+                new ByteArrayInputStream(new byte[100 * 1024]), 200 * 1024));
+        Assertions.assertTrue(channel.basicPublish("testExchange", "limitQueue", null, new byte[256 * 1024]));
+        messages = channel.basicGet("limitQueue", 10, true);
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertEquals(256 * 1024, messages.get(0).getBody().length);
+
+        channel.close();
+        connection.close();
+        limited.stop();
+    }
 
 }
@@ -124,6 +124,27 @@ public class MemoryDataManagerTests {
         Assertions.assertNull(actualMessage);
     }
 
+    @Test
+    public void testReleaseBody(){
+        Message message = createMessageTest("testReleaseBody");
+        memoryDataManager.addMessage(message);
+        long bytes = memoryDataManager.getMessageBytes();
+
+        // 释放消息体 占用的字节数减去消息体的长度 重复释放不再减少
+        memoryDataManager.releaseBody(message);
+        Assertions.assertNull(message.getBody());
+        Assertions.assertEquals(bytes - "testReleaseBody".length(), memoryDataManager.getMessageBytes());
+        memoryDataManager.releaseBody(message);
+        Assertions.assertEquals(bytes - "testReleaseBody".length(), memoryDataManager.getMessageBytes());
+
+        // 已经删除的消息不受影响
+        memoryDataManager.removeMessage(message.getMessageId());
+        Assertions.assertEquals(0, memoryDataManager.getMessageBytes());
+        Message removed = createMessageTest("removed");
+        memoryDataManager.releaseBody(removed);
+        Assertions.assertArrayEquals("removed".getBytes(), removed.getBody());
+    }
+
     @Test
     public void testSendMessage(){
         // 1.创建一个队列 创建 10 条消息 将这些消息插入队列中
@@ -215,7 +236,9 @@ public class MemoryDataManagerTests {
         Assertions.assertEquals(exceptedMessage.getMessageId(), actualMessage.getMessageId());
         Assertions.assertEquals(exceptedMessage.getDeliverMode(), actualMessage.getDeliverMode());
         Assertions.assertEquals(exceptedMessage.getRoutingKey(), actualMessage.getRoutingKey());
-        Assertions.assertArrayEquals(exceptedMessage.getBody(), actualMessage.getBody());
+        // 恢复时只加载消息的属性 消息体投递前再读
+        Assertions.assertNull(actualMessage.getBody());
+        Assertions.assertArrayEquals(exceptedMessage.getBody(), diskDataCenter.readBody(exceptedQueue, actualMessage));
 
         // 清理硬盘数据
         MqApplication.context.close();
@@ -1,7 +1,11 @@
 package com.fly.mq;
 
+import com.fly.mq.common.BinaryCodec;
+import com.fly.mq.common.BinaryTool;
+import com.fly.mq.common.MQException;
 import com.fly.mq.mqserver.core.MSGQueue;
 import com.fly.mq.mqserver.core.Message;
+import com.fly.mq.mqserver.dao.FsyncPolicy;
 import com.fly.mq.mqserver.dao.MessageFileManager;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
@@ -10,10 +14,25 @@ import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @SpringBootTest
 public class MessageFileManagerTests {
@@ -41,15 +60,19 @@ public class MessageFileManagerTests {
     @Test
     public void testCreateQueueFiles() throws IOException {
 
-        File queueFile1 = new File("./data/"+queueName1 + "/queue_data.txt");
+        File queueDir1 = new File("./data/"+queueName1);
         File queueFileStat1 = new File("./data/"+queueName1 + "/queue_stat.txt");
-        Assertions.assertTrue(queueFile1.isFile());
+        Assertions.assertTrue(queueDir1.isDirectory());
         Assertions.assertTrue(queueFileStat1.isFile());
 
-        File queueFile2 = new File("./data/"+queueName2 + "/queue_data.txt");
+        File queueDir2 = new File("./data/"+queueName2);
         File queueFileStat2 = new File("./data/"+queueName2 + "/queue_stat.txt");
-        Assertions.assertTrue(queueFile2.isFile());
+        Assertions.assertTrue(queueDir2.isDirectory());
         Assertions.assertTrue(queueFileStat2.isFile());
+
+        // 第一条消息写入时创建起始位置为 0 的段
+        massageFileManager.sendMessage(createTestQueue(queueName1), createTestMessage("TestMessage"));
+        Assertions.assertTrue(new File("./data/"+queueName1 + "/queue_data_00000000000000000000.txt").isFile());
     }
 
     // 测试读写统计
@@ -103,7 +126,8 @@ public class MessageFileManagerTests {
         Assertions.assertEquals(message.getMessageId(), msg.getMessageId());
         Assertions.assertEquals(message.getRoutingKey(), msg.getRoutingKey());
         Assertions.assertEquals(message.getDeliverMode(), msg.getDeliverMode());
-        Assertions.assertArrayEquals(message.getBody(), msg.getBody());
+        Assertions.assertNull(msg.getBody());
+        Assertions.assertArrayEquals(message.getBody(), massageFileManager.readBody(queue, msg));
 
         System.out.println("Msg: " + msg);
     }
@@ -129,7 +153,7 @@ public class MessageFileManagerTests {
             Assertions.assertEquals(msg.getMessageId(), actualMsg.getMessageId());
             Assertions.assertEquals(msg.getRoutingKey(), actualMsg.getRoutingKey());
             Assertions.assertEquals(msg.getDeliverMode(), actualMsg.getDeliverMode());
-            Assertions.assertArrayEquals(msg.getBody(), actualMsg.getBody());
+            Assertions.assertArrayEquals(msg.getBody(), massageFileManager.readBody(queue, actualMsg));
             //Assertions.assertEquals(msg, actualMsg);
             Assertions.assertEquals(0x1, actualMsg.getIsValid());
         }
@@ -167,58 +191,451 @@ public class MessageFileManagerTests {
             Assertions.assertEquals(msg.getMessageId(), actualMsg.getMessageId());
             Assertions.assertEquals(msg.getRoutingKey(), actualMsg.getRoutingKey());
             Assertions.assertEquals(msg.getDeliverMode(), actualMsg.getDeliverMode());
-            Assertions.assertArrayEquals(msg.getBody(), actualMsg.getBody());
+            Assertions.assertArrayEquals(msg.getBody(), massageFileManager.readBody(queue, actualMsg));
             //Assertions.assertEquals(msg, actualMsg);
             Assertions.assertEquals(0x1, actualMsg.getIsValid());
         }
     }
 
+    private File[] listSegments(String queueName) {
+        File[] files = new File("./data/" + queueName).listFiles((dir, name) -> name.startsWith("queue_data_"));
+        Assertions.assertNotNull(files);
+        return files;
+    }
+
     @Test
-    public void testGC() throws IOException, ClassNotFoundException {
-        // 写入 100 条消息 删掉一半 在手动调用 gc 测试 再查看文件大小是否减小
+    public void testSegmentRolling() throws IOException, ClassNotFoundException {
+        // 段大小设置得很小 100 条消息写满多个段 删除前面的消息 全部删除的段文件直接删除
+        MessageFileManager smallSegmentManager = new MessageFileManager(1024);
         MSGQueue queue = createTestQueue(queueName1);
         LinkedList<Message> expectedMessages = new LinkedList<>();
         for (int i = 0; i < 100; i++) {
             Message message = createTestMessage("testMessage" + i);
-            massageFileManager.sendMessage(queue, message);
+            smallSegmentManager.sendMessage(queue, message);
             expectedMessages.add(message);
         }
+        int segmentsBefore = listSegments(queueName1).length;
+        Assertions.assertTrue(segmentsBefore > 2);
+
+        // 删除前一半的消息
+        for (int i = 0; i < 50; i++) {
+            smallSegmentManager.deleteMessage(queue, expectedMessages.get(i));
+        }
+        int segmentsAfter = listSegments(queueName1).length;
+        System.out.println("Segments before: " + segmentsBefore + " after: " + segmentsAfter);
+        Assertions.assertTrue(segmentsAfter < segmentsBefore);
+
+        // 剩下的消息位置不变 仍然可以删除
+        smallSegmentManager.deleteMessage(queue, expectedMessages.get(99));
+        LinkedList<Message> actualMessages = smallSegmentManager.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(49, actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Message exceptedMessage = expectedMessages.get(50 + i);
+            Message actualMessage = actualMessages.get(i);
+            Assertions.assertEquals(exceptedMessage.getMessageId(), actualMessage.getMessageId());
+            Assertions.assertArrayEquals(exceptedMessage.getBody(), smallSegmentManager.readBody(queue, actualMessage));
+            Assertions.assertEquals(exceptedMessage.getOffsetBeg(), actualMessage.getOffsetBeg());
+            Assertions.assertEquals(0x1, actualMessage.getIsValid());
+        }
 
-        File beforeGCFile = new File("./data/"+queueName1+"/queue_data.txt");
-        long beforeGCLength = beforeGCFile.length();
+        MessageFileManager.Stat stat = ReflectionTestUtils.invokeMethod(smallSegmentManager, "readStat", queue.getName());
+        Assertions.assertEquals(49, stat.validCount);
+        Assertions.assertTrue(stat.totalCount < 100);
+    }
 
-        // 删除偶数下标的消息
-        for (int i = 0; i <expectedMessages.size(); i += 2) {
-            massageFileManager.deleteMessage(queue,expectedMessages.get(i));
+    // 测试旧格式（Java 原生序列化）的数据文件仍然可以加载和删除
+    @Test
+    public void testLoadLegacyMessage() throws IOException, ClassNotFoundException {
+        MSGQueue queue = createTestQueue(queueName1);
+        Message legacyMessage = createTestMessage("legacyMessage");
+        byte[] legacyBytes = BinaryTool.toSerializedBytes(legacyMessage);
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream("./data/" + queueName1 + "/queue_data.txt", true))) {
+            dos.writeInt(legacyBytes.length);
+            dos.write(legacyBytes);
+        }
+        MessageFileManager.Stat stat = new MessageFileManager.Stat();
+        stat.totalCount = 1;
+        stat.validCount = 1;
+        ReflectionTestUtils.invokeMethod(massageFileManager, "writeStat", queueName1, stat);
+
+        // 新格式的消息追加在旧格式的后面
+        Message newMessage = createTestMessage("newMessage");
+        massageFileManager.sendMessage(queue, newMessage);
+
+        LinkedList<Message> messages = massageFileManager.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(2, messages.size());
+        Assertions.assertEquals(legacyMessage.getMessageId(), messages.get(0).getMessageId());
+        Assertions.assertArrayEquals(legacyMessage.getBody(), messages.get(0).getBody());
+        Assertions.assertEquals(newMessage.getMessageId(), messages.get(1).getMessageId());
+        // 新格式比原生序列化小得多
+        Assertions.assertTrue(BinaryTool.toBytes(newMessage).length < legacyBytes.length / 4);
+        // 原生序列化只在读数据文件时兼容 网络上收到的数据不会被反序列化
+        Assertions.assertThrows(MQException.class, () -> BinaryTool.fromBytes(legacyBytes));
+
+        // 删除旧格式的消息不影响后面的消息
+        massageFileManager.deleteMessage(queue, messages.get(0));
+        messages = massageFileManager.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertEquals(newMessage.getMessageId(), messages.get(0).getMessageId());
+    }
+
+    // 测试统计信息只在内存中更新 关闭时写回统计文件
+    @Test
+    public void testStatCheckpoint() throws IOException, ClassNotFoundException {
+        MSGQueue queue = createTestQueue(queueName1);
+        List<Message> messages = new LinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            Message message = createTestMessage("testMessage" + i);
+            massageFileManager.sendMessage(queue, message);
+            messages.add(message);
         }
-        // 手动 gc
-        massageFileManager.gc(queue);
+        massageFileManager.deleteMessage(queue, messages.get(0));
 
-        // 重新读取文件验证文件内容
+        // 内存中的统计是最新的 统计文件还没有写
+        MessageFileManager.Stat stat = ReflectionTestUtils.invokeMethod(massageFileManager, "readStat", queue.getName());
+        Assertions.assertEquals(10, stat.totalCount);
+        Assertions.assertEquals(9, stat.validCount);
+        Assertions.assertEquals("0\t0", readStatFile(queueName1));
+
+        // 关闭之后统计文件和内存中一致 重新打开还能继续写入
+        massageFileManager.close();
+        Assertions.assertEquals("10\t9", readStatFile(queueName1));
+        massageFileManager.sendMessage(queue, createTestMessage("afterClose"));
+        Assertions.assertEquals(10, massageFileManager.loadAllMessageFromQueue(queueName1).size());
+    }
+
+    // 测试内存映射模式 段文件预先扩展到段的大小 重新打开之后仍然能读出正确的消息
+    @Test
+    public void testMappedStorage() throws IOException, ClassNotFoundException {
+        MessageFileManager mappedManager = new MessageFileManager(1024);
+        MSGQueue queue = createTestQueue(queueName1);
+        queue.setArguments(MessageFileManager.STORAGE_MODE, MessageFileManager.STORAGE_MMAP);
+        List<Message> expectedMessages = new LinkedList<>();
+        for (int i = 0; i < 100; i++) {
+            Message message = createTestMessage("testMessage" + i);
+            mappedManager.sendMessage(queue, message);
+            expectedMessages.add(message);
+        }
+        for (File segment : listSegments(queueName1)) {
+            Assertions.assertEquals(1024, segment.length());
+        }
+
+        // 删除标记通过映射写入 段中的消息全部删除之后段文件随之删除
+        int segmentsBefore = listSegments(queueName1).length;
+        mappedManager.deleteMessages(queue, expectedMessages.subList(0, 50));
+        Assertions.assertTrue(listSegments(queueName1).length < segmentsBefore);
+        // 删除的段文件在删除之前已经解除映射
+        assertNoDeletedMapping(queueName1);
+        mappedManager.close();
+        assertNoDeletedMapping(queueName1);
+
+        // 不使用内存映射的实例也能读出数据 文件末尾的空白被跳过
         LinkedList<Message> actualMessages = massageFileManager.loadAllMessageFromQueue(queueName1);
         Assertions.assertEquals(50, actualMessages.size());
         for (int i = 0; i < actualMessages.size(); i++) {
-            // actual 中的 0 对应 expected 的 1
-            // actual 中的 1 对应 expected 的 3
-            // actual 中的 2 对应 expected 的 5
-            // actual 中的 i 对应 expected 的 2 * i + 1
-            Message exceptedMessage = expectedMessages.get(2 * i + 1);
+            Message exceptedMessage = expectedMessages.get(50 + i);
             Message actualMessage = actualMessages.get(i);
-
             Assertions.assertEquals(exceptedMessage.getMessageId(), actualMessage.getMessageId());
-            Assertions.assertEquals(exceptedMessage.getRoutingKey(), actualMessage.getRoutingKey());
-            Assertions.assertEquals(exceptedMessage.getDeliverMode(), actualMessage.getDeliverMode());
-            Assertions.assertArrayEquals(exceptedMessage.getBody(), actualMessage.getBody());
-            //Assertions.assertEquals(exceptedMessage, actualMessage);
-            Assertions.assertEquals(0x1, actualMessage.getIsValid());
+            Assertions.assertArrayEquals(exceptedMessage.getBody(), massageFileManager.readBody(queue, actualMessage));
+            Assertions.assertEquals(exceptedMessage.getOffsetBeg(), actualMessage.getOffsetBeg());
+        }
+    }
+
+    // 测试组提交 攒够一批消息时由写入的线程刷盘 不用等到定时刷盘
+    @Test
+    public void testGroupCommit() throws Exception {
+        MessageFileManager batchManager = new MessageFileManager(MessageFileManager.DEFAULT_SEGMENT_SIZE, FsyncPolicy.BATCH, 60_000, 8);
+        MSGQueue queue = createTestQueue(queueName1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String content = "testMessage" + i;
+                futures.add(pool.submit(() -> {
+                    batchManager.sendMessage(queue, createTestMessage(content));
+                    return null;
+                }));
+            }
+            // 刷盘间隔是 60 秒 8 条消息凑满一批之后立即刷盘返回
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+            batchManager.close();
+        }
+        Assertions.assertEquals(8, massageFileManager.loadAllMessageFromQueue(queueName1).size());
+    }
+
+    // 测试异步等待刷盘 写入的线程不等待 攒够一批消息时由 fsync-flusher 线程刷盘并完成 future
+    @Test
+    public void testAsyncGroupCommit() throws Exception {
+        MessageFileManager batchManager = new MessageFileManager(MessageFileManager.DEFAULT_SEGMENT_SIZE, FsyncPolicy.BATCH, 60_000, 8);
+        MSGQueue queue = createTestQueue(queueName1);
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                futures.add(batchManager.sendMessagesAsync(queue, List.of(createTestMessage("testMessage" + i))));
+            }
+            // 还没凑满一批 刷盘间隔是 60 秒 都还没有刷盘
+            for (CompletableFuture<Void> future : futures) {
+                Assertions.assertFalse(future.isDone());
+            }
+            futures.add(batchManager.sendMessagesAsync(queue, List.of(createTestMessage("testMessage7"))));
+            List<String> threads = new ArrayList<>();
+            for (CompletableFuture<Void> future : futures) {
+                threads.add(future.thenApply(v -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS));
+            }
+            Assertions.assertTrue(threads.contains("fsync-flusher"));
+        } finally {
+            batchManager.close();
+        }
+        Assertions.assertEquals(8, massageFileManager.loadAllMessageFromQueue(queueName1).size());
+    }
+
+    // 测试删除消息只改写记录头部的 isValid 一个字节
+    @Test
+    public void testDeleteFlipsValidByte() throws IOException, ClassNotFoundException {
+        MSGQueue queue = createTestQueue(queueName1);
+        Message message = createTestMessage("testMessage".repeat(1000));
+        massageFileManager.sendMessage(queue, message);
+        massageFileManager.sendMessage(queue, createTestMessage("otherMessage"));
+        File segment = new File("./data/" + queueName1 + "/queue_data_00000000000000000000.txt");
+        byte[] before = Files.readAllBytes(segment.toPath());
+
+        massageFileManager.deleteMessage(queue, message);
+        // 重复删除不会再改动文件 也不会重复计数
+        massageFileManager.deleteMessage(queue, message);
+        byte[] after = Files.readAllBytes(segment.toPath());
+        Assertions.assertEquals(before.length, after.length);
+        int changed = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (before[i] != after[i]) {
+                changed++;
+                Assertions.assertEquals(message.getOffsetBeg() + BinaryCodec.MESSAGE_VALID_OFFSET, i);
+                Assertions.assertEquals(0x0, after[i]);
+            }
         }
+        Assertions.assertEquals(1, changed);
+
+        MessageFileManager.Stat stat = ReflectionTestUtils.invokeMethod(massageFileManager, "readStat", queue.getName());
+        Assertions.assertEquals(2, stat.totalCount);
+        Assertions.assertEquals(1, stat.validCount);
+        Assertions.assertEquals(1, massageFileManager.loadAllMessageFromQueue(queueName1).size());
+    }
 
-        File afterGCFile = new File("./data/"+queueName1+"/queue_data.txt");
-        long afterGCLength = afterGCFile.length();
+    // 测试压缩 稀疏的段中的有效消息搬到日志末尾 内存中的消息位置同时更新
+    @Test
+    public void testCompaction() throws IOException, ClassNotFoundException {
+        MessageFileManager smallSegmentManager = new MessageFileManager(1024);
+        MSGQueue queue = createTestQueue(queueName1);
+        Map<String, Message> memory = new HashMap<>();
+        List<Message> live = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Message message = createTestMessage("testMessage" + i);
+            smallSegmentManager.sendMessage(queue, message);
+            if (i % 10 == 0) {
+                memory.put(message.getMessageId(), message);
+                live.add(message);
+            } else {
+                smallSegmentManager.deleteMessage(queue, message);
+            }
+        }
+        // 每个段都还有有效消息 不能直接删除
+        int segmentsBefore = listSegments(queueName1).length;
+        long firstOffset = live.get(0).getOffsetBeg();
 
-        System.out.println("Before GC: " + beforeGCLength);
-        System.out.println("After GC: " + afterGCLength);
-        Assertions.assertTrue(beforeGCLength > afterGCLength);
+        int compacted = 0;
+        while (smallSegmentManager.compact(queue, 0.5, memory::get)) {
+            compacted++;
+        }
+        Assertions.assertTrue(compacted > 0);
+        Assertions.assertTrue(listSegments(queueName1).length < segmentsBefore);
+        Assertions.assertNotEquals(firstOffset, live.get(0).getOffsetBeg());
+
+        // 重新加载 位置和内存中的一致
+        List<Message> loaded = smallSegmentManager.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(10, loaded.size());
+        Map<String, Long> loadedOffsets = new HashMap<>();
+        for (Message message : loaded) {
+            loadedOffsets.put(message.getMessageId(), message.getOffsetBeg());
+        }
+        for (Message message : live) {
+            Assertions.assertEquals(message.getOffsetBeg(), loadedOffsets.get(message.getMessageId()));
+        }
+
+        // 用内存中更新过的位置可以正常删除
+        smallSegmentManager.deleteMessages(queue, live);
+        Assertions.assertEquals(0, smallSegmentManager.loadAllMessageFromQueue(queueName1).size());
+        smallSegmentManager.close();
+    }
+
+    // 测试打开的记录带着打开时的位置和长度 之后压缩把消息搬走 仍然按原来的位置读出完整的记录
+    @Test
+    public void testMessageChannelAcrossCompaction() throws IOException, ClassNotFoundException {
+        MessageFileManager smallSegmentManager = new MessageFileManager(1024);
+        MSGQueue queue = createTestQueue(queueName1);
+        Map<String, Message> memory = new HashMap<>();
+        Message target = null;
+        for (int i = 0; i < 20; i++) {
+            Message message = createTestMessage("testMessage" + i);
+            smallSegmentManager.sendMessage(queue, message);
+            if (i == 0) {
+                memory.put(message.getMessageId(), message);
+                target = message;
+            } else {
+                smallSegmentManager.deleteMessage(queue, message);
+            }
+        }
+        long offsetBeg = target.getOffsetBeg();
+        long length = target.getOffsetEnd() - target.getOffsetBeg();
+
+        FileChannel channel;
+        try (MessageFileManager.RecordChannel record = smallSegmentManager.openMessageChannel(queue, target)) {
+            Assertions.assertNotNull(record);
+            Assertions.assertEquals(length, record.getLength());
+            while (smallSegmentManager.compact(queue, 0.5, memory::get)) {
+            }
+            Assertions.assertNotEquals(offsetBeg, target.getOffsetBeg());
+
+            ByteBuffer data = ByteBuffer.allocate((int) record.getLength());
+            while (data.hasRemaining()) {
+                Assertions.assertTrue(record.getFileChannel().read(data, record.getPosition() + data.position()) > 0);
+            }
+            Assertions.assertEquals(target.getMessageId(), BinaryCodec.readMessageId(data.array()));
+            channel = record.getFileChannel();
+        }
+        // 段在压缩时已经删除 最后一个读取方释放之后才关闭 FileChannel
+        Assertions.assertFalse(channel.isOpen());
+        Assertions.assertArrayEquals(target.getBody(), smallSegmentManager.readBody(queue, target));
+        smallSegmentManager.close();
+    }
+
+    // 测试同一个段中的消息共用一个只读 FileChannel 投递时不再每次打开文件
+    @Test
+    public void testMessageChannelShared() throws IOException, ClassNotFoundException {
+        MSGQueue queue = createTestQueue(queueName1);
+        Message first = createTestMessage("testMessage0");
+        Message second = createTestMessage("testMessage1");
+        massageFileManager.sendMessage(queue, first);
+        massageFileManager.sendMessage(queue, second);
+
+        MessageFileManager.RecordChannel firstRecord = massageFileManager.openMessageChannel(queue, first);
+        MessageFileManager.RecordChannel secondRecord = massageFileManager.openMessageChannel(queue, second);
+        Assertions.assertSame(firstRecord.getFileChannel(), secondRecord.getFileChannel());
+        Assertions.assertNotEquals(firstRecord.getPosition(), secondRecord.getPosition());
+        firstRecord.close();
+        firstRecord.close();
+        secondRecord.close();
+        // 段还在使用 FileChannel 保持打开
+        Assertions.assertTrue(secondRecord.getFileChannel().isOpen());
+        Assertions.assertArrayEquals(second.getBody(), massageFileManager.readBody(queue, second));
+    }
+
+    // 测试恢复时截掉不完整的记录和校验失败的记录
+    @Test
+    public void testTornTailRecovery() throws IOException, ClassNotFoundException {
+        MSGQueue queue = createTestQueue(queueName1);
+        List<Message> expectedMessages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Message message = createTestMessage("testMessage" + i);
+            massageFileManager.sendMessage(queue, message);
+            expectedMessages.add(message);
+        }
+        massageFileManager.close();
+        File segment = new File("./data/" + queueName1 + "/queue_data_00000000000000000000.txt");
+        long completeLength = segment.length();
+
+        // 写到一半宕机 只留下了长度和一部分内容
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(segment, true))) {
+            dos.writeInt(0x80000000 | 100);
+            dos.write(new byte[10]);
+        }
+        MessageFileManager recovered = new MessageFileManager();
+        Assertions.assertEquals(3, recovered.loadAllMessageFromQueue(queueName1).size());
+        Assertions.assertEquals(completeLength, segment.length());
+
+        // 最后一条消息的头部（属性）损坏 头部的 CRC 校验不通过
+        Message last = expectedMessages.get(2);
+        flipByte(segment, last.getOffsetBeg() + BinaryCodec.MESSAGE_HEADER_LENGTH + 5);
+        recovered.close();
+        recovered = new MessageFileManager();
+        List<Message> messages = recovered.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(2, messages.size());
+        Assertions.assertEquals(last.getOffsetBeg() - 16, segment.length());
+
+        // 截断之后从最后一条完整的记录后面继续写
+        recovered.sendMessage(queue, createTestMessage("afterRecovery"));
+        messages = recovered.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(3, messages.size());
+        Assertions.assertArrayEquals("afterRecovery".getBytes(), recovered.readBody(queue, messages.get(2)));
+        recovered.close();
+    }
+
+    // 测试恢复时只校验头部 消息体损坏在 readBody 读出消息体时才发现
+    @Test
+    public void testBodyChecksumOnRead() throws IOException, ClassNotFoundException {
+        MSGQueue queue = createTestQueue(queueName1);
+        Message first = createTestMessage("testMessage0");
+        Message second = createTestMessage("testMessage1");
+        massageFileManager.sendMessage(queue, first);
+        massageFileManager.sendMessage(queue, second);
+        massageFileManager.close();
+        File segment = new File("./data/" + queueName1 + "/queue_data_00000000000000000000.txt");
+        flipByte(segment, first.getOffsetEnd() - 1);
+
+        MessageFileManager recovered = new MessageFileManager();
+        List<Message> messages = recovered.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(2, messages.size());
+        IOException e = Assertions.assertThrows(IOException.class, () -> recovered.readBody(queue, messages.get(0)));
+        Assertions.assertTrue(e.getMessage().contains("body checksum mismatch"));
+        Assertions.assertArrayEquals(second.getBody(), recovered.readBody(queue, messages.get(1)));
+        recovered.close();
+    }
+
+    // 测试消息体损坏的记录不直接从文件发送 改走 readBody 由它发现损坏
+    @Test
+    public void testMessageChannelChecksBody() throws IOException, ClassNotFoundException {
+        MSGQueue queue = createTestQueue(queueName1);
+        Message first = createTestMessage("testMessage0");
+        Message second = createTestMessage("testMessage1");
+        massageFileManager.sendMessage(queue, first);
+        massageFileManager.sendMessage(queue, second);
+        massageFileManager.close();
+        File segment = new File("./data/" + queueName1 + "/queue_data_00000000000000000000.txt");
+        flipByte(segment, first.getOffsetEnd() - 1);
+
+        MessageFileManager recovered = new MessageFileManager();
+        List<Message> messages = recovered.loadAllMessageFromQueue(queueName1);
+        Assertions.assertNull(recovered.openMessageChannel(queue, messages.get(0)));
+        Assertions.assertThrows(IOException.class, () -> recovered.readBody(queue, messages.get(0)));
+        try (MessageFileManager.RecordChannel record = recovered.openMessageChannel(queue, messages.get(1))) {
+            Assertions.assertNotNull(record);
+            Assertions.assertEquals(second.getOffsetEnd() - second.getOffsetBeg(), record.getLength());
+        }
+        recovered.close();
+    }
+
+    // 在 /proc/self/maps 中查找已经删除但还映射着的段文件 没有这个文件的系统上不检查
+    private static void assertNoDeletedMapping(String queueName) throws IOException {
+        if (!Files.exists(Paths.get("/proc/self/maps"))) {
+            return;
+        }
+        for (String line : Files.readAllLines(Paths.get("/proc/self/maps"))) {
+            Assertions.assertFalse(line.contains(queueName + "/queue_data_") && line.contains("(deleted)"), line);
+        }
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        }
+    }
 
+    private String readStatFile(String queueName) throws IOException {
+        return new String(Files.readAllBytes(Paths.get("./data/" + queueName + "/queue_stat.txt")));
     }
 }
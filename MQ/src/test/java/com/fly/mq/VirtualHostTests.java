@@ -1,6 +1,7 @@
 package com.fly.mq;
 
 import com.fly.mq.common.Consumer;
+import com.fly.mq.common.GetMessage;
 import com.fly.mq.mqserver.VirtualHost;
 import com.fly.mq.mqserver.core.BasicProperties;
 import com.fly.mq.mqserver.core.Exchange;
@@ -15,7 +16,11 @@ import org.springframework.boot.test.context.SpringBootTest;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.sql.SQLOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 @SpringBootTest
 public class VirtualHostTests {
@@ -285,4 +290,63 @@ public class VirtualHostTests {
         Thread.sleep(500);
     }
 
+    // 测试恢复之后读不出消息体的消息直接丢弃 不放回队列
+    @Test
+    public void testDropUnreadableMessage() throws IOException {
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue", true, false, false, null));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        BasicProperties properties = new BasicProperties();
+        properties.setDeliverMode(2);
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange", "testQueue", properties, "first".getBytes()));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange", "testQueue", properties, "second".getBytes()));
+        virtualHost.close();
+
+        // 最后一条消息的消息体损坏 恢复时只校验头部 消息仍然加载
+        File segment = new File("./data/defaulttestQueue/queue_data_00000000000000000000.txt");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(segment.length() - 1);
+            int b = raf.read();
+            raf.seek(segment.length() - 1);
+            raf.write(b ^ 0xff);
+        }
+        virtualHost = new VirtualHost("default");
+        Assertions.assertEquals(2, virtualHost.getMemoryDataManager().getMessageCount("defaulttestQueue"));
+
+        List<GetMessage> messages = virtualHost.basicGet("testQueue", 10, true);
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertArrayEquals("first".getBytes(), messages.get(0).getBody());
+        Assertions.assertEquals(0, virtualHost.getMemoryDataManager().getMessageCount("defaulttestQueue"));
+        Assertions.assertTrue(virtualHost.basicGet("testQueue", 10, true).isEmpty());
+        virtualHost.close();
+
+        // 损坏的消息在硬盘上也已经删除
+        virtualHost = new VirtualHost("default");
+        Assertions.assertEquals(0, virtualHost.getMemoryDataManager().getMessageCount("defaulttestQueue"));
+        virtualHost.close();
+    }
+
+    // 测试推送失败的消息放回队列 交给其他消费者 推送失败的消费者不再占用预取位置
+    @Test
+    public void testRequeueFailedDelivery() throws InterruptedException {
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue", true, false, false, null));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(virtualHost.basicConsume("failConsumer", "testQueue", false, 1, (consumerTag, basicProperties, body) -> {
+            throw new IOException("connection closed");
+        }));
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        Assertions.assertTrue(virtualHost.basicConsume("okConsumer", "testQueue", false, 1, (consumerTag, basicProperties, body) -> {
+            received.add(new String(body));
+            virtualHost.basicAck("testQueue", basicProperties.getMessageId());
+        }));
+
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertTrue(virtualHost.basicPublish("testExchange", "testQueue", null, ("hello" + i).getBytes()));
+        }
+        Thread.sleep(1000);
+
+        Assertions.assertEquals(5, received.size());
+        Assertions.assertEquals(0, virtualHost.getMemoryDataManager().getMessageCount("defaulttestQueue"));
+        Assertions.assertNull(virtualHost.getMemoryDataManager().getQueue("defaulttestQueue").getConsumerEnv("failConsumer"));
+    }
+
 }